@@ -0,0 +1,376 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Height-ordered index of all clonal frame and conversion events making
+ * up an ACG.  Maintained by ConversionGraph and shared by everything that
+ * needs to traverse the ACG in time order (ACGEventList, AffectedSiteList,
+ * ACGLikelihoodApprox).
+ *
+ * Events are stored as a sorted array of heights together with parallel
+ * arrays of integer event codes (encoding the event type and the number
+ * of the associated clonal frame node) and conversions.  When an event
+ * height changes, the event is moved locally to its new position rather
+ * than re-sorting the whole list.  As with ConversionEdgeIndex, changes
+ * to conversions are queued and applied when the index is next
+ * requested.  The clonal frame nodes which may have changed are queued
+ * in the same way, and only the heights of these nodes are compared
+ * against the index.
+ */
+public class ACGEventIndex {
+
+    private static final ACGEventList.EventType[] eventTypes =
+            ACGEventList.EventType.values();
+
+    private final ConversionGraph acg;
+
+    private double[] heights = new double[0];
+    private int[] codes = new int[0];
+    private Conversion[] conversions = new Conversion[0];
+    private int eventCount = 0;
+
+    /**
+     * Position of the event corresponding to each clonal frame node.
+     */
+    private int[] cfEventPos = new int[0];
+
+    private Conversion[] pending = new Conversion[16];
+    private int pendingCount = 0;
+    private int memberCount = 0;
+    private boolean valid = false;
+
+    /**
+     * Numbers of clonal frame nodes whose events may need repositioning.
+     */
+    private final BitSet pendingCFNodes = new BitSet();
+
+    /**
+     * Token identifying the current generation of the index.  (See
+     * ConversionEdgeIndex.)
+     */
+    private Object epoch = new Object();
+
+    ACGEventIndex(ConversionGraph acg) {
+        this.acg = acg;
+    }
+
+    /**
+     * @return number of events in index.
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @param i event index
+     * @return height of event
+     */
+    public double getHeight(int i) {
+        return heights[i];
+    }
+
+    /**
+     * @param i event index
+     * @return type of event
+     */
+    public ACGEventList.EventType getType(int i) {
+        return eventTypes[codes[i] & 3];
+    }
+
+    /**
+     * @param i event index
+     * @return number of clonal frame node associated with event
+     */
+    public int getNodeNr(int i) {
+        return codes[i] >> 2;
+    }
+
+    /**
+     * @param i event index
+     * @return clonal frame node associated with event
+     */
+    public Node getNode(int i) {
+        return acg.getNode(codes[i] >> 2);
+    }
+
+    /**
+     * @param i event index
+     * @return conversion associated with event, or null for clonal
+     * frame events.
+     */
+    public Conversion getConversion(int i) {
+        return conversions[i];
+    }
+
+    boolean isValid(int nodeCount, int convCount) {
+        return valid && cfEventPos.length == nodeCount && memberCount == convCount;
+    }
+
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Reconstruct the index from scratch.
+     *
+     * @param convLists lists of conversions belonging to the graph
+     */
+    void rebuild(Collection<ConversionList> convLists) {
+        for (int i=0; i<pendingCount; i++)
+            pending[i] = null;
+        pendingCount = 0;
+        pendingCFNodes.clear();
+
+        memberCount = 0;
+        valid = true;
+        epoch = new Object();
+
+        int nodeCount = acg.getNodeCount();
+        int size = nodeCount;
+        for (ConversionList convList : convLists)
+            size += 2*convList.size();
+
+        double[] newHeights = new double[size];
+        int[] newCodes = new int[size];
+        Conversion[] newConversions = new Conversion[size];
+
+        int n = 0;
+        for (int nr=0; nr<nodeCount; nr++) {
+            Node node = acg.getNode(nr);
+            newHeights[n] = node.getHeight();
+            newCodes[n] = encode(nr, node.isLeaf()
+                    ? ACGEventList.EventType.CF_LEAF
+                    : ACGEventList.EventType.CF_COALESCENCE);
+            n += 1;
+        }
+
+        for (ConversionList convList : convLists) {
+            for (Conversion conv : convList) {
+                conv.eventIndexEpoch = epoch;
+                conv.eventIndexMember = true;
+                conv.eventIndexPending = false;
+                memberCount += 1;
+
+                newHeights[n] = conv.height1;
+                newCodes[n] = encode(conv.node1.getNr(), ACGEventList.EventType.CONV_DEPART);
+                newConversions[n] = conv;
+                n += 1;
+
+                newHeights[n] = conv.height2;
+                newCodes[n] = encode(conv.node2.getNr(), ACGEventList.EventType.CONV_ARRIVE);
+                newConversions[n] = conv;
+                n += 1;
+            }
+        }
+
+        // Stable sort of event order by height, so that events having
+        // equal heights remain in the order in which they were added.
+        Integer[] order = new Integer[size];
+        for (int i=0; i<size; i++)
+            order[i] = i;
+        Arrays.sort(order, (i1, i2) -> Double.compare(newHeights[i1], newHeights[i2]));
+
+        heights = new double[size];
+        codes = new int[size];
+        conversions = new Conversion[size];
+        cfEventPos = new int[nodeCount];
+        eventCount = size;
+
+        for (int i=0; i<size; i++) {
+            heights[i] = newHeights[order[i]];
+            codes[i] = newCodes[order[i]];
+            conversions[i] = newConversions[order[i]];
+            updatePosition(i);
+        }
+    }
+
+    void add(Conversion conv) {
+        if (!valid)
+            return;
+
+        if (conv.eventIndexEpoch != epoch) {
+            conv.eventIndexEpoch = epoch;
+            conv.eventIndexMember = false;
+            conv.eventIndexPending = false;
+            conv.departEventPos = -1;
+            conv.arriveEventPos = -1;
+        }
+
+        if (!conv.eventIndexMember) {
+            conv.eventIndexMember = true;
+            memberCount += 1;
+        }
+        markModified(conv);
+    }
+
+    void remove(Conversion conv) {
+        if (!valid || conv.eventIndexEpoch != epoch)
+            return;
+
+        if (conv.eventIndexMember) {
+            conv.eventIndexMember = false;
+            memberCount -= 1;
+        }
+        markModified(conv);
+    }
+
+    void markModified(Conversion conv) {
+        if (!valid || conv.eventIndexEpoch != epoch || conv.eventIndexPending)
+            return;
+
+        conv.eventIndexPending = true;
+        if (pendingCount == pending.length)
+            pending = Arrays.copyOf(pending, 2*pending.length);
+        pending[pendingCount++] = conv;
+    }
+
+    /**
+     * Queue clonal frame nodes whose heights may have changed.
+     *
+     * @param nodes nodes to queue
+     */
+    void markCFNodesModified(List<Node> nodes) {
+        if (!valid)
+            return;
+
+        for (Node node : nodes)
+            pendingCFNodes.set(node.getNr());
+    }
+
+    /**
+     * Queue every clonal frame node.
+     */
+    void markAllCFNodesModified() {
+        if (valid)
+            pendingCFNodes.set(0, cfEventPos.length);
+    }
+
+    /**
+     * Apply queued conversion changes and reposition the events of any
+     * queued clonal frame nodes whose heights have changed.
+     */
+    void update() {
+        for (int i=0; i<pendingCount; i++) {
+            Conversion conv = pending[i];
+            pending[i] = null;
+            conv.eventIndexPending = false;
+
+            if (conv.eventIndexMember && conv.node1 != null && conv.node2 != null) {
+                if (conv.departEventPos < 0) {
+                    conv.departEventPos = append(conv.height1,
+                            encode(conv.node1.getNr(), ACGEventList.EventType.CONV_DEPART), conv);
+                    conv.arriveEventPos = append(conv.height2,
+                            encode(conv.node2.getNr(), ACGEventList.EventType.CONV_ARRIVE), conv);
+                } else {
+                    codes[conv.departEventPos] = encode(conv.node1.getNr(),
+                            ACGEventList.EventType.CONV_DEPART);
+                    codes[conv.arriveEventPos] = encode(conv.node2.getNr(),
+                            ACGEventList.EventType.CONV_ARRIVE);
+                }
+
+                reposition(conv.departEventPos, conv.height1);
+                reposition(conv.arriveEventPos, conv.height2);
+            } else if (conv.departEventPos >= 0) {
+                reposition(conv.arriveEventPos, Double.POSITIVE_INFINITY);
+                truncate();
+                reposition(conv.departEventPos, Double.POSITIVE_INFINITY);
+                truncate();
+                conv.departEventPos = -1;
+                conv.arriveEventPos = -1;
+            }
+        }
+        pendingCount = 0;
+
+        for (int nr = pendingCFNodes.nextSetBit(0);
+             nr >= 0 && nr < cfEventPos.length;
+             nr = pendingCFNodes.nextSetBit(nr+1)) {
+            double height = acg.getNode(nr).getHeight();
+            if (heights[cfEventPos[nr]] != height)
+                reposition(cfEventPos[nr], height);
+        }
+        pendingCFNodes.clear();
+    }
+
+    private static int encode(int nodeNr, ACGEventList.EventType type) {
+        return (nodeNr << 2) | type.ordinal();
+    }
+
+    private int append(double height, int code, Conversion conv) {
+        if (eventCount == heights.length) {
+            int newLength = Math.max(16, 2*heights.length);
+            heights = Arrays.copyOf(heights, newLength);
+            codes = Arrays.copyOf(codes, newLength);
+            conversions = Arrays.copyOf(conversions, newLength);
+        }
+
+        heights[eventCount] = height;
+        codes[eventCount] = code;
+        conversions[eventCount] = conv;
+
+        return eventCount++;
+    }
+
+    /**
+     * Remove the final event.
+     */
+    private void truncate() {
+        eventCount -= 1;
+        conversions[eventCount] = null;
+    }
+
+    /**
+     * Move event to the position corresponding to a new height, shifting
+     * the intervening events by one place.  Events of equal height are
+     * not passed, preserving their relative order.
+     *
+     * @param pos current position of event
+     * @param height new height of event
+     */
+    private void reposition(int pos, double height) {
+        int code = codes[pos];
+        Conversion conv = conversions[pos];
+
+        while (pos > 0 && heights[pos-1] > height) {
+            moveEvent(pos-1, pos);
+            pos -= 1;
+        }
+
+        while (pos < eventCount-1 && heights[pos+1] < height) {
+            moveEvent(pos+1, pos);
+            pos += 1;
+        }
+
+        heights[pos] = height;
+        codes[pos] = code;
+        conversions[pos] = conv;
+        updatePosition(pos);
+    }
+
+    private void moveEvent(int from, int to) {
+        heights[to] = heights[from];
+        codes[to] = codes[from];
+        conversions[to] = conversions[from];
+        updatePosition(to);
+    }
+
+    private void updatePosition(int pos) {
+        switch (eventTypes[codes[pos] & 3]) {
+            case CONV_DEPART:
+                conversions[pos].departEventPos = pos;
+                break;
+
+            case CONV_ARRIVE:
+                conversions[pos].arriveEventPos = pos;
+                break;
+
+            default:
+                cfEventPos[codes[pos] >> 2] = pos;
+        }
+    }
+}
@@ -95,38 +95,19 @@ public class ACGEventList {
     public ACGEventList(ConversionGraph acg, Locus locus) {
         this.events = new ArrayList<>();
 
-        // Create unsorted event list.
-
-        // Add CF events:
-        for (Node node : acg.getNodesAsArray()) {
-            events.add(new Event(node));
-        }
-
-        // Add conversion events:
-        if (locus == null) {
-            for (Locus l : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(l)) {
-                    events.add(new Event(conv, true));
-                    events.add(new Event(conv, false));
-                }
-            }
-        } else {
-            for (Conversion conv : acg.getConversions(locus)) {
-                events.add(new Event(conv, true));
-                events.add(new Event(conv, false));
-            }
+        // Events are read from the graph's height-ordered event index,
+        // so no sorting is required here.
+
+        ACGEventIndex eventIndex = acg.getEventIndex();
+        for (int i=0; i<eventIndex.getEventCount(); i++) {
+            Conversion conv = eventIndex.getConversion(i);
+
+            if (conv == null)
+                events.add(new Event(eventIndex.getNode(i)));
+            else if (locus == null || conv.getLocus() == locus)
+                events.add(new Event(conv,
+                        eventIndex.getType(i) == EventType.CONV_DEPART));
         }
-
-
-        // Sort event list:
-
-        events.sort((Event o1, Event o2) -> {
-            if (o1.t < o2.t)
-                return -1;
-            if (o1.t > o2.t)
-                return 1;
-            return 0;
-        });
     }
 
     /**
@@ -0,0 +1,337 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact copy of the state of a ConversionGraph, consisting only of
+ * primitive arrays describing the clonal frame topology and node heights
+ * together with the conversion tuples for each locus.  Capturing a
+ * snapshot involves no formatting and, once the arrays have grown to the
+ * size of the graph, no allocation, making it cheap enough to perform on
+ * the MCMC thread.  The graph can later be reconstituted from the
+ * snapshot on another thread using ConversionGraph.assignFromSnapshot().
+ *
+ * Snapshots can also be written to and read from the binary ACG log
+ * format used by BinaryACGLogger.  Each record holds the sample number,
+ * the node heights, the clonal frame topology (omitted when unchanged
+ * from the previous record) and the conversions of each locus.
+ *
+ * Snapshot objects are intended to be reused.
+ */
+public class ACGSnapshot {
+
+    List<Locus> loci, convertibleLoci;
+    int taxaTranslationOffset;
+
+    int nodeCount, leafNodeCount, rootNr;
+    double[] heights = new double[0];
+    int[] leftChildNrs = new int[0], rightChildNrs = new int[0];
+    String[] nodeMetaData = new String[0];
+
+    /**
+     * Conversions are stored locus by locus, with convOffsets[i] giving
+     * the position of the first conversion belonging to the ith
+     * convertible locus.
+     */
+    int[] convOffsets = new int[0];
+    int convCount;
+    int[] node1Nrs = new int[0], node2Nrs = new int[0];
+    double[] heights1 = new double[0], heights2 = new double[0];
+    int[] startSites = new int[0], endSites = new int[0];
+    String[] metaDataBottom = new String[0], metaDataMiddle = new String[0],
+            metaDataTop = new String[0];
+
+    boolean readIncludedTopology;
+
+    public ACGSnapshot() { }
+
+    /**
+     * Record the current state of an ACG.
+     *
+     * @param acg graph to record
+     */
+    public void capture(ConversionGraph acg) {
+        loci = acg.loci;
+        convertibleLoci = acg.convertibleLoci;
+        taxaTranslationOffset = acg.getTaxaTranslationOffset();
+
+        nodeCount = acg.getNodeCount();
+        leafNodeCount = acg.getLeafNodeCount();
+        rootNr = acg.getRoot().getNr();
+
+        if (heights.length < nodeCount) {
+            heights = new double[nodeCount];
+            leftChildNrs = new int[nodeCount];
+            rightChildNrs = new int[nodeCount];
+            nodeMetaData = new String[nodeCount];
+        }
+
+        for (int nr=0; nr<nodeCount; nr++) {
+            Node node = acg.getNode(nr);
+            heights[nr] = node.getHeight();
+            nodeMetaData[nr] = node.getNewickMetaData();
+
+            if (node.isLeaf()) {
+                leftChildNrs[nr] = -1;
+                rightChildNrs[nr] = -1;
+            } else {
+                leftChildNrs[nr] = node.getChild(0).getNr();
+                rightChildNrs[nr] = node.getChild(1).getNr();
+            }
+        }
+
+        if (convOffsets.length < convertibleLoci.size() + 1)
+            convOffsets = new int[convertibleLoci.size() + 1];
+
+        int total = acg.getTotalConvCount();
+        if (node1Nrs.length < total) {
+            int size = Math.max(total, 2*node1Nrs.length);
+            node1Nrs = Arrays.copyOf(node1Nrs, size);
+            node2Nrs = Arrays.copyOf(node2Nrs, size);
+            heights1 = Arrays.copyOf(heights1, size);
+            heights2 = Arrays.copyOf(heights2, size);
+            startSites = Arrays.copyOf(startSites, size);
+            endSites = Arrays.copyOf(endSites, size);
+            metaDataBottom = Arrays.copyOf(metaDataBottom, size);
+            metaDataMiddle = Arrays.copyOf(metaDataMiddle, size);
+            metaDataTop = Arrays.copyOf(metaDataTop, size);
+        }
+
+        int i = 0;
+        for (int l=0; l<convertibleLoci.size(); l++) {
+            convOffsets[l] = i;
+            for (Conversion conv : acg.getConversions(convertibleLoci.get(l))) {
+                node1Nrs[i] = conv.node1.getNr();
+                node2Nrs[i] = conv.node2.getNr();
+                heights1[i] = conv.height1;
+                heights2[i] = conv.height2;
+                startSites[i] = conv.startSite;
+                endSites[i] = conv.endSite;
+                metaDataBottom[i] = conv.newickMetaDataBottom;
+                metaDataMiddle[i] = conv.newickMetaDataMiddle;
+                metaDataTop[i] = conv.newickMetaDataTop;
+                i += 1;
+            }
+        }
+        convOffsets[convertibleLoci.size()] = i;
+        convCount = i;
+    }
+
+    /**
+     * @param other another snapshot
+     * @return true if other has the same clonal frame topology as this.
+     */
+    public boolean hasSameTopology(ACGSnapshot other) {
+        if (other.nodeCount != nodeCount || other.rootNr != rootNr)
+            return false;
+
+        for (int nr=0; nr<nodeCount; nr++) {
+            if (other.leftChildNrs[nr] != leftChildNrs[nr]
+                    || other.rightChildNrs[nr] != rightChildNrs[nr])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param other another snapshot
+     * @return true if other has the same clonal frame topology and node
+     * heights as this.
+     */
+    public boolean hasSameClonalFrame(ACGSnapshot other) {
+        if (!hasSameTopology(other))
+            return false;
+
+        for (int nr=0; nr<nodeCount; nr++) {
+            if (other.heights[nr] != heights[nr])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write snapshot as a binary log record.  Conversions are written for
+     * each of the loci recorded in the snapshot, in order, with loci not
+     * open to conversion having no conversions.
+     *
+     * @param out destination
+     * @param sampleNr sample number of record
+     * @param includeTopology if false, topology is omitted from the record
+     *                        and is assumed to be that of the previous one
+     * @throws IOException if thrown by out
+     */
+    public void write(DataOutput out, long sampleNr, boolean includeTopology) throws IOException {
+        out.writeLong(sampleNr);
+        out.writeInt(nodeCount);
+        out.writeBoolean(includeTopology);
+
+        if (includeTopology) {
+            out.writeInt(rootNr);
+            for (int nr=0; nr<nodeCount; nr++) {
+                out.writeInt(leftChildNrs[nr]);
+                out.writeInt(rightChildNrs[nr]);
+            }
+        }
+
+        for (int nr=0; nr<nodeCount; nr++)
+            out.writeDouble(heights[nr]);
+
+        for (Locus locus : loci) {
+            int l = convertibleLoci.indexOf(locus);
+            if (l < 0) {
+                out.writeInt(0);
+                continue;
+            }
+
+            out.writeInt(convOffsets[l+1] - convOffsets[l]);
+            for (int i=convOffsets[l]; i<convOffsets[l+1]; i++) {
+                out.writeInt(node1Nrs[i]);
+                out.writeInt(node2Nrs[i]);
+                out.writeDouble(heights1[i]);
+                out.writeDouble(heights2[i]);
+                out.writeInt(startSites[i]);
+                out.writeInt(endSites[i]);
+            }
+        }
+    }
+
+    /**
+     * Read snapshot from a binary log record.  Records omitting the
+     * topology must be read into the snapshot which read the preceding
+     * record.
+     *
+     * @param in source
+     * @param loci loci listed in the log header.  Conversions are read
+     *             only for those which allow them.
+     * @param taxaTranslationOffset offset added to node numbers to obtain
+     *                              taxon labels
+     * @return sample number of record
+     * @throws IOException if thrown by in, or if record is malformed
+     */
+    public long read(DataInput in, List<Locus> loci, int taxaTranslationOffset) throws IOException {
+        if (loci != this.loci) {
+            this.loci = loci;
+            convertibleLoci = new ArrayList<>();
+            for (Locus locus : loci) {
+                if (locus.conversionsAllowed())
+                    convertibleLoci.add(locus);
+            }
+        }
+        this.taxaTranslationOffset = taxaTranslationOffset;
+
+        long sampleNr = in.readLong();
+        int newNodeCount = in.readInt();
+        boolean includesTopology = in.readBoolean();
+        readIncludedTopology = includesTopology;
+
+        if (includesTopology) {
+            nodeCount = newNodeCount;
+            if (heights.length < nodeCount) {
+                heights = new double[nodeCount];
+                leftChildNrs = new int[nodeCount];
+                rightChildNrs = new int[nodeCount];
+                nodeMetaData = new String[nodeCount];
+            }
+            Arrays.fill(nodeMetaData, 0, nodeCount, "");
+
+            rootNr = in.readInt();
+            leafNodeCount = 0;
+            for (int nr=0; nr<nodeCount; nr++) {
+                leftChildNrs[nr] = in.readInt();
+                rightChildNrs[nr] = in.readInt();
+                if (leftChildNrs[nr] < 0)
+                    leafNodeCount += 1;
+            }
+        } else if (newNodeCount != nodeCount)
+            throw new IOException("Binary ACG log record omits topology " +
+                    "but does not match preceding record.");
+
+        for (int nr=0; nr<nodeCount; nr++)
+            heights[nr] = in.readDouble();
+
+        if (convOffsets.length < convertibleLoci.size() + 1)
+            convOffsets = new int[convertibleLoci.size() + 1];
+
+        int i = 0, l = 0;
+        for (Locus locus : loci) {
+            int count = in.readInt();
+            if (!locus.conversionsAllowed()) {
+                if (count != 0)
+                    throw new IOException("Binary ACG log record contains " +
+                            "conversions on locus " + locus.getID() +
+                            ", which does not allow them.");
+                continue;
+            }
+
+            convOffsets[l++] = i;
+            if (node1Nrs.length < i + count) {
+                int size = Math.max(i + count, 2*node1Nrs.length);
+                node1Nrs = Arrays.copyOf(node1Nrs, size);
+                node2Nrs = Arrays.copyOf(node2Nrs, size);
+                heights1 = Arrays.copyOf(heights1, size);
+                heights2 = Arrays.copyOf(heights2, size);
+                startSites = Arrays.copyOf(startSites, size);
+                endSites = Arrays.copyOf(endSites, size);
+                metaDataBottom = Arrays.copyOf(metaDataBottom, size);
+                metaDataMiddle = Arrays.copyOf(metaDataMiddle, size);
+                metaDataTop = Arrays.copyOf(metaDataTop, size);
+            }
+
+            for (int c=0; c<count; c++, i++) {
+                node1Nrs[i] = in.readInt();
+                node2Nrs[i] = in.readInt();
+                heights1[i] = in.readDouble();
+                heights2[i] = in.readDouble();
+                startSites[i] = in.readInt();
+                endSites[i] = in.readInt();
+                metaDataBottom[i] = null;
+                metaDataMiddle[i] = null;
+                metaDataTop[i] = null;
+            }
+        }
+        convOffsets[l] = i;
+        convCount = i;
+
+        return sampleNr;
+    }
+
+    /**
+     * @return true if the record last read using read() included the
+     * clonal frame topology, so could be read without its predecessors.
+     */
+    public boolean readIncludedTopology() {
+        return readIncludedTopology;
+    }
+
+    /**
+     * @return number of clonal frame nodes recorded.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return total number of conversions recorded.
+     */
+    public int getConvCount() {
+        return convCount;
+    }
+
+    /**
+     * @return rough estimate of the heap occupied by the snapshot's
+     * arrays, in bytes.  Metadata strings are not included.
+     */
+    public long getMemoryEstimate() {
+        return 128 + 24L*heights.length + 4L*convOffsets.length
+                + 56L*node1Nrs.length;
+    }
+}
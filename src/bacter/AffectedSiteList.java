@@ -19,12 +19,12 @@ public class AffectedSiteList {
     public Map<Conversion, Integer> affectedSiteCount;
     public Map<Conversion, Double> affectedSiteFraction;
 
-    ACGEventList acgEventList;
+    ACGEventIndex eventIndex;
 
     public AffectedSiteList(ConversionGraph acg) {
         this.acg = acg;
 
-        acgEventList = new ACGEventList(acg);
+        eventIndex = acg.getEventIndex();
         affectedSites = new HashMap<>();
         affectedSiteCount = new HashMap<>();
         affectedSiteFraction = new HashMap<>();
@@ -38,27 +38,30 @@ public class AffectedSiteList {
 
         int leavesSeen = 0;
         boolean mrcaReached = false;
-        for (ACGEventList.Event event : acgEventList.getACGEvents()) {
+        for (int i=0; i<eventIndex.getEventCount(); i++) {
+            ACGEventList.EventType eventType = eventIndex.getType(i);
+            Node eventNode = eventIndex.getNode(i);
+            Conversion eventConv = eventIndex.getConversion(i);
 
             if (mrcaReached) {
-                if (event.type == ACGEventList.EventType.CONV_DEPART) {
-                    affectedSites.put(event.conversion, new ArrayList<>());
-                    affectedSiteCount.put(event.conversion, 0);
-                    affectedSiteFraction.put(event.conversion, 0.0);
+                if (eventType == ACGEventList.EventType.CONV_DEPART) {
+                    affectedSites.put(eventConv, new ArrayList<>());
+                    affectedSiteCount.put(eventConv, 0);
+                    affectedSiteFraction.put(eventConv, 0.0);
                 }
 
                 continue;
             }
 
-            switch (event.type) {
+            switch (eventType) {
                 case CF_LEAF:
-                    activeCFNodes.put(event.node, getLeafAncestralSites());
+                    activeCFNodes.put(eventNode, getLeafAncestralSites());
                     leavesSeen += 1;
                     break;
 
                 case CF_COALESCENCE:
-                    Node node1 = event.node.getLeft();
-                    Node node2 = event.node.getRight();
+                    Node node1 = eventNode.getLeft();
+                    Node node2 = eventNode.getRight();
 
                     ancestralSitesCF = new HashMap<>();
                     for (Locus locus : acg.getConvertibleLoci()) {
@@ -69,7 +72,7 @@ public class AffectedSiteList {
 
                     activeCFNodes.remove(node1);
                     activeCFNodes.remove(node2);
-                    activeCFNodes.put(event.node, ancestralSitesCF);
+                    activeCFNodes.put(eventNode, ancestralSitesCF);
 
                     if (leavesSeen == acg.getLeafNodeCount() && haveReachedAllMRCAs(activeCFNodes, activeConversions))
                         mrcaReached = true;
@@ -79,26 +82,26 @@ public class AffectedSiteList {
                 case CONV_DEPART:
                     List<Integer> inside = new ArrayList<>();
                     List<Integer> outside = new ArrayList<>();
-                    IntRanges.partitionRanges(activeCFNodes.get(event.node).get(event.conversion.getLocus()),
-                            event.conversion.getStartSite(),
-                            event.conversion.getEndSite() + 1,
+                    IntRanges.partitionRanges(activeCFNodes.get(eventNode).get(eventConv.getLocus()),
+                            eventConv.getStartSite(),
+                            eventConv.getEndSite() + 1,
                             inside, outside);
 
-                    affectedSites.put(event.conversion, inside);
-                    affectedSiteCount.put(event.conversion, IntRanges.getTotalSites(inside));
-                    affectedSiteFraction.put(event.conversion,
-                            IntRanges.getTotalSites(inside) / (double) event.conversion.getSiteCount());
-                    activeCFNodes.get(event.node).put(
-                            event.conversion.getLocus(), outside);
-                    activeConversions.get(event.conversion.locus).add(event.conversion);
+                    affectedSites.put(eventConv, inside);
+                    affectedSiteCount.put(eventConv, IntRanges.getTotalSites(inside));
+                    affectedSiteFraction.put(eventConv,
+                            IntRanges.getTotalSites(inside) / (double) eventConv.getSiteCount());
+                    activeCFNodes.get(eventNode).put(
+                            eventConv.getLocus(), outside);
+                    activeConversions.get(eventConv.locus).add(eventConv);
 
                     break;
 
                 case CONV_ARRIVE:
-                    activeCFNodes.get(event.node).put(event.conversion.getLocus(),
-                            IntRanges.getUnion(affectedSites.get(event.conversion),
-                                    activeCFNodes.get(event.node).get(event.conversion.getLocus())));
-                    activeConversions.get(event.conversion.getLocus()).remove(event.conversion);
+                    activeCFNodes.get(eventNode).put(eventConv.getLocus(),
+                            IntRanges.getUnion(affectedSites.get(eventConv),
+                                    activeCFNodes.get(eventNode).get(eventConv.getLocus())));
+                    activeConversions.get(eventConv.getLocus()).remove(eventConv);
 
                     if (leavesSeen == acg.getLeafNodeCount() && haveReachedAllMRCAs(activeCFNodes, activeConversions))
                         mrcaReached = true;
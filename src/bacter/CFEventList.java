@@ -105,6 +105,21 @@ public class CFEventList {
     private final List<Event> events;
     private boolean dirty;
 
+    /**
+     * Node numbers of the lineages present in each interval between
+     * consecutive events, stored end to end.  The lineages of the
+     * interval above event i occupy positions lineageOffsets[i] to
+     * lineageOffsets[i+1]-1.  Built on demand, as only simulation and
+     * edge creation require them.
+     */
+    private int[] lineageOffsets = new int[0], lineageNrs = new int[0];
+
+    /**
+     * Total clonal frame length below each event.
+     */
+    private double[] lengthsBelow = new double[0];
+    private boolean lineagesDirty = true;
+
     public CFEventList(ConversionGraph acg) {
         this.acg = acg;
         
@@ -130,6 +145,140 @@ public class CFEventList {
      */
     public void makeDirty() {
         dirty = true;
+        lineagesDirty = true;
+    }
+
+    /**
+     * Determine the interval containing the given time.
+     *
+     * @param t time
+     * @return index of the last event (other than the first) whose height
+     * is less than t, or 0 if there is no such event
+     */
+    public int getIntervalIndex(double t) {
+        updateEvents();
+
+        int lo = 0, hi = events.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (events.get(mid).t < t)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * @return total length of clonal frame edges
+     */
+    public double getClonalFrameLength() {
+        updateLineages();
+
+        return lengthsBelow[lengthsBelow.length - 1];
+    }
+
+    /**
+     * @param eventIdx index of event
+     * @return total length of clonal frame edges below this event
+     */
+    public double getLengthBelow(int eventIdx) {
+        updateLineages();
+
+        return lengthsBelow[eventIdx];
+    }
+
+    /**
+     * Locate the point lying the given distance along the clonal frame,
+     * when the intervals between events are visited in order of
+     * increasing age.
+     *
+     * @param length distance along clonal frame
+     * @return index of the event at the base of the interval containing
+     * the point
+     */
+    public int getIntervalIndexAtLength(double length) {
+        updateLineages();
+
+        int lo = 0, hi = events.size() - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lengthsBelow[mid] <= length)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Retrieve one of the clonal frame lineages present in the interval
+     * above the given event.  The order of lineages within an interval
+     * is arbitrary but fixed until the clonal frame next changes.
+     *
+     * @param eventIdx index of event
+     * @param k index of lineage, less than the event's lineage count
+     * @return node at the base of the lineage
+     */
+    public Node getLineage(int eventIdx, int k) {
+        updateLineages();
+
+        return acg.getNode(lineageNrs[lineageOffsets[eventIdx] + k]);
+    }
+
+    /**
+     * Assemble the lineages present in each interval and the cumulative
+     * clonal frame lengths, maintaining the current lineages in an array
+     * from which nodes are removed by swapping in the last element.
+     */
+    private void updateLineages() {
+        updateEvents();
+
+        if (!lineagesDirty)
+            return;
+
+        int nEvents = events.size();
+        if (lineageOffsets.length != nEvents + 1) {
+            lineageOffsets = new int[nEvents + 1];
+            lengthsBelow = new double[nEvents];
+        }
+
+        int total = 0;
+        for (Event event : events)
+            total += event.lineages;
+        if (lineageNrs.length < total)
+            lineageNrs = new int[total];
+
+        int[] active = new int[acg.getLeafNodeCount()];
+        int[] activeIdx = new int[acg.getNodeCount()];
+        int k = 0;
+
+        for (int i=0; i<nEvents; i++) {
+            Event event = events.get(i);
+
+            if (event.type == EventType.COALESCENCE) {
+                for (Node child : event.node.getChildren()) {
+                    int idx = activeIdx[child.getNr()];
+                    k -= 1;
+                    active[idx] = active[k];
+                    activeIdx[active[idx]] = idx;
+                }
+            }
+            active[k] = event.node.getNr();
+            activeIdx[active[k]] = k;
+            k += 1;
+
+            lineageOffsets[i+1] = lineageOffsets[i] + k;
+            System.arraycopy(active, 0, lineageNrs, lineageOffsets[i], k);
+
+            if (i > 0)
+                lengthsBelow[i] = lengthsBelow[i-1]
+                        + (event.t - events.get(i-1).t)*events.get(i-1).lineages;
+        }
+
+        lineagesDirty = false;
     }
 
     /**
@@ -67,6 +67,20 @@ public class Conversion {
      */
     public int acgIndex;
 
+    /**
+     * Bookkeeping used by ConversionEdgeIndex.
+     */
+    Object edgeIndexEpoch;
+    int indexedNode1Nr = -1, indexedNode2Nr = -1;
+    boolean edgeIndexMember, edgeIndexPending;
+
+    /**
+     * Bookkeeping used by ACGEventIndex.
+     */
+    Object eventIndexEpoch;
+    int departEventPos = -1, arriveEventPos = -1;
+    boolean eventIndexMember, eventIndexPending;
+
     public Conversion() { }
 
     /**
@@ -146,6 +160,8 @@ public class Conversion {
     public void setStartSite(int startSite) {
         startEditing();
         this.startSite = startSite;
+        if (acg != null)
+            acg.startSiteModified(this);
     }
     
     /**
@@ -282,7 +298,7 @@ public class Conversion {
      */
     public void startEditing() {
         if (acg != null)
-            acg.startEditing(null);
+            acg.startEditingConversion(this);
     }
     
     /**
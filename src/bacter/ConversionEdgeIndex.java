@@ -0,0 +1,232 @@
+package bacter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Index from clonal frame edges (identified by the number of the node
+ * at the base of the edge) to the conversions departing from and arriving
+ * on that edge.  Each edge list is ordered by attachment height, from
+ * youngest to oldest.
+ *
+ * The index is updated lazily: changes to conversions are queued and
+ * applied the next time an edge list is requested, so that conversions
+ * may be modified freely while iterating over an edge list.  Only the
+ * edge lists touched by the queued changes are updated or re-sorted.
+ */
+class ConversionEdgeIndex {
+
+    private List<Conversion>[] departures, arrivals;
+    private boolean[] departuresSorted, arrivalsSorted;
+
+    private final List<Conversion> pending = new ArrayList<>();
+    private int memberCount = 0;
+    private boolean valid = false;
+
+    /**
+     * Token identifying the current generation of the index.  Conversion
+     * bookkeeping fields are only meaningful when the conversion's
+     * token matches this one, allowing stale information left on
+     * conversions discarded by a previous generation to be ignored.
+     */
+    private Object epoch = new Object();
+
+    /**
+     * @return true if index is valid for a graph having the given number
+     * of nodes and conversions.
+     */
+    public boolean isValid(int nodeCount, int convCount) {
+        return valid && departures.length == nodeCount && memberCount == convCount;
+    }
+
+    /**
+     * Mark index as requiring reconstruction.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Reconstruct the index from scratch.
+     *
+     * @param nodeCount number of nodes in the clonal frame
+     * @param convLists lists of conversions belonging to the graph
+     */
+    @SuppressWarnings("unchecked")
+    public void rebuild(int nodeCount, Collection<ConversionList> convLists) {
+        if (departures == null || departures.length != nodeCount) {
+            departures = new List[nodeCount];
+            arrivals = new List[nodeCount];
+            departuresSorted = new boolean[nodeCount];
+            arrivalsSorted = new boolean[nodeCount];
+            for (int i=0; i<nodeCount; i++) {
+                departures[i] = new ArrayList<>();
+                arrivals[i] = new ArrayList<>();
+            }
+        } else {
+            for (int i=0; i<nodeCount; i++) {
+                departures[i].clear();
+                arrivals[i].clear();
+            }
+        }
+
+        for (Conversion conv : pending)
+            conv.edgeIndexPending = false;
+        pending.clear();
+
+        memberCount = 0;
+        valid = true;
+        epoch = new Object();
+
+        for (List<Conversion> convList : convLists)
+            for (Conversion conv : convList)
+                add(conv);
+
+        update();
+    }
+
+    /**
+     * Add conversion to index.
+     *
+     * @param conv conversion belonging to graph
+     */
+    public void add(Conversion conv) {
+        if (!valid)
+            return;
+
+        if (conv.edgeIndexEpoch != epoch) {
+            conv.edgeIndexEpoch = epoch;
+            conv.edgeIndexMember = false;
+            conv.edgeIndexPending = false;
+            conv.indexedNode1Nr = -1;
+            conv.indexedNode2Nr = -1;
+        }
+
+        if (!conv.edgeIndexMember) {
+            conv.edgeIndexMember = true;
+            memberCount += 1;
+        }
+        markModified(conv);
+    }
+
+    /**
+     * Remove conversion from index.
+     *
+     * @param conv conversion no longer belonging to graph
+     */
+    public void remove(Conversion conv) {
+        if (!valid || conv.edgeIndexEpoch != epoch)
+            return;
+
+        if (conv.edgeIndexMember) {
+            conv.edgeIndexMember = false;
+            memberCount -= 1;
+        }
+        markModified(conv);
+    }
+
+    /**
+     * Queue conversion for re-indexing following a change to its
+     * attachment nodes or heights.
+     *
+     * @param conv modified conversion
+     */
+    public void markModified(Conversion conv) {
+        if (!valid || conv.edgeIndexEpoch != epoch || conv.edgeIndexPending)
+            return;
+
+        conv.edgeIndexPending = true;
+        pending.add(conv);
+    }
+
+    /**
+     * Apply all queued changes.
+     */
+    public void update() {
+        for (Conversion conv : pending) {
+            conv.edgeIndexPending = false;
+
+            int nr1 = -1, nr2 = -1;
+            if (conv.edgeIndexMember && conv.node1 != null && conv.node2 != null) {
+                nr1 = conv.node1.getNr();
+                nr2 = conv.node2.getNr();
+            }
+
+            if (nr1 != conv.indexedNode1Nr) {
+                if (conv.indexedNode1Nr >= 0)
+                    removeIdentical(departures[conv.indexedNode1Nr], conv);
+                if (nr1 >= 0)
+                    departures[nr1].add(conv);
+                conv.indexedNode1Nr = nr1;
+            }
+            if (nr1 >= 0)
+                departuresSorted[nr1] = false;
+
+            if (nr2 != conv.indexedNode2Nr) {
+                if (conv.indexedNode2Nr >= 0)
+                    removeIdentical(arrivals[conv.indexedNode2Nr], conv);
+                if (nr2 >= 0)
+                    arrivals[nr2].add(conv);
+                conv.indexedNode2Nr = nr2;
+            }
+            if (nr2 >= 0)
+                arrivalsSorted[nr2] = false;
+        }
+
+        pending.clear();
+    }
+
+    private static void removeIdentical(List<Conversion> convList, Conversion conv) {
+        for (int i=convList.size()-1; i>=0; i--) {
+            if (convList.get(i) == conv) {
+                convList.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param nodeNr number of node at base of edge
+     * @return conversions departing from edge, ordered by height1
+     */
+    public List<Conversion> getDepartures(int nodeNr) {
+        List<Conversion> convList = departures[nodeNr];
+        if (!departuresSorted[nodeNr]) {
+            insertionSort(convList, true);
+            departuresSorted[nodeNr] = true;
+        }
+        return convList;
+    }
+
+    /**
+     * @param nodeNr number of node at base of edge
+     * @return conversions arriving on edge, ordered by height2
+     */
+    public List<Conversion> getArrivals(int nodeNr) {
+        List<Conversion> convList = arrivals[nodeNr];
+        if (!arrivalsSorted[nodeNr]) {
+            insertionSort(convList, false);
+            arrivalsSorted[nodeNr] = true;
+        }
+        return convList;
+    }
+
+    /**
+     * Edge lists are short and usually nearly sorted, so insertion sort
+     * is both fast and allocation-free here.
+     */
+    private static void insertionSort(List<Conversion> convList, boolean byHeight1) {
+        for (int i=1; i<convList.size(); i++) {
+            Conversion conv = convList.get(i);
+            double height = byHeight1 ? conv.height1 : conv.height2;
+
+            int j = i - 1;
+            while (j >= 0 && (byHeight1 ? convList.get(j).height1 : convList.get(j).height2) > height) {
+                convList.set(j + 1, convList.get(j));
+                j -= 1;
+            }
+            convList.set(j + 1, conv);
+        }
+    }
+}
@@ -16,9 +16,7 @@
  */
 package bacter;
 
-import bacter.util.parsers.ExtendedNewickBaseVisitor;
-import bacter.util.parsers.ExtendedNewickLexer;
-import bacter.util.parsers.ExtendedNewickParser;
+import bacter.util.parsers.ExtendedNewickReader;
 import beast.base.core.BEASTObject;
 import beast.base.core.Citation;
 import beast.base.core.Description;
@@ -37,10 +35,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -76,8 +70,39 @@ public class ConversionGraph extends Tree {
     /**
      * List of recombinations on graph.
      */
-    protected Map<Locus, List<Conversion>> convs;
-    protected Map<Locus, List<Conversion>> storedConvs;
+    protected Map<Locus, ConversionList> convs;
+
+    /**
+     * Conversion edits made since the last call to store().
+     */
+    protected ConversionJournal journal = new ConversionJournal();
+
+    /**
+     * Conversions attached to each clonal frame edge.
+     */
+    protected ConversionEdgeIndex edgeIndex = new ConversionEdgeIndex();
+
+    /**
+     * Height-ordered index of clonal frame and conversion events.
+     */
+    protected ACGEventIndex eventIndex = new ACGEventIndex(this);
+
+    /**
+     * Reader and writer used for extended Newick conversion, created on
+     * first use.
+     */
+    protected ExtendedNewickReader newickReader = null;
+    protected ExtendedNewickWriter newickWriter = null;
+
+    /**
+     * Clonal frame dirtiness tracking.  cfEdited is set whenever the
+     * clonal frame may have been modified since the last call to store(),
+     * restore() or setEverythingDirty(false).  The nodes actually marked
+     * dirty are then identified at most once per modification.
+     */
+    protected boolean cfEdited = true;
+    protected boolean dirtyCFNodesKnown = false;
+    protected final List<Node> dirtyCFNodes = new ArrayList<>();
     protected final static List<Conversion> emptyConvList = new ArrayList<>();
 
     /**
@@ -94,7 +119,6 @@ public class ConversionGraph extends Tree {
     	
 
         convs = new HashMap<>();
-        storedConvs = new HashMap<>();
 
         if (lociInput.get().isEmpty())
                 throw new RuntimeException("Must specify at least one locus " +
@@ -108,8 +132,7 @@ public class ConversionGraph extends Tree {
 
         totalConvertibleSequenceLength = 0;
         for (Locus locus : convertibleLoci) {
-            convs.put(locus, new ArrayList<>());
-            storedConvs.put(locus, new ArrayList<>());
+            convs.put(locus, new ConversionList());
             totalConvertibleSequenceLength += locus.getSiteCount();
         }
 
@@ -178,7 +201,7 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to add
      */
     public void addConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversions();
         
         conv.setConversionGraph(this);
 
@@ -187,12 +210,9 @@ public class ConversionGraph extends Tree {
         if (!locus.conversionsAllowed())
             throw new IllegalStateException("Tried to add a conversion to a conversion-free locus.");
 
-        int i;
-        for (i=0; i<convs.get(locus).size(); i++)
-            if (convs.get(locus).get(i).startSite>conv.startSite)
-                break;
-        
-        convs.get(locus).add(i, conv);
+        convs.get(locus).addSorted(conv);
+        journal.recordAddition(conv, locus);
+        conversionAdded(conv);
     }
     
     /**
@@ -201,14 +221,88 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to remove.
      */
     public void deleteConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversions();
 
         if (!conv.getLocus().conversionsAllowed())
             throw new IllegalStateException("Tried to remove a conversion from a conversion-free locus.");
 
-        convs.get(conv.getLocus()).remove(conv);
+        ConversionList convList = convs.get(conv.getLocus());
+        int index = convList.indexOf(conv);
+        if (index >= 0) {
+            convList.remove(index);
+            journal.recordDeletion(conv, conv.getLocus(), index);
+            conversionRemoved(conv);
+        }
+    }
+
+    /**
+     * Prepare for modification of the given conversion, recording its
+     * current state so that the modification can be undone by restore().
+     * Called by Conversion prior to any change to its fields.
+     *
+     * @param conv conversion about to be modified
+     */
+    public void startEditingConversion(Conversion conv) {
+        journal.recordModification(conv);
+        edgeIndex.markModified(conv);
+        eventIndex.markModified(conv);
+        startEditingConversions();
+    }
+
+    /**
+     * Update conversion indices following addition of a conversion.
+     *
+     * @param conv conversion added to graph
+     */
+    void conversionAdded(Conversion conv) {
+        edgeIndex.add(conv);
+        eventIndex.add(conv);
+    }
+
+    /**
+     * Update conversion indices following removal of a conversion.
+     *
+     * @param conv conversion removed from graph
+     */
+    void conversionRemoved(Conversion conv) {
+        edgeIndex.remove(conv);
+        eventIndex.remove(conv);
+    }
+
+    /**
+     * Update conversion indices following the restoration of a
+     * conversion's fields by restore().  The indices may have been
+     * brought up to date with the rejected proposal in the meantime, so
+     * the conversion is queued for re-indexing on both.
+     *
+     * @param conv conversion whose fields have been restored
+     */
+    void conversionRestored(Conversion conv) {
+        edgeIndex.markModified(conv);
+        eventIndex.markModified(conv);
+    }
+
+    /**
+     * Mark conversion indices for reconstruction following wholesale
+     * replacement of the conversion lists.
+     */
+    void conversionsReplaced() {
+        edgeIndex.invalidate();
+        eventIndex.invalidate();
     }
     
+    /**
+     * Called by Conversion following a change to its start site, so that
+     * the list containing it can be updated.
+     *
+     * @param conv modified conversion
+     */
+    void startSiteModified(Conversion conv) {
+        ConversionList convList = convs.get(conv.getLocus());
+        if (convList != null)
+            convList.startSiteModified(conv);
+    }
+
     /**
      * Retrieve list of conversions associated with given locus.
      *
@@ -268,6 +362,85 @@ public class ConversionGraph extends Tree {
         return index;
     }
 
+    /**
+     * Obtain conversion having the given index when conversions are
+     * listed in order of alignment and start site.  This is the inverse
+     * of getConversionIndex().
+     *
+     * @param index index of conversion
+     * @return conversion
+     */
+    public Conversion getConversion(int index) {
+        for (Locus locus : getConvertibleLoci()) {
+            if (index < getConvCount(locus))
+                return getConversions(locus).get(index);
+            else
+                index -= getConvCount(locus);
+        }
+
+        throw new IndexOutOfBoundsException("Conversion index out of range.");
+    }
+
+    /**
+     * Obtain conversions departing from the clonal frame edge above
+     * the given node, ordered from youngest to oldest departure.
+     *
+     * The returned list is owned by the graph.  Conversions in the list
+     * may be modified while iterating over it, but such changes will only
+     * be reflected in lists obtained by subsequent calls.
+     *
+     * @param node node at base of edge
+     * @return list of conversions
+     */
+    public List<Conversion> getDepartingConversions(Node node) {
+        updateEdgeIndex();
+        return edgeIndex.getDepartures(node.getNr());
+    }
+
+    /**
+     * Obtain conversions arriving on the clonal frame edge above the
+     * given node, ordered from youngest to oldest arrival.  The same
+     * caveats as for getDepartingConversions() apply.
+     *
+     * @param node node at base of edge
+     * @return list of conversions
+     */
+    public List<Conversion> getArrivingConversions(Node node) {
+        updateEdgeIndex();
+        return edgeIndex.getArrivals(node.getNr());
+    }
+
+    /**
+     * Obtain the height-ordered index of clonal frame and conversion
+     * events making up this ACG.  Safe to call concurrently from
+     * multiple likelihood evaluations, provided the graph is not being
+     * modified at the same time.
+     *
+     * @return event index
+     */
+    public ACGEventIndex getEventIndex() {
+        synchronized (eventIndex) {
+            if (eventIndex.isValid(getNodeCount(), getTotalConvCount())) {
+                if (state == null)
+                    eventIndex.markAllCFNodesModified();
+                else
+                    eventIndex.markCFNodesModified(getDirtyCFNodes());
+
+                eventIndex.update();
+            } else
+                eventIndex.rebuild(convs.values());
+        }
+
+        return eventIndex;
+    }
+
+    private void updateEdgeIndex() {
+        if (edgeIndex.isValid(getNodeCount(), getTotalConvCount()))
+            edgeIndex.update();
+        else
+            edgeIndex.rebuild(getNodeCount(), convs.values());
+    }
+
     /**
      * Get list of contiguous regions having fixed marginal trees
      * associated with given locus.
@@ -313,6 +486,15 @@ public class ConversionGraph extends Tree {
         return cfEventList.getCFEvents();
     }
 
+    /**
+     * @return object maintaining the events which make up the clonal
+     * frame, which also supports lookup of the lineages present at any
+     * time.
+     */
+    public CFEventList getCFEventList() {
+        return cfEventList;
+    }
+
     /**
      * @return Total length of all edges in clonal frame.
      */
@@ -418,6 +600,8 @@ public class ConversionGraph extends Tree {
         Matcher convMatcher = convPattern.matcher(str);
         
         // Process recombinations
+        journal.recordBulkEdit(convs);
+        conversionsReplaced();
         for (Locus locus : convertibleLoci)
             convs.get(locus).clear();
 
@@ -473,12 +657,11 @@ public class ConversionGraph extends Tree {
         acg.m_taxonset.setValue(m_taxonset.get(), acg);
         
         acg.convs = new HashMap<>();
-        acg.storedConvs = new HashMap<>();
 
         acg.loci = loci;
         acg.convertibleLoci = convertibleLoci;
         for (Locus locus : convertibleLoci) {
-            acg.convs.put(locus, new ArrayList<>());
+            acg.convs.put(locus, new ConversionList());
             for (Conversion conv : convs.get(locus)) {
                 Conversion convCopy = conv.getCopy();
                 convCopy.setConversionGraph(acg);
@@ -486,15 +669,6 @@ public class ConversionGraph extends Tree {
                 convCopy.setNode2(acg.m_nodes[conv.getNode2().getNr()]);
                 acg.convs.get(locus).add(convCopy);
             }
-
-            acg.storedConvs.put(locus, new ArrayList<>());
-            for (Conversion conv : storedConvs.get(locus)) {
-                Conversion convCopy = conv.getCopy();
-                convCopy.setConversionGraph(acg);
-                convCopy.setNode1(acg.m_nodes[conv.getNode1().getNr()]);
-                convCopy.setNode2(acg.m_nodes[conv.getNode2().getNr()]);
-                acg.storedConvs.get(locus).add(convCopy);
-            }
         }
 
         return acg;
@@ -512,11 +686,11 @@ public class ConversionGraph extends Tree {
             loci = acg.loci;
             convertibleLoci = acg.convertibleLoci;
 
+            journal.recordBulkEdit(convs);
+            conversionsReplaced();
             convs.clear();
-            storedConvs.clear();
             for (Locus locus : convertibleLoci) {
-                convs.put(locus, new ArrayList<>());
-                storedConvs.put(locus, new ArrayList<>());
+                convs.put(locus, new ConversionList());
                 for (Conversion conv : acg.getConversions(locus)) {
                     Conversion convCopy = conv.getCopy();
                     convCopy.setConversionGraph(this);
@@ -529,6 +703,8 @@ public class ConversionGraph extends Tree {
             if (cfEventList == null)
                 cfEventList = new CFEventList(this);
 
+            if (regionLists == null)
+                regionLists = new HashMap<>();
             regionLists.clear();
             for (Locus locus : loci) {
                 regionLists.put(locus, new RegionList(this, locus));
@@ -551,7 +727,119 @@ public class ConversionGraph extends Tree {
     public void assignFromFragile(StateNode other) {
         generalAssignFrom(other, true);
     }
-    
+
+    /**
+     * Configure this ACG to match a previously captured snapshot.  Intended
+     * for graphs used only to format logged states away from the MCMC
+     * thread: the graph's nodes are reused where possible but the stored
+     * state is not updated.
+     *
+     * @param snapshot snapshot of ACG state
+     */
+    public void assignFromSnapshot(ACGSnapshot snapshot) {
+        loci = snapshot.loci;
+        convertibleLoci = snapshot.convertibleLoci;
+        taxaTranslationOffset = snapshot.taxaTranslationOffset;
+
+        if (m_nodes == null || m_nodes.length != snapshot.nodeCount) {
+            m_nodes = new Node[snapshot.nodeCount];
+            for (int nr=0; nr<snapshot.nodeCount; nr++) {
+                m_nodes[nr] = new SnapshotNode();
+                m_nodes[nr].setNr(nr);
+                m_nodes[nr].setID(String.valueOf(nr + taxaTranslationOffset));
+            }
+        }
+
+        for (int nr=0; nr<snapshot.nodeCount; nr++) {
+            Node node = m_nodes[nr];
+            node.removeAllChildren(false);
+            node.setHeight(snapshot.heights[nr]);
+            ((SnapshotNode)node).newickMetaData = snapshot.nodeMetaData[nr];
+        }
+
+        for (int nr=0; nr<snapshot.nodeCount; nr++) {
+            if (snapshot.leftChildNrs[nr] >= 0) {
+                m_nodes[nr].addChild(m_nodes[snapshot.leftChildNrs[nr]]);
+                m_nodes[nr].addChild(m_nodes[snapshot.rightChildNrs[nr]]);
+            }
+        }
+
+        nodeCount = snapshot.nodeCount;
+        leafNodeCount = snapshot.leafNodeCount;
+        internalNodeCount = nodeCount - leafNodeCount;
+        root = m_nodes[snapshot.rootNr];
+        root.setParent(null);
+
+        if (convs == null)
+            convs = new HashMap<>();
+
+        journal.recordBulkEdit(convs);
+        conversionsReplaced();
+        convs.clear();
+        for (int l=0; l<convertibleLoci.size(); l++) {
+            Locus locus = convertibleLoci.get(l);
+            ConversionList convList = new ConversionList();
+            convs.put(locus, convList);
+
+            for (int i=snapshot.convOffsets[l]; i<snapshot.convOffsets[l+1]; i++) {
+                Conversion conv = new Conversion(
+                        m_nodes[snapshot.node1Nrs[i]], snapshot.heights1[i],
+                        m_nodes[snapshot.node2Nrs[i]], snapshot.heights2[i],
+                        snapshot.startSites[i], snapshot.endSites[i], this, locus);
+                conv.setConversionGraph(this);
+                conv.newickMetaDataBottom = snapshot.metaDataBottom[i];
+                conv.newickMetaDataMiddle = snapshot.metaDataMiddle[i];
+                conv.newickMetaDataTop = snapshot.metaDataTop[i];
+                convList.add(conv);
+            }
+        }
+
+        startEditing(null);
+    }
+
+    /**
+     * Replace the conversions of this ACG with those recorded in a
+     * snapshot of an ACG having the same loci and an identically numbered
+     * clonal frame.  The clonal frame itself is left untouched.  Unlike
+     * assignFromSnapshot(), the replacement is journaled, so may be
+     * applied to a graph forming part of the MCMC state and is undone by
+     * restore().
+     *
+     * @param snapshot snapshot of ACG state
+     */
+    public void assignConversionsFromSnapshot(ACGSnapshot snapshot) {
+        startEditingConversions();
+
+        journal.recordBulkEdit(convs);
+        conversionsReplaced();
+        for (int l=0; l<convertibleLoci.size(); l++) {
+            Locus locus = convertibleLoci.get(l);
+            ConversionList convList = convs.get(locus);
+            convList.clear();
+
+            for (int i=snapshot.convOffsets[l]; i<snapshot.convOffsets[l+1]; i++) {
+                Conversion conv = new Conversion(
+                        m_nodes[snapshot.node1Nrs[i]], snapshot.heights1[i],
+                        m_nodes[snapshot.node2Nrs[i]], snapshot.heights2[i],
+                        snapshot.startSites[i], snapshot.endSites[i], this, locus);
+                conv.setConversionGraph(this);
+                convList.add(conv);
+            }
+        }
+    }
+
+    /**
+     * Clonal frame node carrying Newick metadata recorded in a snapshot.
+     */
+    private static class SnapshotNode extends Node {
+        String newickMetaData = "";
+
+        @Override
+        public String getNewickMetaData() {
+            return newickMetaData;
+        }
+    }
+
     /**
      * Obtain extended Newick representation of ACG.  Includes Nexus metadata
      * on hybrid leaf nodes describing the alignment sites affected by the
@@ -576,8 +864,23 @@ public class ConversionGraph extends Tree {
         if (computeAffectedSites)
             asList = new AffectedSiteList(this);
 
-        return extendedNewickTraverse(root, asList, false) + ";";
+        return getNewickWriter().write(this, asList, false);
+    }
 
+    /**
+     * Append extended Newick representation of ACG to a StringBuilder,
+     * optionally including Nexus metadata on hybrid leaf nodes describing
+     * the alignment sites affected by the conversion event.
+     *
+     * @param sb destination
+     * @param computeAffectedSites if true, compute affected sites
+     */
+    public void appendExtendedNewick(StringBuilder sb, boolean computeAffectedSites) {
+        AffectedSiteList asList = null;
+        if (computeAffectedSites)
+            asList = new AffectedSiteList(this);
+
+        getNewickWriter().write(this, asList, false, sb);
     }
 
     /**
@@ -589,135 +892,21 @@ public class ConversionGraph extends Tree {
      * @return Extended Newick string.
      */
     public String getTrimmedExtendedNewick() {
-
-        return extendedNewickTraverse(root, null, true) + ";";
+        return getNewickWriter().write(this, null, true);
     }
-    
-    private String extendedNewickTraverse(Node node,
-                                          AffectedSiteList asList,
-                                          boolean intraCFOnly) {
-        StringBuilder sb = new StringBuilder();
-        
-        // Determine sequence of events along this node.
-        class Event {
-            boolean isArrival;
-            double time;
-            Conversion conv;
-            
-            public Event(boolean isArrival, double time, Conversion conv) {
-                this.isArrival = isArrival;
-                this.time = time;
-                this.conv = conv;
-            }
-        }
-        List<Event> events = new ArrayList<>();
-        for (Locus locus : getConvertibleLoci()) {
-            for (Conversion conv : getConversions(locus)) {
-                if (intraCFOnly && conv.node2.isRoot())
-                    continue;
-
-                if (conv.node1 == node)
-                    events.add(new Event(false, conv.getHeight1(), conv));
-                if (conv.node2 == node)
-                    events.add(new Event(true, conv.getHeight2(), conv));
-            }
-        }
-        
-        // Sort events from oldest to youngest.
-        events.sort((Event e1, Event e2) -> {
-            if (e1.time > e2.time)
-                return -1;
-            else
-                return 1;
-        });
-
-        // Process events.
-        
-        int cursor = 0;
-        
-        double lastTime;
-        if (node.isRoot())
-            lastTime = Double.POSITIVE_INFINITY;
-        else
-            lastTime = node.getParent().getHeight();
-
-        for (Event event : events) {
-
-            double thisLength;
-            if (Double.isInfinite(lastTime))
-                thisLength = 0.0;
-            else
-                thisLength = lastTime - event.time;
-
-            if (event.isArrival) {
-                String meta =  String.format(Locale.ENGLISH,
-                        "[&conv=%d, region={%d,%d}, locus=\"%s\", relSize=%g",
-                        convs.get(event.conv.getLocus()).indexOf(event.conv),
-                        event.conv.getStartSite(),
-                        event.conv.getEndSite(),
-                        event.conv.getLocus().getID(),
-                        event.conv.getSiteCount()/(double)event.conv.getLocus().getSiteCount()
-                );
-
-                if (asList != null) {
-                    meta += String.format(Locale.ENGLISH,
-                            ", affectedSites=%d, uselessSiteFraction=%g",
-                            asList.affectedSiteCount.get(event.conv),
-                            1.0-asList.affectedSiteFraction.get(event.conv));
-                }
-
-                if (event.conv.newickMetaDataMiddle != null)
-                    meta += ", " + event.conv.newickMetaDataMiddle;
 
-                meta += "]";
-
-                String parentMeta;
-                if (event.conv.newickMetaDataTop != null)
-                    parentMeta = "[&" + event.conv.newickMetaDataTop + "]";
-                else
-                    parentMeta = "";
-
-                sb.insert(cursor, "(,#" + getConversionIndex(event.conv)
-                        + meta
-                        + ":" + (event.conv.height2-event.conv.height1)
-                        + ")"
-                        + parentMeta
-                        + ":" + thisLength);
-                cursor += 1;
-            } else {
-                String meta;
-                if (event.conv.newickMetaDataBottom != null)
-                    meta = "[&" + event.conv.newickMetaDataBottom + "]";
-                else
-                    meta = "";
-
-                sb.insert(cursor, "()#" + getConversionIndex(event.conv)
-                        + meta
-                        + ":" + thisLength);
-                cursor += 1;
-            }
-            
-            lastTime = event.time;
-        }
-        
-        // Process this node and its children.
+    /**
+     * @return offset added to node numbers to obtain taxon labels.
+     */
+    public int getTaxaTranslationOffset() {
+        return taxaTranslationOffset;
+    }
 
-        if (!node.isLeaf()) {
-            String subtree1 = extendedNewickTraverse(node.getChild(0), asList, intraCFOnly);
-            String subtree2 = extendedNewickTraverse(node.getChild(1), asList, intraCFOnly);
-            sb.insert(cursor, "(" + subtree1 + "," + subtree2 + ")");
-            cursor += subtree1.length() + subtree2.length() + 3;
-        }
+    private ExtendedNewickWriter getNewickWriter() {
+        if (newickWriter == null)
+            newickWriter = new ExtendedNewickWriter();
 
-        double thisLength;
-        if (Double.isInfinite(lastTime))
-            thisLength = 0.0;
-        else
-            thisLength = lastTime - node.getHeight();
-        sb.insert(cursor, (node.getNr() + taxaTranslationOffset)
-                + node.getNewickMetaData() + ":" + thisLength);
-        
-        return sb.toString();
+        return newickWriter;
     }
 
     /**
@@ -740,222 +929,36 @@ public class ConversionGraph extends Tree {
      */
     public void fromExtendedNewick(String string, boolean numbered, int nodeNumberoffset) {
 
-        // Spin up ANTLR
-        CharStream input = CharStreams.fromString(string);
-        ExtendedNewickLexer lexer = new ExtendedNewickLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        ExtendedNewickParser parser = new ExtendedNewickParser(tokens);
-        ParseTree parseTree = parser.tree();
+        if (newickReader == null)
+            newickReader = new ExtendedNewickReader();
 
         Map<String, Conversion> convIDMap = new HashMap<>();
-        Node root = new ExtendedNewickBaseVisitor<Node>() {
-
-            /**
-             * Convert branch lengths to node heights for all nodes in clade.
-             *
-             * @param node clade parent
-             * @return minimum height assigned in clade.
-             */
-            private double branchLengthsToHeights(Node node) {
-                if (node.isRoot())
-                    node.setHeight(0.0);
-                else
-                    node.setHeight(node.getParent().getHeight() - node.getHeight());
-
-                double minHeight = node.getHeight();
-
-                for (Node child : node.getChildren()) {
-                    minHeight = Math.min(minHeight, branchLengthsToHeights(child));
-                }
-
-                return minHeight;
-            }
-
-            /**
-             * Remove height offset from all nodes in clade
-             * @param node parent of clade
-             * @param offset offset to remove
-             */
-            private void removeOffset(Node node, double offset) {
-                node.setHeight(node.getHeight() - offset);
-
-                for (Node child : node.getChildren())
-                    removeOffset(child, offset);
-            }
-
-            private Node getTrueNode(Node node) {
-                if (node.isLeaf()) {
-                    assert !convIDMap.containsKey(node.getID());
-                    return node;
-                }
-
-                if (convIDMap.containsKey(node.getID()))
-                    return getTrueNode(node.getChild(0));
-
-                int hybridIdx = -1;
-                int nonHybridIdx = -1;
-                for (int i=0; i<node.getChildCount(); i++) {
-                    if (node.getChild(i).isLeaf() && convIDMap.containsKey(node.getChild(i).getID()))
-                        hybridIdx = i;
-                    else
-                        nonHybridIdx = i;
-                }
-
-                if (hybridIdx>0)
-                    return getTrueNode(node.getChild(nonHybridIdx));
-
-                return node;
-            }
-
-            /**
-             * Traverse the newly constructed tree looking for
-             * hybrid nodes and using these to set the heights of
-             * Conversion objects.
-             *
-             * @param node parent of clade
-             */
-            private void findConversionAttachments(Node node) {
-                if (convIDMap.containsKey(node.getID())) {
-                    Conversion conv = convIDMap.get(node.getID());
-                    if (node.isLeaf()) {
-                        conv.setHeight1(node.getHeight());
-                        conv.setHeight2(node.getParent().getHeight());
-                        conv.setNode2(getTrueNode(node.getParent()));
-                    } else
-                        conv.setNode1(getTrueNode(node));
-                }
-
-                for (Node child : node.getChildren())
-                    findConversionAttachments(child);
-            }
-
-            /**
-             * Remove all conversion-associated nodes, leaving only
-             * the clonal frame.
-             *
-             * @param node parent of clade
-             * @return new parent of same clade
-             */
-            private Node stripHybridNodes(Node node) {
-                Node trueNode = getTrueNode(node);
-                List<Node> trueChildren = new ArrayList<>();
-
-                for (Node child : trueNode.getChildren()) {
-                    trueChildren.add(stripHybridNodes(child));
-                }
-
-                trueNode.removeAllChildren(false);
-                for (Node trueChild : trueChildren)
-                    trueNode.addChild(trueChild);
-
-                return trueNode;
-            }
-
-            private int numberInternalNodes(Node node, int nextNr) {
-                if (node.isLeaf())
-                    return nextNr;
-
-                for (Node child : node.getChildren())
-                    nextNr = numberInternalNodes(child, nextNr);
-
-                node.setNr(nextNr);
-
-                return nextNr + 1;
-            }
-
-
-            @Override
-            public Node visitTree(ExtendedNewickParser.TreeContext ctx) {
-                Node root =  visitNode(ctx.node());
-
-                double minHeight = branchLengthsToHeights(root);
-                removeOffset(root, minHeight);
-
-                findConversionAttachments(root);
-
-                root = stripHybridNodes(root);
-                root.setParent(null);
-
-                if (!numbered)
-                    numberInternalNodes(root, root.getAllLeafNodes().size());
-
-                return root;
-            }
-
-            @Override
-            public Node visitNode(ExtendedNewickParser.NodeContext ctx) {
-                Node node = new Node();
-
-                if (ctx.post().hybrid() != null) {
-                    String convID = ctx.post().hybrid().getText();
-                    node.setID(convID);
-
-                    Conversion conv;
-                    if (convIDMap.containsKey(convID))
-                        conv = convIDMap.get(convID);
-                    else {
-                        conv = new Conversion();
-                        convIDMap.put(convID, conv);
-                    }
-
-                    if (ctx.node().isEmpty()) {
-                        String locusID;
-                        for (ExtendedNewickParser.AttribContext attribCtx : ctx.post().meta().attrib()) {
-                            switch (attribCtx.attribKey.getText()) {
-                                case "region":
-                                    conv.setStartSite(Integer.parseInt(
-                                            attribCtx.attribValue().vector().attribValue(0).getText()));
-                                    conv.setEndSite(Integer.parseInt(
-                                            attribCtx.attribValue().vector().attribValue(1).getText()));
-                                    break;
-
-                                case "locus":
-                                    locusID = attribCtx.attribValue().getText();
-                                    if (locusID.startsWith("\""))
-                                        locusID = locusID.substring(1,locusID.length()-1);
-
-                                    Locus locus = null;
-                                    for (Locus thisLocus : getConvertibleLoci()) {
-                                        if (thisLocus.getID().equals(locusID))
-                                            locus = thisLocus;
-                                    }
-
-                                    if (locus == null)
-                                        throw new IllegalArgumentException(
-                                                "Locus with ID " + locusID + " not found.");
-
-                                    conv.setLocus(locus);
-                                    break;
-
-                                default:
-                                    break;
-                            }
-                        }
-                    }
-                }
-
-                for (ExtendedNewickParser.NodeContext childCtx : ctx.node())
-                    node.addChild(visitNode(childCtx));
-
-                if (ctx.post().label() != null) {
-                    node.setID(ctx.post().label().getText());
-                    node.setNr(Integer.parseInt(ctx.post().label().getText())
-                            - nodeNumberoffset);
-                }
-
-                node.setHeight(Double.parseDouble(ctx.post().length.getText()));
-
-                return node;
-            }
-        }.visit(parseTree);
-
-        m_nodes = root.getAllChildNodesAndSelf().toArray(new Node[0]);
-        nodeCount = m_nodes.length;
-        leafNodeCount = root.getAllLeafNodes().size();
+        Node root = newickReader.parse(string, getConvertibleLoci(),
+                numbered, nodeNumberoffset, convIDMap, m_nodes);
+
+        List<Node> nodes = root.getAllChildNodesAndSelf();
+        if (m_nodes != null && m_storedNodes != null && m_nodes.length == nodes.size()) {
+            // The existing nodes have been reused, so need only be
+            // reordered.  The stored nodes are updated in place.
+            for (Node node : nodes)
+                m_nodes[node.getNr()] = node;
+
+            setRoot(root);
+            super.store();
+        } else {
+            m_nodes = nodes.toArray(new Node[0]);
+            nodeCount = m_nodes.length;
+            leafNodeCount = root.getAllLeafNodes().size();
+
+            setRoot(root);
+            initArrays();
+        }
 
-        setRoot(root);
-        initArrays();
+        if (cfEventList != null)
+            cfEventList.makeDirty();
 
+        journal.recordBulkEdit(convs);
+        conversionsReplaced();
         for (Locus locus : getConvertibleLoci())
             convs.get(locus).clear();
 
@@ -968,70 +971,140 @@ public class ConversionGraph extends Tree {
     * StateNode implementation
     */
     
+    /**
+     * Rather than copying the conversions, store() begins a new journal
+     * in which subsequent conversion edits are recorded.  These edits
+     * are then undone by restore().
+     */
     @Override
     protected void store () {
+        queueDirtyCFNodes();
         super.store();
-        
-        for (Locus locus : convertibleLoci) {
-            storedConvs.get(locus).clear();
-
-            for (Conversion conv : convs.get(locus)) {
-                Conversion convCopy = new Conversion();
-
-                convCopy.setLocus(conv.getLocus());
-                convCopy.setStartSite(conv.getStartSite());
-                convCopy.setEndSite(conv.getEndSite());
-                convCopy.setHeight1(conv.getHeight1());
-                convCopy.setHeight2(conv.getHeight2());
-                convCopy.newickMetaDataBottom = conv.newickMetaDataBottom;
-                convCopy.newickMetaDataMiddle = conv.newickMetaDataMiddle;
-                convCopy.newickMetaDataTop = conv.newickMetaDataTop;
 
-                convCopy.setNode1(m_storedNodes[conv.getNode1().getNr()]);
-                convCopy.setNode2(m_storedNodes[conv.getNode2().getNr()]);
-
-                convCopy.setConversionGraph(this);
-
-                storedConvs.get(locus).add(convCopy);
-            }
-        }
+        journal.start();
+        markClonalFrameClean();
     }
     
     @Override
     public void restore() {
+        queueDirtyCFNodes();
+
+        Node[] nodesBeforeRestore = m_nodes;
         super.restore();
-        
-        Map<Locus, List<Conversion>> tmp = storedConvs;
-        storedConvs = convs;
-        convs = tmp;
+
+        // Tree.restore() exchanges the current and stored node arrays.
+        // Rather than re-attaching every conversion to the nodes now in
+        // use, copy the restored clonal frame back into the original
+        // nodes, to which all conversions (including those the journal
+        // restores) are attached.  This costs O(nodes), not O(conversions).
+        if (m_nodes != nodesBeforeRestore) {
+            super.store();
+
+            m_storedNodes = m_nodes;
+            m_nodes = nodesBeforeRestore;
+            root = m_nodes[root.getNr()];
+            storedRoot = m_storedNodes[root.getNr()];
+
+            super.setEverythingDirty(false);
+        }
+
+        journal.undo(convs, this);
+
+        markClonalFrameClean();
 
         cfEventList.makeDirty();
         for (Locus locus : loci)
             regionLists.get(locus).makeDirty();
     }
 
+    /**
+     * Called by Tree and Node methods (as well as by operators) prior to
+     * any modification of the graph.  The clonal frame is assumed to be
+     * affected.
+     *
+     * @param operator operator responsible for the modification
+     */
     @Override
     public void startEditing(Operator operator) {
-        if (state != null)
-            super.startEditing(operator);
+        cfEdited = true;
+        dirtyCFNodesKnown = false;
 
         if (cfEventList != null)
             cfEventList.makeDirty();
 
+        startEditingConversions();
+    }
+
+    /**
+     * Prepare for a modification which affects only the conversions,
+     * leaving the clonal frame untouched.
+     */
+    private void startEditingConversions() {
+        if (state != null)
+            super.startEditing(null);
+
         if (regionLists != null)
             for (RegionList regionList : regionLists.values())
                 regionList.makeDirty();
     }
 
+    @Override
+    public void setEverythingDirty(boolean isDirty) {
+        if (!isDirty)
+            queueDirtyCFNodes();
+
+        super.setEverythingDirty(isDirty);
+
+        if (isDirty) {
+            cfEdited = true;
+            dirtyCFNodesKnown = false;
+        } else
+            markClonalFrameClean();
+    }
+
+    /**
+     * Queue the dirty clonal frame nodes for repositioning in the event
+     * index before their dirty flags are cleared.
+     */
+    private void queueDirtyCFNodes() {
+        if (state != null && cfEdited)
+            eventIndex.markCFNodesModified(getDirtyCFNodes());
+    }
+
+    private void markClonalFrameClean() {
+        cfEdited = false;
+        dirtyCFNodes.clear();
+        dirtyCFNodesKnown = true;
+    }
+
     /**
      * @return true iff clonal frame is dirty
      */
     public boolean clonalFrameIsDirty() {
-        for (Node node : getNodesAsArray())
-            if (node.isDirty() > Tree.IS_CLEAN)
-                return true;
+        return !getDirtyCFNodes().isEmpty();
+    }
 
-        return false;
+    /**
+     * Obtain the clonal frame nodes which have been marked dirty since
+     * the state was last stored.  Outside of a State, where edits are not
+     * reported to the graph, the nodes are always checked directly.
+     *
+     * @return list of dirty nodes (owned by the graph)
+     */
+    public List<Node> getDirtyCFNodes() {
+        if (state != null && !cfEdited)
+            return dirtyCFNodes;
+
+        if (state == null || !dirtyCFNodesKnown) {
+            dirtyCFNodes.clear();
+            for (Node node : getNodesAsArray())
+                if (node.isDirty() > Tree.IS_CLEAN)
+                    dirtyCFNodes.add(node);
+
+            dirtyCFNodesKnown = true;
+        }
+
+        return dirtyCFNodes;
     }
     
     /*
@@ -1064,7 +1137,7 @@ public class ConversionGraph extends Tree {
     public void log(long nSample, PrintStream out) {
         ConversionGraph arg = (ConversionGraph) getCurrent();
         
-        out.print(String.format("tree STATE_%d = [&R] %s",
-                nSample, arg.getExtendedNewick()));
+        out.print("tree STATE_" + nSample + " = [&R] ");
+        out.print(arg.getExtendedNewick());
     }
 }
@@ -0,0 +1,224 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+
+import java.util.*;
+
+/**
+ * Record of the changes made to the conversions of a ConversionGraph
+ * since the graph was last stored.  Used by ConversionGraph to implement
+ * store() in constant time: rather than copying every conversion on each
+ * call to store(), only the edits made by the subsequent proposal are
+ * recorded, and restore() undoes exactly these edits.
+ *
+ * Three kinds of change are recorded:
+ * - additions and deletions of conversions, together with the position
+ *   of the conversion in its locus list,
+ * - the field values of each conversion immediately prior to its first
+ *   modification, and
+ * - wholesale replacements of the conversion lists (e.g. when the graph
+ *   is reinitialised from a string), for which the complete list contents
+ *   are retained.
+ */
+class ConversionJournal {
+
+    /**
+     * Addition or removal of a conversion from a locus list.
+     */
+    private static class ListEdit {
+        boolean isAddition;
+        Conversion conv;
+        Locus locus;
+        int index;
+    }
+
+    /**
+     * Field values of a conversion prior to its first modification.
+     */
+    private static class ConversionState {
+        Conversion conv;
+        Locus locus;
+        Node node1, node2;
+        double height1, height2;
+        int startSite, endSite;
+        String newickMetaDataBottom, newickMetaDataMiddle, newickMetaDataTop;
+    }
+
+    private boolean active = false;
+
+    private final List<ListEdit> listEdits = new ArrayList<>();
+    private int nListEdits = 0;
+
+    private final List<ConversionState> states = new ArrayList<>();
+    private int nStates = 0;
+    private final Set<Conversion> recordedConvs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Map<Locus, List<Conversion>> listSnapshot = null;
+
+    /**
+     * Begin a new journal, discarding any previously recorded edits.
+     * Edit objects are retained for reuse, so that journaling does not
+     * generate garbage in the course of an MCMC run.
+     */
+    public void start() {
+        for (int i=0; i<nListEdits; i++)
+            listEdits.get(i).conv = null;
+        nListEdits = 0;
+
+        for (int i=0; i<nStates; i++) {
+            ConversionState state = states.get(i);
+            state.conv = null;
+            state.node1 = null;
+            state.node2 = null;
+        }
+        nStates = 0;
+        recordedConvs.clear();
+
+        listSnapshot = null;
+        active = true;
+    }
+
+    /**
+     * @return true if edits are currently being recorded.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Record the addition of a conversion to a locus list.
+     *
+     * @param conv conversion added
+     * @param locus locus with which the list is associated
+     */
+    public void recordAddition(Conversion conv, Locus locus) {
+        if (active && listSnapshot == null)
+            addListEdit(true, conv, locus, -1);
+    }
+
+    /**
+     * Record the removal of a conversion from a locus list.
+     *
+     * @param conv conversion removed
+     * @param locus locus with which the list is associated
+     * @param index position of the conversion prior to removal
+     */
+    public void recordDeletion(Conversion conv, Locus locus, int index) {
+        if (active && listSnapshot == null)
+            addListEdit(false, conv, locus, index);
+    }
+
+    private void addListEdit(boolean isAddition, Conversion conv, Locus locus, int index) {
+        if (nListEdits == listEdits.size())
+            listEdits.add(new ListEdit());
+
+        ListEdit edit = listEdits.get(nListEdits++);
+        edit.isAddition = isAddition;
+        edit.conv = conv;
+        edit.locus = locus;
+        edit.index = index;
+    }
+
+    /**
+     * Record the field values of a conversion which is about to be
+     * modified.  Only the first modification following start() is
+     * recorded.
+     *
+     * @param conv conversion about to be modified
+     */
+    public void recordModification(Conversion conv) {
+        if (!active || !recordedConvs.add(conv))
+            return;
+
+        if (nStates == states.size())
+            states.add(new ConversionState());
+
+        ConversionState state = states.get(nStates++);
+        state.conv = conv;
+        state.locus = conv.locus;
+        state.node1 = conv.node1;
+        state.node2 = conv.node2;
+        state.height1 = conv.height1;
+        state.height2 = conv.height2;
+        state.startSite = conv.startSite;
+        state.endSite = conv.endSite;
+        state.newickMetaDataBottom = conv.newickMetaDataBottom;
+        state.newickMetaDataMiddle = conv.newickMetaDataMiddle;
+        state.newickMetaDataTop = conv.newickMetaDataTop;
+    }
+
+    /**
+     * Record the contents of the conversion lists prior to their
+     * wholesale replacement.  Only the first such replacement following
+     * start() is recorded; individual list edits made afterwards need not
+     * be journaled.
+     *
+     * @param convs conversion lists about to be replaced
+     */
+    public void recordBulkEdit(Map<Locus, ConversionList> convs) {
+        if (!active || listSnapshot != null)
+            return;
+
+        listSnapshot = new HashMap<>();
+        for (Locus locus : convs.keySet()) {
+            listSnapshot.put(locus, new ArrayList<>(convs.get(locus)));
+            for (Conversion conv : convs.get(locus))
+                recordModification(conv);
+        }
+    }
+
+    /**
+     * Undo all recorded edits, returning the conversion lists and the
+     * conversions they contain to their state at the time of the last
+     * call to start().  The journal is emptied.
+     *
+     * @param convs conversion lists to restore
+     * @param acg graph whose conversion indices are to be kept
+     *            consistent with the lists
+     */
+    public void undo(Map<Locus, ConversionList> convs, ConversionGraph acg) {
+        if (listSnapshot != null) {
+            acg.conversionsReplaced();
+            for (Locus locus : listSnapshot.keySet()) {
+                ConversionList convList = convs.computeIfAbsent(locus, l -> new ConversionList());
+                convList.clear();
+                convList.addAll(listSnapshot.get(locus));
+            }
+        }
+
+        for (int i=nListEdits-1; i>=0; i--) {
+            ListEdit edit = listEdits.get(i);
+            if (edit.isAddition) {
+                convs.get(edit.locus).remove(edit.conv);
+                acg.conversionRemoved(edit.conv);
+            } else {
+                convs.get(edit.locus).add(edit.index, edit.conv);
+                acg.conversionAdded(edit.conv);
+            }
+        }
+
+        for (int i=0; i<nStates; i++) {
+            ConversionState state = states.get(i);
+            Conversion conv = state.conv;
+            conv.locus = state.locus;
+            conv.node1 = state.node1;
+            conv.node2 = state.node2;
+            conv.height1 = state.height1;
+            conv.height2 = state.height2;
+            conv.startSite = state.startSite;
+            conv.endSite = state.endSite;
+            conv.newickMetaDataBottom = state.newickMetaDataBottom;
+            conv.newickMetaDataMiddle = state.newickMetaDataMiddle;
+            conv.newickMetaDataTop = state.newickMetaDataTop;
+
+            ConversionList convList = convs.get(conv.locus);
+            if (convList != null)
+                convList.startSiteModified(conv);
+
+            acg.conversionRestored(conv);
+        }
+
+        start();
+    }
+}
@@ -0,0 +1,380 @@
+package bacter;
+
+import java.util.*;
+
+/**
+ * List of conversions associated with a single locus, ordered (at the
+ * time of insertion) by start site.  Backed by an implicitly-keyed
+ * treap augmented with subtree sizes, so that insertion, deletion,
+ * index lookup and selection by index are all O(log n) operations.
+ *
+ * Positions are determined only when a conversion is inserted:
+ * subsequent modification of a conversion's start site does not move
+ * it within the list.  (This mirrors the behaviour of the plain
+ * ArrayList previously used by ConversionGraph.)  Entries are also
+ * augmented with the maximum start site within their subtree, so that
+ * addSorted() can locate the first conversion with a greater start site
+ * even when such modifications have left the list unsorted.  These
+ * maxima must be refreshed using startSiteModified() whenever the start
+ * site of a conversion in the list is changed.
+ *
+ * Elements are located using object identity rather than
+ * Conversion.equals(), which compares field values.
+ */
+public class ConversionList extends AbstractList<Conversion> implements RandomAccess {
+
+    /**
+     * Treap node.
+     */
+    private static class Entry {
+        Conversion conv;
+        Entry left, right, parent;
+        int size = 1;
+        int maxStartSite;
+        final int priority;
+
+        Entry(Conversion conv, int priority) {
+            this.conv = conv;
+            this.priority = priority;
+            this.maxStartSite = conv.startSite;
+        }
+    }
+
+    private Entry root;
+    private final Map<Conversion, Entry> entries = new IdentityHashMap<>();
+
+    /**
+     * State of the xorshift generator used for treap priorities.  This is
+     * deliberately independent of Randomizer so that the structure of the
+     * list has no effect on the MCMC random number stream.
+     */
+    private int priorityState = 0x2545F491;
+
+    public ConversionList() { }
+
+    /**
+     * Construct a list containing the given conversions in the order
+     * in which they are provided.
+     *
+     * @param convs conversions to add
+     */
+    public ConversionList(Collection<Conversion> convs) {
+        addAll(convs);
+    }
+
+    private int nextPriority() {
+        priorityState ^= priorityState << 13;
+        priorityState ^= priorityState >>> 17;
+        priorityState ^= priorityState << 5;
+        return priorityState;
+    }
+
+    private static int size(Entry entry) {
+        return entry == null ? 0 : entry.size;
+    }
+
+    private static int maxStartSite(Entry entry) {
+        return entry == null ? Integer.MIN_VALUE : entry.maxStartSite;
+    }
+
+    private static void updateMaxStartSite(Entry entry) {
+        entry.maxStartSite = Math.max(entry.conv.startSite,
+                Math.max(maxStartSite(entry.left), maxStartSite(entry.right)));
+    }
+
+    /**
+     * Recompute size and maximum start site of entry and repair parent
+     * pointers of its children.
+     */
+    private static Entry pull(Entry entry) {
+        entry.size = 1 + size(entry.left) + size(entry.right);
+        updateMaxStartSite(entry);
+        if (entry.left != null)
+            entry.left.parent = entry;
+        if (entry.right != null)
+            entry.right.parent = entry;
+        return entry;
+    }
+
+    /**
+     * Merge two treaps, all elements of a preceding all elements of b.
+     */
+    private static Entry merge(Entry a, Entry b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return pull(a);
+        } else {
+            b.left = merge(a, b.left);
+            return pull(b);
+        }
+    }
+
+    /**
+     * Split treap into the first k elements and the remainder.
+     * Result is placed in the two-element array res.
+     */
+    private static void split(Entry entry, int k, Entry[] res) {
+        if (entry == null) {
+            res[0] = null;
+            res[1] = null;
+            return;
+        }
+
+        if (size(entry.left) >= k) {
+            split(entry.left, k, res);
+            entry.left = res[1];
+            res[1] = pull(entry);
+        } else {
+            split(entry.right, k - size(entry.left) - 1, res);
+            entry.right = res[0];
+            res[0] = pull(entry);
+        }
+    }
+
+    private void setRoot(Entry newRoot) {
+        root = newRoot;
+        if (root != null)
+            root.parent = null;
+    }
+
+    private Entry getEntry(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+
+        Entry entry = root;
+        while (true) {
+            int leftSize = size(entry.left);
+            if (index < leftSize) {
+                entry = entry.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                entry = entry.right;
+            } else
+                return entry;
+        }
+    }
+
+    /**
+     * @return position of entry within the list
+     */
+    private static int rank(Entry entry) {
+        int rank = size(entry.left);
+        while (entry.parent != null) {
+            if (entry.parent.right == entry)
+                rank += size(entry.parent.left) + 1;
+            entry = entry.parent;
+        }
+        return rank;
+    }
+
+    private static Entry successor(Entry entry) {
+        if (entry.right != null) {
+            entry = entry.right;
+            while (entry.left != null)
+                entry = entry.left;
+            return entry;
+        }
+
+        while (entry.parent != null && entry.parent.right == entry)
+            entry = entry.parent;
+
+        return entry.parent;
+    }
+
+    private void insertEntry(int index, Entry entry) {
+        Entry[] parts = new Entry[2];
+        split(root, index, parts);
+        setRoot(merge(merge(parts[0], entry), parts[1]));
+    }
+
+    private Conversion removeEntry(Entry entry) {
+        int index = rank(entry);
+
+        Entry[] parts = new Entry[2];
+        split(root, index, parts);
+        Entry left = parts[0];
+        split(parts[1], 1, parts);
+        setRoot(merge(left, parts[1]));
+
+        entries.remove(entry.conv);
+        modCount += 1;
+
+        return entry.conv;
+    }
+
+    /**
+     * Insert conversion before the first conversion in the list whose
+     * start site is greater than that of the new conversion, or at the
+     * end of the list if there is no such conversion.
+     *
+     * @param conv conversion to insert
+     */
+    public void addSorted(Conversion conv) {
+        int index = 0;
+        Entry entry = root;
+        while (entry != null) {
+            if (maxStartSite(entry.left) > conv.startSite) {
+                entry = entry.left;
+            } else if (entry.conv.startSite > conv.startSite) {
+                index += size(entry.left);
+                break;
+            } else {
+                index += size(entry.left) + 1;
+                entry = entry.right;
+            }
+        }
+
+        add(index, conv);
+    }
+
+    /**
+     * Update the list following a change to the start site of one of its
+     * conversions.  The conversion keeps its position in the list.
+     *
+     * @param conv modified conversion
+     */
+    public void startSiteModified(Conversion conv) {
+        Entry entry = entries.get(conv);
+        if (entry != null)
+            updateMaxStartSites(entry);
+    }
+
+    private static void updateMaxStartSites(Entry entry) {
+        for (; entry != null; entry = entry.parent)
+            updateMaxStartSite(entry);
+    }
+
+    @Override
+    public Conversion get(int index) {
+        return getEntry(index).conv;
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public void add(int index, Conversion conv) {
+        if (index < 0 || index > size())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+
+        if (entries.containsKey(conv))
+            throw new IllegalArgumentException("Conversion already present in list.");
+
+        Entry entry = new Entry(conv, nextPriority());
+        entries.put(conv, entry);
+        insertEntry(index, entry);
+        modCount += 1;
+    }
+
+    @Override
+    public Conversion set(int index, Conversion conv) {
+        Entry entry = getEntry(index);
+        if (entry.conv == conv)
+            return conv;
+
+        if (entries.containsKey(conv))
+            throw new IllegalArgumentException("Conversion already present in list.");
+
+        Conversion old = entry.conv;
+        entries.remove(old);
+        entry.conv = conv;
+        entries.put(conv, entry);
+        updateMaxStartSites(entry);
+
+        return old;
+    }
+
+    @Override
+    public Conversion remove(int index) {
+        return removeEntry(getEntry(index));
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Entry entry = entries.get(o);
+        if (entry != null) {
+            removeEntry(entry);
+            return true;
+        }
+
+        return super.remove(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        Entry entry = entries.get(o);
+        if (entry != null)
+            return rank(entry);
+
+        return super.indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        Entry entry = entries.get(o);
+        if (entry != null)
+            return rank(entry);
+
+        return super.lastIndexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return entries.containsKey(o) || super.contains(o);
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        entries.clear();
+        modCount += 1;
+    }
+
+    @Override
+    public Iterator<Conversion> iterator() {
+        return new Iterator<Conversion>() {
+            Entry next = root == null ? null : getEntry(0);
+            Entry lastReturned = null;
+            int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Conversion next() {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+
+                if (next == null)
+                    throw new NoSuchElementException();
+
+                lastReturned = next;
+                next = successor(next);
+
+                return lastReturned.conv;
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned == null)
+                    throw new IllegalStateException();
+
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+
+                removeEntry(lastReturned);
+                lastReturned = null;
+                expectedModCount = modCount;
+            }
+        };
+    }
+}
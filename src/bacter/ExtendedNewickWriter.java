@@ -0,0 +1,232 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+
+import java.io.IOException;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes ACGs in the extended Newick format read by
+ * ConversionGraph.fromExtendedNewick().  Output is identical to that
+ * previously produced by assembling and splicing strings for each clonal
+ * frame edge, but is appended left to right into a single reusable
+ * StringBuilder.  The conversions along each edge are obtained already
+ * height-ordered from the graph's conversion edge index, so no per-edge
+ * event lists are constructed.
+ *
+ * Instances are not thread-safe, but may be reused for any number of
+ * graphs.
+ */
+public class ExtendedNewickWriter {
+
+    private final StringBuilder sb = new StringBuilder();
+    private final Formatter formatter = new Formatter(sb, Locale.ENGLISH);
+
+    private ConversionGraph acg;
+    private AffectedSiteList asList;
+    private boolean intraCFOnly;
+
+    public ExtendedNewickWriter() { }
+
+    /**
+     * Obtain extended Newick representation of ACG.
+     *
+     * @param acg graph to write
+     * @param asList if non-null, used to annotate conversions with the
+     *               number of sites they affect
+     * @param intraCFOnly if true, omit conversions attaching above the root
+     * @return extended Newick string
+     */
+    public String write(ConversionGraph acg, AffectedSiteList asList, boolean intraCFOnly) {
+        sb.setLength(0);
+        append(acg, asList, intraCFOnly);
+
+        return sb.toString();
+    }
+
+    /**
+     * Write extended Newick representation of ACG to an Appendable.
+     *
+     * @param acg graph to write
+     * @param asList if non-null, used to annotate conversions with the
+     *               number of sites they affect
+     * @param intraCFOnly if true, omit conversions attaching above the root
+     * @param out destination
+     * @throws IOException if thrown by out
+     */
+    public void write(ConversionGraph acg, AffectedSiteList asList, boolean intraCFOnly,
+                      Appendable out) throws IOException {
+        sb.setLength(0);
+        append(acg, asList, intraCFOnly);
+
+        out.append(sb);
+    }
+
+    /**
+     * Write extended Newick representation of ACG to a StringBuilder.
+     *
+     * @param acg graph to write
+     * @param asList if non-null, used to annotate conversions with the
+     *               number of sites they affect
+     * @param intraCFOnly if true, omit conversions attaching above the root
+     * @param out destination
+     */
+    public void write(ConversionGraph acg, AffectedSiteList asList, boolean intraCFOnly,
+                      StringBuilder out) {
+        sb.setLength(0);
+        append(acg, asList, intraCFOnly);
+
+        out.append(sb);
+    }
+
+    private void append(ConversionGraph acg, AffectedSiteList asList, boolean intraCFOnly) {
+        this.acg = acg;
+        this.asList = asList;
+        this.intraCFOnly = intraCFOnly;
+
+        appendNode(acg.getRoot());
+        sb.append(';');
+
+        this.acg = null;
+        this.asList = null;
+    }
+
+    private boolean isIncluded(Conversion conv) {
+        return !intraCFOnly || !conv.node2.isRoot();
+    }
+
+    private int nextIncluded(List<Conversion> convs, int i) {
+        while (i < convs.size() && !isIncluded(convs.get(i)))
+            i += 1;
+
+        return i;
+    }
+
+    /**
+     * Append clade below node, together with the conversion events on the
+     * edge above node.  Events are nested from oldest (outermost) to
+     * youngest, so after opening one bracket per event the clade itself
+     * is written, followed by the events in order of increasing height.
+     *
+     * @param node root of clade
+     */
+    private void appendNode(Node node) {
+        List<Conversion> departures = acg.getDepartingConversions(node);
+        List<Conversion> arrivals = acg.getArrivingConversions(node);
+
+        for (Conversion conv : departures)
+            if (isIncluded(conv))
+                sb.append('(');
+
+        for (Conversion conv : arrivals)
+            if (isIncluded(conv))
+                sb.append('(');
+
+        if (!node.isLeaf()) {
+            sb.append('(');
+            appendNode(node.getChild(0));
+            sb.append(',');
+            appendNode(node.getChild(1));
+            sb.append(')');
+        }
+
+        double parentTime = node.isRoot()
+                ? Double.POSITIVE_INFINITY
+                : node.getParent().getHeight();
+
+        int d = nextIncluded(departures, 0);
+        int a = nextIncluded(arrivals, 0);
+        double time = nextTime(departures, d, arrivals, a, parentTime);
+
+        sb.append(node.getNr() + acg.getTaxaTranslationOffset())
+                .append(node.getNewickMetaData())
+                .append(':');
+        appendLength(time, node.getHeight());
+
+        while (d < departures.size() || a < arrivals.size()) {
+            boolean isArrival = d == departures.size()
+                    || (a < arrivals.size() && arrivals.get(a).height2 < departures.get(d).height1);
+
+            Conversion conv;
+            if (isArrival) {
+                conv = arrivals.get(a);
+                a = nextIncluded(arrivals, a + 1);
+            } else {
+                conv = departures.get(d);
+                d = nextIncluded(departures, d + 1);
+            }
+
+            double eventTime = time;
+            time = nextTime(departures, d, arrivals, a, parentTime);
+
+            if (isArrival)
+                appendArrival(conv, eventTime, time);
+            else
+                appendDeparture(conv, eventTime, time);
+        }
+    }
+
+    /**
+     * @return height of youngest remaining event, or parentTime if no
+     * events remain.
+     */
+    private double nextTime(List<Conversion> departures, int d,
+                            List<Conversion> arrivals, int a,
+                            double parentTime) {
+        double time = parentTime;
+        if (d < departures.size())
+            time = Math.min(time, departures.get(d).height1);
+        if (a < arrivals.size())
+            time = Math.min(time, arrivals.get(a).height2);
+
+        return time;
+    }
+
+    private void appendLength(double lastTime, double time) {
+        if (Double.isInfinite(lastTime))
+            sb.append(0.0);
+        else
+            sb.append(lastTime - time);
+    }
+
+    private void appendArrival(Conversion conv, double eventTime, double lastTime) {
+        Locus locus = conv.getLocus();
+
+        sb.append(",#").append(acg.getConversionIndex(conv))
+                .append("[&conv=").append(acg.getConversions(locus).indexOf(conv))
+                .append(", region={").append(conv.getStartSite())
+                .append(',').append(conv.getEndSite())
+                .append("}, locus=\"").append(locus.getID())
+                .append("\", relSize=");
+        formatter.format("%g", conv.getSiteCount()/(double)locus.getSiteCount());
+
+        if (asList != null) {
+            sb.append(", affectedSites=").append(asList.affectedSiteCount.get(conv))
+                    .append(", uselessSiteFraction=");
+            formatter.format("%g", 1.0-asList.affectedSiteFraction.get(conv));
+        }
+
+        if (conv.newickMetaDataMiddle != null)
+            sb.append(", ").append(conv.newickMetaDataMiddle);
+
+        sb.append("]:").append(conv.height2 - conv.height1).append(')');
+
+        if (conv.newickMetaDataTop != null)
+            sb.append("[&").append(conv.newickMetaDataTop).append(']');
+
+        sb.append(':');
+        appendLength(lastTime, eventTime);
+    }
+
+    private void appendDeparture(Conversion conv, double eventTime, double lastTime) {
+        sb.append(")#").append(acg.getConversionIndex(conv));
+
+        if (conv.newickMetaDataBottom != null)
+            sb.append("[&").append(conv.newickMetaDataBottom).append(']');
+
+        sb.append(':');
+        appendLength(lastTime, eventTime);
+    }
+}
@@ -83,6 +83,22 @@ public class RegionList {
     public void makeDirty() {
         dirty = true;
     }
+
+    /**
+     * Replace the region list with one assembled elsewhere, for instance
+     * while simulating conversions along the locus.  The regions must
+     * cover the locus in order and each must hold the conversions active
+     * within it, though conversions which leave the marginal tree
+     * unchanged need not be omitted.  The list remains in use until the
+     * conversions are next modified.
+     *
+     * @param newRegions regions to use
+     */
+    public void setRegions(List<Region> newRegions) {
+        regions.clear();
+        regions.addAll(newRegions);
+        dirty = false;
+    }
    
     /**
      * Assemble list of regions of contiguous sites that possess a single
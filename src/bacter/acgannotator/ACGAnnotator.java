@@ -20,7 +20,10 @@ package bacter.acgannotator;
 import bacter.Conversion;
 import bacter.ConversionGraph;
 import bacter.Locus;
+import bacter.util.ACGLogReader;
 import bacter.util.BacterACGLogReader;
+import bacter.util.BinaryACGLogReader;
+import bacter.util.CachedACGLogReader;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.util.DiscreteStatistics;
@@ -32,6 +35,10 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A rewrite of TreeAnnotator targeted at summarizing ACG logs
@@ -43,7 +50,13 @@ public class ACGAnnotator {
 
     private enum SummaryStrategy { MEAN, MEDIAN }
 
-    private static class ACGAnnotatorOptions {
+    /**
+     * Number of candidates for the MCC topology retained in single-pass
+     * mode.
+     */
+    private static final int MCC_CANDIDATE_COUNT = 100;
+
+    static class ACGAnnotatorOptions {
         File inFile;
         File outFile = new File("summary.tree");
         double burninPercentage = 10.0;
@@ -51,6 +64,10 @@ public class ACGAnnotator {
         SummaryStrategy summaryStrategy = SummaryStrategy.MEAN;
         File geneFlowOutFile = new File("geneFlow.log");
         boolean recordGeneFlow = false;
+        boolean useIndexFile = false;
+        int threadCount = 1;
+        boolean onePass = false;
+        double convSketchAccuracy = 0.0;
 
         @Override
         public String toString() {
@@ -59,6 +76,11 @@ public class ACGAnnotator {
                     "Output file: " + outFile + "\n" +
                     "Burn-in percentage: " + burninPercentage + "%\n" +
                     "Conversion support threshold: " + convSupportThresh + "%\n" +
+                    "Threads: " + threadCount + "\n" +
+                    (onePass ? "Single-pass summary enabled.\n" : "") +
+                    (convSketchAccuracy > 0
+                            ? "Conversion summary sketch accuracy: " + convSketchAccuracy + "\n"
+                            : "") +
                     "Node height and conv. site summary: " + summaryStrategy + "\n" +
                     (recordGeneFlow
                             ? "Record gene flow to file " + geneFlowOutFile
@@ -73,8 +95,16 @@ public class ACGAnnotator {
 
         // Initialise reader
 
-        BacterACGLogReader logReader = new BacterACGLogReader(options.inFile,
-                options.burninPercentage);
+        ACGLogReader logReader;
+        if (BinaryACGLogReader.isBinaryLog(options.inFile))
+            logReader = new BinaryACGLogReader(options.inFile,
+                    options.burninPercentage);
+        else {
+            BacterACGLogReader bacterLogReader = new BacterACGLogReader(options.inFile,
+                    options.burninPercentage, options.useIndexFile);
+            bacterLogReader.setParserThreadCount(options.threadCount);
+            logReader = bacterLogReader;
+        }
 
         System.out.println(logReader.getACGCount() + " ACGs in file.");
 
@@ -82,55 +112,164 @@ public class ACGAnnotator {
                  " (" + options.burninPercentage + "%) ACGs will be discarded " +
                 "to account for burnin.");
 
-        // Compute CF Clade probabilities
+        ConversionGraph acgBest;
+        ACGCladeSystem cladeSystem;
 
-        System.out.println("\nComputing CF clade credibilities...");
+        if (options.onePass) {
 
-        ACGCladeSystem cladeSystem = new ACGCladeSystem();
+            // Collect clades, CF node heights and conversions together,
+            // retaining as candidates for the MCC topology those ACGs
+            // with the highest clade credibility under the clade
+            // frequencies accumulated so far.  Early frequencies overstate
+            // the credibility of the first ACGs, so candidate scores are
+            // refreshed each time the number of ACGs seen doubles, and
+            // the final choice is made using the complete frequencies.
 
-        for (ConversionGraph acg : logReader)
-            cladeSystem.add(acg, true);
+            System.out.println("\nComputing CF clade credibilities, CF node heights " +
+                    "and conversions in a single pass...");
 
-        cladeSystem.calculateCladeCredibilities(logReader.getCorrectedACGCount());
+            Set<String> attributeNames = new HashSet<>();
+            attributeNames.add("height");
 
-        // Identify MCC CF topology
+            cladeSystem = new ACGCladeSystem();
+            if (options.convSketchAccuracy > 0)
+                cladeSystem.useConversionSketches(options.convSketchAccuracy);
+            MCCCandidates candidates = new MCCCandidates(MCC_CANDIDATE_COUNT);
+            int nACGs = 0, nextRefresh = 2;
 
-        System.out.println("\nIdentifying MCC CF topology...");
+            for (ConversionGraph acg : logReader) {
+                cladeSystem.add(acg, true);
+                cladeSystem.collectAttributes(acg, attributeNames);
 
-        ConversionGraph acgBest = null;
-        double bestScore = Double.NEGATIVE_INFINITY;
+                // collectAttributes() also increments the counts of the
+                // clades it visits, so these are decremented again.
+                cladeSystem.removeClades(acg.getRoot(), true);
 
-        for (ConversionGraph acg : logReader ) {
-            double score = cladeSystem.getLogCladeCredibility(acg.getRoot(), null);
+                cladeSystem.collectConversions(acg);
+                nACGs += 1;
 
-            if (score>bestScore) {
-                acgBest = acg.copy();
-                bestScore = score;
+                if (nACGs == nextRefresh) {
+                    candidates.rescore(cladeSystem, nACGs);
+                    nextRefresh *= 2;
+                }
+
+                candidates.offer(acg, cladeSystem.getRunningLogCladeCredibility(acg, nACGs));
             }
-        }
 
-        if (acgBest == null)
-            throw new IllegalStateException("Failed to find best tree topology.");
+            cladeSystem.calculateCladeCredibilities(logReader.getCorrectedACGCount());
+
+            acgBest = candidates.getBest(cladeSystem);
 
-        // Remove conversions
+            if (acgBest == null)
+                throw new IllegalStateException("Failed to find best tree topology.");
 
-        for (Locus locus : acgBest.getConvertibleLoci())
+            // Remove conversions
+
+            for (Locus locus : acgBest.getConvertibleLoci())
                 acgBest.getConversions(locus).clear();
 
-        // Collect CF node heights
+        } else {
+
+            // ACGs are parsed once, during the first pass, and replayed
+            // from the cache during the remaining two.
+
+            logReader = new CachedACGLogReader(logReader,
+                    Runtime.getRuntime().maxMemory()/4);
+
+            // Compute CF Clade probabilities
+
+            System.out.println("\nComputing CF clade credibilities...");
+
+            cladeSystem = new ACGCladeSystem();
+
+            for (ConversionGraph acg : logReader)
+                cladeSystem.add(acg, true);
+
+            cladeSystem.calculateCladeCredibilities(logReader.getCorrectedACGCount());
+
+            // Identify MCC CF topology
+
+            System.out.println("\nIdentifying MCC CF topology...");
+
+            ACGCladeSystem credibilitySystem = cladeSystem;
+            List<ScoredACG> rangeBest = applyToRanges(logReader, options.threadCount, (from, acgs) -> {
+                ScoredACG best = new ScoredACG();
+
+                for (int i=from; acgs.hasNext(); i++) {
+                    double score = credibilitySystem.getLogCladeCredibility(acgs.next().getRoot(), null);
+
+                    if (score>best.score) {
+                        best.index = i;
+                        best.score = score;
+                    }
+                }
+
+                return best;
+            });
+
+            ScoredACG best = new ScoredACG();
+            for (ScoredACG candidate : rangeBest) {
+                if (candidate.score>best.score)
+                    best = candidate;
+            }
+
+            if (best.index < 0)
+                throw new IllegalStateException("Failed to find best tree topology.");
+
+            acgBest = logReader.iterator(best.index, best.index+1).next().copy();
+
+            // Remove conversions
+
+            for (Locus locus : acgBest.getConvertibleLoci())
+                    acgBest.getConversions(locus).clear();
 
-        System.out.println("\nCollecting CF node heights and conversions...");
+            // Collect CF node heights
 
-        Set<String> attributeNames = new HashSet<>();
-        attributeNames.add("height");
+            System.out.println("\nCollecting CF node heights and conversions...");
 
-        cladeSystem = new ACGCladeSystem(acgBest);
-        for (ConversionGraph acg : logReader) {
-            cladeSystem.collectAttributes(acg, attributeNames);
-            cladeSystem.collectConversions(acg);
+            Set<String> attributeNames = new HashSet<>();
+            attributeNames.add("height");
+
+            // Partial clade systems for each range are merged in order.
+            // Each begins with the clades of the summary CF so that their
+            // attributes are collected, but these are immediately removed
+            // again so as not to contribute to the clade counts.
+
+            ConversionGraph summaryCF = acgBest;
+            List<ACGCladeSystem> rangeSystems = applyToRanges(logReader, options.threadCount, (from, acgs) -> {
+                ACGCladeSystem rangeSystem = new ACGCladeSystem(summaryCF);
+                rangeSystem.removeClades(summaryCF.getRoot(), true);
+                if (options.convSketchAccuracy > 0)
+                    rangeSystem.useConversionSketches(options.convSketchAccuracy);
+
+                while (acgs.hasNext()) {
+                    ConversionGraph acg = acgs.next();
+                    rangeSystem.collectAttributes(acg, attributeNames);
+                    rangeSystem.collectConversions(acg);
+                }
+
+                return rangeSystem;
+            });
+
+            cladeSystem = rangeSystems.get(0);
+            for (int r=1; r<rangeSystems.size(); r++)
+                cladeSystem.merge(rangeSystems.get(r));
+            cladeSystem.calculateCladeCredibilities(logReader.getCorrectedACGCount());
+        }
+
+        // In sketch mode, only the number of ACGs converting each site
+        // has been recorded so far.  Conversion summaries for the regions
+        // this identifies are collected in a further pass.
+
+        if (cladeSystem.usesConversionSketches()) {
+            System.out.println("\nSummarizing conversions...");
+
+            cladeSystem.prepareConversionSummaries(logReader.getCorrectedACGCount(),
+                    options.convSupportThresh/100.0);
+
+            for (ConversionGraph acg : logReader)
+                cladeSystem.collectConversionSummaries(acg);
         }
-        cladeSystem.removeClades(acgBest.getRoot(), true);
-        cladeSystem.calculateCladeCredibilities(logReader.getCorrectedACGCount());
 
         System.out.println("\nProducing summary CF...");
 
@@ -178,6 +317,177 @@ public class ACGAnnotator {
         System.out.println("\nDone!");
     }
 
+    /**
+     * Best-scoring ACG found within a range of the log.
+     */
+    private static class ScoredACG {
+        int index = -1;
+        double score = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Bounded set of candidates for the MCC topology, used when
+     * summarizing in a single pass.  Candidates are copies of the ACGs
+     * offered with the highest scores.  The copies are allocated once and
+     * then reused, as ConversionGraph.copy() is comparatively expensive.
+     */
+    private static class MCCCandidates {
+        private final int capacity;
+        private final List<ConversionGraph> acgs = new ArrayList<>();
+        private final List<Double> scores = new ArrayList<>();
+
+        MCCCandidates(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Retain a copy of acg if its score exceeds that of the worst
+         * candidate, or if the set is not yet full.
+         *
+         * @param acg ACG to offer
+         * @param score log clade credibility of acg
+         */
+        void offer(ConversionGraph acg, double score) {
+            if (acgs.size() < capacity) {
+                acgs.add(acg.copy());
+                scores.add(score);
+                return;
+            }
+
+            int worst = 0;
+            for (int i=1; i<scores.size(); i++) {
+                if (scores.get(i) < scores.get(worst))
+                    worst = i;
+            }
+
+            if (score > scores.get(worst)) {
+                acgs.get(worst).assignFrom(acg);
+                scores.set(worst, score);
+            }
+        }
+
+        /**
+         * Recompute candidate scores using the clade frequencies
+         * accumulated so far.
+         *
+         * @param cladeSystem clade system holding the frequencies
+         * @param nACGs number of ACGs added to the clade system
+         */
+        void rescore(ACGCladeSystem cladeSystem, int nACGs) {
+            for (int i=0; i<acgs.size(); i++)
+                scores.set(i, cladeSystem.getRunningLogCladeCredibility(acgs.get(i), nACGs));
+        }
+
+        /**
+         * @param cladeSystem clade system with final clade credibilities
+         * @return candidate with the highest log clade credibility, or
+         * null if no ACGs were offered
+         */
+        ConversionGraph getBest(ACGCladeSystem cladeSystem) {
+            ConversionGraph best = null;
+            double bestScore = Double.NEGATIVE_INFINITY;
+
+            for (ConversionGraph acg : acgs) {
+                double score = cladeSystem.getLogCladeCredibility(acg.getRoot(), null);
+                if (best == null || score > bestScore) {
+                    best = acg;
+                    bestScore = score;
+                }
+            }
+
+            return best;
+        }
+    }
+
+    /**
+     * Function applied to the ACGs in a range of the log.
+     */
+    private interface RangeFunction<T> {
+        /**
+         * @param from index of first ACG in range
+         * @param acgs iterator over ACGs in range
+         * @return result for range
+         */
+        T apply(int from, Iterator<ConversionGraph> acgs);
+    }
+
+    /**
+     * Divide the post-burn-in ACGs into contiguous ranges, one per thread,
+     * and apply a function to each range in parallel.  With a single
+     * thread the function is simply applied to an ordinary iteration over
+     * the log.
+     *
+     * @param logReader log reader
+     * @param nThreads number of threads to use
+     * @param function function to apply
+     * @return results for each range, in log order
+     */
+    private <T> List<T> applyToRanges(ACGLogReader logReader, int nThreads,
+                                      RangeFunction<T> function) {
+        int nACGs = logReader.getCorrectedACGCount();
+        int nRanges = Math.max(1, Math.min(nThreads, nACGs));
+
+        List<T> results = new ArrayList<>();
+
+        if (nRanges == 1) {
+            Iterator<ConversionGraph> acgs = logReader.iterator();
+            try {
+                results.add(function.apply(0, acgs));
+            } finally {
+                closeIterator(acgs);
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nRanges);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int r=0; r<nRanges; r++) {
+                int from = (int)((long)nACGs*r/nRanges);
+                int to = (int)((long)nACGs*(r+1)/nRanges);
+                Iterator<ConversionGraph> acgs = logReader.iterator(from, to);
+                futures.add(executor.submit(() -> {
+                    try {
+                        return function.apply(from, acgs);
+                    } finally {
+                        closeIterator(acgs);
+                    }
+                }));
+            }
+
+            for (Future<T> future : futures)
+                results.add(future.get());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while summarizing ACGs.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * Release any log file held open by an iterator which may not have
+     * been exhausted.
+     *
+     * @param iterator ACG iterator
+     */
+    private static void closeIterator(Iterator<ConversionGraph> iterator) {
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable)iterator).close();
+            } catch (IOException ignored) {
+                // Nothing further is read from the log
+            }
+        }
+    }
+
     private void printBitSetHeader(PrintStream ps, BitSet bitSet) {
         boolean isFirst = true;
         for (int b = bitSet.nextSetBit(0); b >= 0; b = bitSet.nextSetBit(b+1)) {
@@ -338,44 +648,34 @@ public class ACGAnnotator {
 
                         double posteriorSupport = conversionSummary.nIncludedACGs /(double)nACGs;
 
-                        double[] height1s = new double[conversionSummary.summarizedConvCount()];
-                        double[] height2s = new double[conversionSummary.summarizedConvCount()];
-                        double[] startSites = new double[conversionSummary.summarizedConvCount()];
-                        double[] endSites = new double[conversionSummary.summarizedConvCount()];
-                        for (int i=0; i<conversionSummary.summarizedConvCount(); i++) {
-                            height1s[i] = conversionSummary.height1s.get(i);
-                            height2s[i] = conversionSummary.height2s.get(i);
-                            startSites[i] = conversionSummary.startSites.get(i);
-                            endSites[i] = conversionSummary.ends.get(i);
-                        }
+                        ACGCladeSystem.ValueSummary height1s = conversionSummary.height1s;
+                        ACGCladeSystem.ValueSummary height2s = conversionSummary.height2s;
+                        ACGCladeSystem.ValueSummary startSites = conversionSummary.startSites;
+                        ACGCladeSystem.ValueSummary endSites = conversionSummary.ends;
 
                         if (summaryStrategy == SummaryStrategy.MEAN) {
-                            conv.setHeight1(DiscreteStatistics.mean(height1s));
-                            conv.setHeight2(DiscreteStatistics.mean(height2s));
-                            conv.setStartSite((int)Math.round(DiscreteStatistics.mean(startSites)));
-                            conv.setEndSite((int) Math.round(DiscreteStatistics.mean(endSites)));
+                            conv.setHeight1(height1s.getMean());
+                            conv.setHeight2(height2s.getMean());
+                            conv.setStartSite((int)Math.round(startSites.getMean()));
+                            conv.setEndSite((int) Math.round(endSites.getMean()));
                         } else {
-                            conv.setHeight1(DiscreteStatistics.median(height1s));
-                            conv.setHeight2(DiscreteStatistics.median(height2s));
-                            conv.setStartSite((int)Math.round(DiscreteStatistics.median(startSites)));
-                            conv.setEndSite((int) Math.round(DiscreteStatistics.median(endSites)));
+                            conv.setHeight1(height1s.getMedian());
+                            conv.setHeight2(height2s.getMedian());
+                            conv.setStartSite((int)Math.round(startSites.getMedian()));
+                            conv.setEndSite((int) Math.round(endSites.getMedian()));
                         }
 
-                        Arrays.sort(height1s);
-                        double minHeight1HPD = height1s[(int)(0.025 * height1s.length)];
-                        double maxHeight1HPD = height1s[(int)(0.975 * height1s.length)];
+                        double minHeight1HPD = height1s.getQuantile(0.025);
+                        double maxHeight1HPD = height1s.getQuantile(0.975);
 
-                        Arrays.sort(height2s);
-                        double minHeight2HPD = height2s[(int)(0.025 * height2s.length)];
-                        double maxHeight2HPD = height2s[(int)(0.975 * height2s.length)];
+                        double minHeight2HPD = height2s.getQuantile(0.025);
+                        double maxHeight2HPD = height2s.getQuantile(0.975);
 
-                        Arrays.sort(startSites);
-                        int minStartHPD = (int)startSites[(int)(0.025 * startSites.length)];
-                        int maxStartHPD = (int)startSites[(int)(0.975 * startSites.length)];
+                        int minStartHPD = (int)startSites.getQuantile(0.025);
+                        int maxStartHPD = (int)startSites.getQuantile(0.975);
 
-                        Arrays.sort(endSites);
-                        int minEndHPD = (int)endSites[(int)(0.025 * endSites.length)];
-                        int maxEndHPD = (int)endSites[(int)(0.975 * endSites.length)];
+                        int minEndHPD = (int)endSites.getQuantile(0.025);
+                        int maxEndHPD = (int)endSites.getQuantile(0.975);
 
                         conv.newickMetaDataBottom = "height_95%_HPD={" + minHeight1HPD + "," + maxHeight1HPD + "}";
                         conv.newickMetaDataMiddle = "posterior=" + posteriorSupport +
@@ -663,6 +963,22 @@ public class ACGAnnotator {
                     + "                         (Default 50%)\n"
                     + "-recordGeneFlow gfFile   Record posterior distribution of gene\n"
                     + "                         flow in given file.\n"
+                    + "-threads n               Number of threads used to parse and\n"
+                    + "                         summarize ACGs.\n"
+                    + "                         (Default 1)\n"
+                    + "-onePass                 Summarize using a single pass through\n"
+                    + "                         the log.  The MCC topology is chosen\n"
+                    + "                         from the " + MCC_CANDIDATE_COUNT + " ACGs scoring highest\n"
+                    + "                         under the clade frequencies accumulated\n"
+                    + "                         so far, so may differ from that found\n"
+                    + "                         in the default mode.\n"
+                    + "-index                   Save index of tree positions next to\n"
+                    + "                         log file, or reuse existing index.\n"
+                    + "-convSketch accuracy     Summarize conversion heights and sites\n"
+                    + "                         using memory independent of the log\n"
+                    + "                         length.  Medians and HPD bounds are\n"
+                    + "                         then accurate to within the given\n"
+                    + "                         relative error (e.g. 0.001).\n"
                     + "\n"
                     + "If no output file is specified, output is written to a file\n"
                     + "named 'summary.tree'.";
@@ -762,6 +1078,46 @@ public class ACGAnnotator {
                     i += 1;
                     break;
 
+                case "-threads":
+                    if (args.length<=i+1)
+                        printUsageAndError("-threads must be followed by a number.");
+
+                    try {
+                        options.threadCount = Integer.parseInt(args[i+1]);
+                    } catch (NumberFormatException e) {
+                        printUsageAndError("Error parsing number of threads.");
+                    }
+
+                    if (options.threadCount < 1)
+                        printUsageAndError("Number of threads must be at least 1.");
+
+                    i += 1;
+                    break;
+
+                case "-onePass":
+                    options.onePass = true;
+                    break;
+
+                case "-index":
+                    options.useIndexFile = true;
+                    break;
+
+                case "-convSketch":
+                    if (args.length<=i+1)
+                        printUsageAndError("-convSketch must be followed by a number.");
+
+                    try {
+                        options.convSketchAccuracy = Double.parseDouble(args[i+1]);
+                    } catch (NumberFormatException e) {
+                        printUsageAndError("Error parsing sketch accuracy.");
+                    }
+
+                    if (!(options.convSketchAccuracy > 0 && options.convSketchAccuracy < 1))
+                        printUsageAndError("Sketch accuracy must lie between 0 and 1.");
+
+                    i += 1;
+                    break;
+
                 default:
                     printUsageAndError("Unrecognised command line option '" + args[i] + "'.");
             }
@@ -21,6 +21,7 @@ import bacter.Conversion;
 import bacter.ConversionGraph;
 import bacter.Locus;
 import beast.base.evolution.tree.Node;
+import beast.base.util.DiscreteStatistics;
 import beastfx.app.treeannotator.CladeSystem;
 
 import java.util.*;
@@ -40,12 +41,49 @@ public class ACGCladeSystem extends CladeSystem {
 
     protected int acgIndex = 1;
 
+    /**
+     * Conversion summary sketches.  When sketchAccuracy is positive,
+     * conversions are not retained: collectConversions() instead records
+     * only the change in the number of ACGs converting each site for each
+     * pair of clades and locus.  Once all ACGs have been visited,
+     * prepareConversionSummaries() determines the summary regions from
+     * these counts and collectConversionSummaries() accumulates the
+     * summaries for these regions in a second pass.
+     */
+    protected double sketchAccuracy = 0.0;
+    protected Map<BitSetPair, Map<Locus, TreeMap<Integer, Integer>>> conversionCoverage = new HashMap<>();
+    protected Map<BitSetPair, Map<Locus, List<ConversionSummary>>> conversionSummaries;
+    protected int summaryACGIndex = 1;
+
     public ACGCladeSystem() { }
 
     public ACGCladeSystem(ConversionGraph acg) {
         add(acg, true);
     }
 
+    /**
+     * Summarize conversions using running moments and quantile sketches
+     * rather than by retaining every conversion, so that memory use is
+     * independent of the number of ACGs summarized.  Must be called
+     * before any conversions are collected.
+     *
+     * @param accuracy maximum relative error of the quantiles (including
+     *                 medians) of conversion heights and boundaries
+     */
+    public void useConversionSketches(double accuracy) {
+        if (!(accuracy > 0 && accuracy < 1))
+            throw new IllegalArgumentException("Sketch accuracy must lie between 0 and 1.");
+
+        sketchAccuracy = accuracy;
+    }
+
+    /**
+     * @return true if conversions are summarized using sketches
+     */
+    public boolean usesConversionSketches() {
+        return sketchAccuracy > 0;
+    }
+
     /**
      * Assemble list of bitSets for this ACG.
      */
@@ -62,6 +100,29 @@ public class ACGCladeSystem extends CladeSystem {
         return bitSets;
     }
 
+    /**
+     * Compute the log clade credibility of the clonal frame of an ACG
+     * from the clade counts accumulated so far, without requiring
+     * calculateCladeCredibilities() to be called first.  The clades of
+     * the ACG must already have been added.
+     *
+     * @param acg conversion graph
+     * @param nACGs number of ACGs added so far
+     * @return log clade credibility
+     */
+    public double getRunningLogCladeCredibility(ConversionGraph acg, int nACGs) {
+        double[] logCredibility = {0.0};
+
+        applyToClades(acg.getRoot(), (cladeNode, bits) -> {
+            if (!cladeNode.isLeaf())
+                logCredibility[0] += Math.log(
+                        getCladeMap().get(bits).getCount()/(double)nACGs);
+            return null;
+        });
+
+        return logCredibility[0];
+    }
+
     /**
      * Add conversions described on provided acg to the internal list
      * for later summary.
@@ -76,15 +137,9 @@ public class ACGCladeSystem extends CladeSystem {
         // Assemble list of conversions for each pair of clades on each locus
         for (Locus locus : acg.getConvertibleLoci()) {
 
-            conversionListsTemp.clear();
-            for (Conversion conv : acg.getConversions(locus))  {
-                conv.acgIndex = acgIndex;
-                BitSetPair bsPair = new BitSetPair(conv);
-
-                if (!conversionListsTemp.containsKey(bsPair))
-                    conversionListsTemp.put(bsPair, new ArrayList<>());
+            groupConversions(acg, locus, acgIndex);
 
-                conversionListsTemp.get(bsPair).add(conv);
+            for (BitSetPair bsPair : conversionListsTemp.keySet()) {
 
                 // Record gene flow
                 if (!geneFlowTemp.containsKey(bsPair.from))
@@ -94,7 +149,10 @@ public class ACGCladeSystem extends CladeSystem {
                 if (geneFlowTemp.get(bsPair.from).containsKey(bsPair.to))
                     oldFlow = geneFlowTemp.get(bsPair.from).get(bsPair.to);
 
-                geneFlowTemp.get(bsPair.from).put(bsPair.to, oldFlow + conv.getSiteCount());
+                for (Conversion conv : conversionListsTemp.get(bsPair))
+                    oldFlow += conv.getSiteCount();
+
+                geneFlowTemp.get(bsPair.from).put(bsPair.to, oldFlow);
             }
 
             // Merge overlapping conversions:
@@ -102,6 +160,21 @@ public class ACGCladeSystem extends CladeSystem {
                 List<Conversion> merged = mergeOverlappingConvs(
                             conversionListsTemp.get(bsPair));
 
+                if (usesConversionSketches()) {
+                    if (!conversionCoverage.containsKey(bsPair))
+                        conversionCoverage.put(bsPair, new HashMap<>());
+                    if (!conversionCoverage.get(bsPair).containsKey(locus))
+                        conversionCoverage.get(bsPair).put(locus, new TreeMap<>());
+
+                    TreeMap<Integer, Integer> coverage = conversionCoverage.get(bsPair).get(locus);
+                    for (Conversion conv : merged) {
+                        coverage.merge(conv.getStartSite(), 1, Integer::sum);
+                        coverage.merge(conv.getEndSite() + 1, -1, Integer::sum);
+                    }
+
+                    continue;
+                }
+
                 if (!conversionLists.containsKey(bsPair))
                     conversionLists.put(bsPair, new HashMap<>());
                 if (!conversionLists.get(bsPair).containsKey(locus))
@@ -117,6 +190,194 @@ public class ACGCladeSystem extends CladeSystem {
         acgIndex += 1;
     }
 
+    /**
+     * Group the conversions on the given locus of an ACG by the pair of
+     * clades they connect, placing the result in conversionListsTemp.
+     * The bitSets of the ACG must already have been assembled.
+     *
+     * @param acg conversion graph
+     * @param locus locus
+     * @param index index to assign to the conversions of this ACG
+     */
+    private void groupConversions(ConversionGraph acg, Locus locus, int index) {
+        conversionListsTemp.clear();
+        for (Conversion conv : acg.getConversions(locus))  {
+            conv.acgIndex = index;
+            BitSetPair bsPair = new BitSetPair(conv);
+
+            if (!conversionListsTemp.containsKey(bsPair))
+                conversionListsTemp.put(bsPair, new ArrayList<>());
+
+            conversionListsTemp.get(bsPair).add(conv);
+        }
+    }
+
+    /**
+     * Determine the regions to be summarized for each pair of clades and
+     * locus from the conversion counts recorded by collectConversions()
+     * in sketch mode.  A region is a maximal run of sites converted in at
+     * least the threshold fraction of ACGs; unlike the exact summary, a
+     * region is not split where one conversion ends at the site at which
+     * another begins.
+     *
+     * @param nACGs number of ACGs summarized
+     * @param threshold minimum fraction of ACGs converting each site
+     */
+    public void prepareConversionSummaries(int nACGs, double threshold) {
+        int thresholdCount = Math.max(1, (int)Math.ceil(nACGs*threshold));
+
+        conversionSummaries = new HashMap<>();
+        summaryACGIndex = 1;
+
+        for (BitSetPair bsPair : conversionCoverage.keySet()) {
+            for (Locus locus : conversionCoverage.get(bsPair).keySet()) {
+                List<ConversionSummary> summaryList = new ArrayList<>();
+
+                int active = 0;
+                ConversionSummary summary = null;
+                for (Map.Entry<Integer, Integer> entry
+                        : conversionCoverage.get(bsPair).get(locus).entrySet()) {
+                    active += entry.getValue();
+
+                    if (summary == null && active >= thresholdCount) {
+                        summary = new ConversionSummary(entry.getKey());
+                    } else if (summary != null && active < thresholdCount) {
+                        summary.regionEnd = entry.getKey();
+                        summaryList.add(summary);
+                        summary = null;
+                    }
+                }
+
+                if (summaryList.isEmpty())
+                    continue;
+
+                if (!conversionSummaries.containsKey(bsPair))
+                    conversionSummaries.put(bsPair, new HashMap<>());
+                conversionSummaries.get(bsPair).put(locus, summaryList);
+            }
+        }
+    }
+
+    /**
+     * Add the conversions of an ACG to the summaries of the regions they
+     * overlap.  Used in sketch mode, following
+     * prepareConversionSummaries(), with each ACG visited once.
+     *
+     * @param acg conversion graph
+     */
+    public void collectConversionSummaries(ConversionGraph acg) {
+        getBitSets(acg);
+
+        for (Locus locus : acg.getConvertibleLoci()) {
+
+            groupConversions(acg, locus, summaryACGIndex);
+
+            for (BitSetPair bsPair : conversionListsTemp.keySet()) {
+                if (!conversionSummaries.containsKey(bsPair)
+                        || !conversionSummaries.get(bsPair).containsKey(locus))
+                    continue;
+
+                List<ConversionSummary> summaryList = conversionSummaries.get(bsPair).get(locus);
+
+                for (Conversion conv : mergeOverlappingConvs(conversionListsTemp.get(bsPair))) {
+                    for (ConversionSummary summary : summaryList) {
+                        if (summary.regionStart > conv.getEndSite())
+                            break;
+
+                        if (summary.regionEnd <= conv.getStartSite())
+                            continue;
+
+                        summary.addConv(conv);
+                        if (summary.lastACGIndex != summaryACGIndex) {
+                            summary.lastACGIndex = summaryACGIndex;
+                            summary.nIncludedACGs += 1;
+                        }
+                    }
+                }
+            }
+        }
+
+        summaryACGIndex += 1;
+    }
+
+    /**
+     * Merge the clades, attributes, conversions and gene flow accumulated
+     * by another clade system into this one.  The ACGs summarized by
+     * other are treated as following those summarized by this system,
+     * so merging the partial systems of consecutive ranges of ACGs in
+     * order yields the same summary as accumulating all of the ACGs in a
+     * single system.  The other system's clades and conversions are
+     * taken over rather than copied, so it should not be used afterwards.
+     *
+     * @param other clade system to merge into this one
+     */
+    public void merge(ACGCladeSystem other) {
+
+        // Clade counts and attributes
+        for (Map.Entry<BitSet, Clade> entry : other.getCladeMap().entrySet()) {
+            Clade otherClade = entry.getValue();
+            Clade clade = getCladeMap().get(entry.getKey());
+
+            if (clade == null) {
+                getCladeMap().put(entry.getKey(), otherClade);
+                continue;
+            }
+
+            if (clade.getAttributeValues() == null) {
+                otherClade.setCount(clade.getCount() + otherClade.getCount());
+                getCladeMap().put(entry.getKey(), otherClade);
+            } else {
+                clade.setCount(clade.getCount() + otherClade.getCount());
+                if (otherClade.getAttributeValues() != null)
+                    clade.getAttributeValues().addAll(otherClade.getAttributeValues());
+            }
+        }
+
+        // Conversions, renumbering ACG indices to follow our own
+        int acgIndexOffset = acgIndex - 1;
+        for (BitSetPair bsPair : other.conversionLists.keySet()) {
+            BitSetPair ourPair = new BitSetPair(bsPair.from, bsPair.to);
+
+            if (!conversionLists.containsKey(ourPair))
+                conversionLists.put(ourPair, new HashMap<>());
+
+            for (Map.Entry<Locus, List<Conversion>> entry
+                    : other.conversionLists.get(bsPair).entrySet()) {
+
+                for (Conversion conv : entry.getValue())
+                    conv.acgIndex += acgIndexOffset;
+
+                if (!conversionLists.get(ourPair).containsKey(entry.getKey()))
+                    conversionLists.get(ourPair).put(entry.getKey(), new ArrayList<>());
+
+                conversionLists.get(ourPair).get(entry.getKey()).addAll(entry.getValue());
+            }
+        }
+
+        // Conversion counts recorded in sketch mode
+        for (BitSetPair bsPair : other.conversionCoverage.keySet()) {
+            BitSetPair ourPair = new BitSetPair(bsPair.from, bsPair.to);
+
+            if (!conversionCoverage.containsKey(ourPair))
+                conversionCoverage.put(ourPair, new HashMap<>());
+
+            for (Map.Entry<Locus, TreeMap<Integer, Integer>> entry
+                    : other.conversionCoverage.get(bsPair).entrySet()) {
+
+                if (!conversionCoverage.get(ourPair).containsKey(entry.getKey()))
+                    conversionCoverage.get(ourPair).put(entry.getKey(), new TreeMap<>());
+
+                TreeMap<Integer, Integer> coverage = conversionCoverage.get(ourPair).get(entry.getKey());
+                for (Map.Entry<Integer, Integer> diff : entry.getValue().entrySet())
+                    coverage.merge(diff.getKey(), diff.getValue(), Integer::sum);
+            }
+        }
+
+        geneFlow.addAll(other.geneFlow);
+
+        acgIndex += other.acgIndex - 1;
+    }
+
     private List<Conversion> mergeOverlappingConvs(List<Conversion> conversions) {
         List<Conversion> mergedList = new ArrayList<>();
 
@@ -195,6 +456,18 @@ public class ACGCladeSystem extends CladeSystem {
 
         BitSetPair bsPair = new BitSetPair(from, to);
 
+        if (usesConversionSketches()) {
+            if (conversionSummaries == null)
+                throw new IllegalStateException("Conversion summaries " +
+                        "must be prepared and collected in sketch mode.");
+
+            if (!conversionSummaries.containsKey(bsPair)
+                    || !conversionSummaries.get(bsPair).containsKey(locus))
+                return new ArrayList<>();
+
+            return conversionSummaries.get(bsPair).get(locus);
+        }
+
         List<ConversionSummary> convSummaryList = new ArrayList<>();
 
         // Return empty list if on conversions meet the criteria.
@@ -339,13 +612,36 @@ public class ACGCladeSystem extends CladeSystem {
      */
     public class ConversionSummary {
 
-        List<Double> height1s = new ArrayList<>();
-        List<Double> height2s = new ArrayList<>();
-        List<Integer> startSites = new ArrayList<>();
-        List<Integer> ends = new ArrayList<>();
+        public ValueSummary height1s = new ValueSummary();
+        public ValueSummary height2s = new ValueSummary();
+        public ValueSummary startSites = new ValueSummary();
+        public ValueSummary ends = new ValueSummary();
 
         public int nIncludedACGs = 0;
 
+        /**
+         * First site of region, site following region and index of most
+         * recent ACG contributing to the summary, used only in sketch mode.
+         */
+        int regionStart, regionEnd;
+        int lastACGIndex = 0;
+
+        public ConversionSummary() { }
+
+        /**
+         * Create a summary of the conversions overlapping a region, used
+         * in sketch mode.  Sites are sketched relative to the start of the
+         * region, as sketch accuracy is relative to the magnitude of the
+         * values recorded.
+         *
+         * @param regionStart first site of region
+         */
+        ConversionSummary(int regionStart) {
+            this.regionStart = regionStart;
+            startSites = new ValueSummary(regionStart);
+            ends = new ValueSummary(regionStart);
+        }
+
         /**
          * Add metrics associated with given conversion to summary.
          *
@@ -373,7 +669,96 @@ public class ACGCladeSystem extends CladeSystem {
          * @return number of conversions included in summary.
          */
         public int summarizedConvCount() {
-            return height1s.size();
+            return (int)height1s.getCount();
+        }
+    }
+
+    /**
+     * Class summarizing the values taken by a single conversion metric.
+     * Values are either retained in full or, in sketch mode, recorded
+     * only through their sum and a QuantileSketch of their differences
+     * from an origin.
+     */
+    public class ValueSummary {
+
+        List<Double> values;
+        QuantileSketch sketch;
+        final double origin;
+
+        double sum = 0.0;
+        long count = 0;
+
+        public ValueSummary() {
+            this(0.0);
+        }
+
+        /**
+         * @param origin value subtracted from those recorded in the sketch,
+         *               which should lie close to the values summarized
+         */
+        public ValueSummary(double origin) {
+            this.origin = origin;
+
+            if (usesConversionSketches())
+                sketch = new QuantileSketch(sketchAccuracy);
+            else
+                values = new ArrayList<>();
+        }
+
+        public void add(double value) {
+            if (sketch != null)
+                sketch.add(value - origin);
+            else
+                values.add(value);
+
+            sum += value;
+            count += 1;
+        }
+
+        /**
+         * @return number of values summarized
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return mean of values
+         */
+        public double getMean() {
+            return sum/count;
+        }
+
+        /**
+         * @return median of values (approximate in sketch mode)
+         */
+        public double getMedian() {
+            if (sketch != null)
+                return origin + sketch.getMedian();
+
+            return DiscreteStatistics.median(getValueArray());
+        }
+
+        /**
+         * @param p quantile in [0,1]
+         * @return element of rank floor(p n) among the n sorted values
+         * (approximate in sketch mode)
+         */
+        public double getQuantile(double p) {
+            if (sketch != null)
+                return origin + sketch.getQuantile(p);
+
+            double[] sorted = getValueArray();
+            Arrays.sort(sorted);
+            return sorted[(int)(p * sorted.length)];
+        }
+
+        private double[] getValueArray() {
+            double[] array = new double[values.size()];
+            for (int i=0; i<array.length; i++)
+                array[i] = values.get(i);
+
+            return array;
         }
     }
 }
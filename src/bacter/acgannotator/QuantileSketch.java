@@ -0,0 +1,204 @@
+package bacter.acgannotator;
+
+/**
+ * Mergeable sketch of the distribution of a stream of values, using
+ * logarithmically spaced bins in the manner of the DDSketch of Masson, Rim
+ * and Lee (2019).  Each non-zero value is counted in the bin
+ * (gamma^(i-1), gamma^i] containing its magnitude, where
+ * gamma = (1+alpha)/(1-alpha), with positive and negative values binned
+ * separately.  Each bin is represented by the value 2 gamma^i/(gamma+1)
+ * (negated for negative values), which lies within a relative distance
+ * alpha of every value in the bin.
+ *
+ * Consequently, if q is the value of rank r in the recorded stream, the
+ * estimate returned for that rank lies within alpha |q| of q.  The
+ * median reported is the element of rank floor(n/2), so for an even
+ * number of values the estimate lies within a relative distance alpha of
+ * the upper of the two middle values.  As the error is relative to the
+ * magnitude of the values, quantities such as site positions should be
+ * recorded relative to a nearby origin.
+ *
+ * Memory depends only on alpha and on the ratio of the largest to the
+ * smallest non-zero magnitude recorded, never on the number of values.
+ * At most MAX_BINS bins are kept for each sign: if this is exceeded, the
+ * bins of smallest magnitude are collapsed together, which affects only
+ * the accuracy of the values closest to zero.  Sketches with the same
+ * accuracy can be merged exactly.
+ */
+public class QuantileSketch {
+
+    public static final int MAX_BINS = 8192;
+
+    private final double alpha, gamma, logGamma;
+
+    private final BinStore positive = new BinStore(), negative = new BinStore();
+    private long zeroCount = 0, count = 0;
+
+    /**
+     * Counts of values in logarithmically spaced bins of magnitude.
+     */
+    private static class BinStore {
+        long[] bins = new long[0];
+        int minIndex = 0;
+
+        void increment(int index, long n) {
+            if (bins.length == 0) {
+                bins = new long[64];
+                minIndex = index - bins.length/2;
+            }
+
+            if (index < minIndex || index >= minIndex + bins.length)
+                grow(index);
+
+            bins[Math.max(index, minIndex) - minIndex] += n;
+        }
+
+        /**
+         * Reallocate the bin array to include the given index, leaving spare
+         * capacity on the side being extended.  Once MAX_BINS is reached the
+         * lowest bins are collapsed instead.
+         */
+        private void grow(int index) {
+            int lo = 0, hi = bins.length - 1;
+            while (lo < hi && bins[lo] == 0)
+                lo += 1;
+            while (hi > lo && bins[hi] == 0)
+                hi -= 1;
+
+            int minOccupied = Math.min(minIndex + lo, index);
+            int maxOccupied = Math.max(minIndex + hi, index);
+
+            int needed = maxOccupied - minOccupied + 1;
+            int capacity = Math.min(MAX_BINS, Math.max(needed, 2*bins.length));
+
+            int newMinIndex = index < minIndex
+                    ? maxOccupied - capacity + 1
+                    : Math.max(minOccupied, maxOccupied - capacity + 1);
+
+            long[] newBins = new long[capacity];
+            for (int i=lo; i<=hi; i++)
+                newBins[Math.max(minIndex + i, newMinIndex) - newMinIndex] += bins[i];
+
+            bins = newBins;
+            minIndex = newMinIndex;
+        }
+
+        void merge(BinStore other) {
+            for (int i=0; i<other.bins.length; i++) {
+                if (other.bins[i] > 0)
+                    increment(other.minIndex + i, other.bins[i]);
+            }
+        }
+    }
+
+    /**
+     * @param alpha maximum relative error of quantile estimates, in (0,1)
+     */
+    public QuantileSketch(double alpha) {
+        if (!(alpha > 0 && alpha < 1))
+            throw new IllegalArgumentException("Sketch accuracy must lie between 0 and 1.");
+
+        this.alpha = alpha;
+        this.gamma = (1 + alpha)/(1 - alpha);
+        this.logGamma = Math.log(gamma);
+    }
+
+    /**
+     * @return maximum relative error of quantile estimates
+     */
+    public double getAccuracy() {
+        return alpha;
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value finite value
+     */
+    public void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            throw new IllegalArgumentException("QuantileSketch only records finite values.");
+
+        if (Math.abs(value) < Double.MIN_NORMAL)
+            zeroCount += 1;
+        else if (value > 0)
+            positive.increment(getIndex(value), 1);
+        else
+            negative.increment(getIndex(-value), 1);
+
+        count += 1;
+    }
+
+    private int getIndex(double magnitude) {
+        return (int)Math.ceil(Math.log(magnitude)/logGamma);
+    }
+
+    private double getBinValue(int index) {
+        return 2*Math.pow(gamma, index)/(gamma + 1);
+    }
+
+    /**
+     * Estimate the value of the given quantile.  The element of rank
+     * floor(p n) (counting from zero) is estimated, following the
+     * convention used for the HPD bounds in ACGAnnotator.
+     *
+     * @param p quantile in [0,1]
+     * @return estimate, or NaN if no values have been recorded
+     */
+    public double getQuantile(double p) {
+        if (count == 0)
+            return Double.NaN;
+
+        long rank = Math.min((long)(p*count), count - 1);
+
+        // Negative values, in decreasing order of magnitude
+        long cumulative = 0;
+        for (int i=negative.bins.length-1; i>=0; i--) {
+            cumulative += negative.bins[i];
+            if (rank < cumulative)
+                return -getBinValue(negative.minIndex + i);
+        }
+
+        cumulative += zeroCount;
+        if (rank < cumulative)
+            return 0.0;
+
+        for (int i=0; i<positive.bins.length; i++) {
+            cumulative += positive.bins[i];
+            if (rank < cumulative)
+                return getBinValue(positive.minIndex + i);
+        }
+
+        throw new IllegalStateException("Inconsistent quantile sketch.");
+    }
+
+    /**
+     * @return estimate of median
+     */
+    public double getMedian() {
+        return getQuantile(0.5);
+    }
+
+    /**
+     * Add the values recorded by another sketch to this one.
+     *
+     * @param other sketch with the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.alpha != alpha)
+            throw new IllegalArgumentException("Cannot merge sketches of different accuracy.");
+
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+}
@@ -61,15 +61,11 @@ public class CFConvSwapExperiment {
             grandParent.addChild(sister);
         }
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode1() == parent)
-                    conv.setNode1(sister);
+        for (Conversion conv : acg.getDepartingConversions(parent))
+            conv.setNode1(sister);
 
-                if (conv.getNode2() == parent)
-                    conv.setNode2(sister);
-            }
-        }
+        for (Conversion conv : acg.getArrivingConversions(parent))
+            conv.setNode2(sister);
     }
 
     public static void connectEdge(ConversionGraph acg, Node node, Node destEdgeBase, double destTime) {
@@ -91,15 +87,13 @@ public class CFConvSwapExperiment {
 
         parent.setHeight(destTime);
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode1() == destEdgeBase && conv.getHeight1() > destTime)
-                    conv.setNode1(parent);
+        for (Conversion conv : acg.getDepartingConversions(destEdgeBase))
+            if (conv.getHeight1() > destTime)
+                conv.setNode1(parent);
 
-                if (conv.getNode2() == destEdgeBase && conv.getHeight2() > destTime)
-                    conv.setNode2(parent);
-            }
-        }
+        for (Conversion conv : acg.getArrivingConversions(destEdgeBase))
+            if (conv.getHeight2() > destTime)
+                conv.setNode2(parent);
     }
 
     public static void main(String[] args) throws Exception {
@@ -138,27 +132,20 @@ public class CFConvSwapExperiment {
         connectEdge(acg, srcNode, destNode, convToReplace.getHeight2());
 
         // Move Conversions
-        for (Conversion conv : acg.getConversions(locus)) {
-            boolean moved = false;
-
-            if (conv.getNode1()==srcNode && conv.getHeight1()>srcNodeP.getHeight()) {
+        for (Conversion conv : acg.getDepartingConversions(srcNode)) {
+            if (conv.getLocus() == locus && conv.getHeight1()>srcNodeP.getHeight()) {
                 conv.setNode1(destNode);
-                moved = true;
-            }
-
-            if (conv.getNode2()==srcNode && conv.getHeight2()>srcNodeP.getHeight()) {
-                conv.setNode2(destNode);
-                moved = true;
-            }
-
-            if (moved) {
                 while (conv.getHeight1()>conv.getNode1().getParent().getHeight())
                     conv.setNode1(conv.getNode1().getParent());
+            }
+        }
 
+        for (Conversion conv : acg.getArrivingConversions(srcNode)) {
+            if (conv.getLocus() == locus && conv.getHeight2()>srcNodeP.getHeight()) {
+                conv.setNode2(destNode);
                 while (conv.getHeight2()>conv.getNode2().getParent().getHeight())
                     conv.setNode2(conv.getNode2().getParent());
             }
-
         }
 
         Conversion convNew = new Conversion();
@@ -41,10 +41,11 @@ public class DifferenceFromTrueACG {
         double ageTol = 0.25;
         File logFile, truthFile, outFile, summaryFile;
         boolean useCOFormat = false;
+        int threadCount = 1;
     }
 
     public static void printUsageAndExit(int exitCode) {
-        System.out.println("Usage: DifferenceFromTrueACG [-burnin b] [-boundaryTol t] [-ageTol t] [-co] truth.tree log.trees output_file");
+        System.out.println("Usage: DifferenceFromTrueACG [-burnin b] [-boundaryTol t] [-ageTol t] [-threads n] [-co] truth.tree log.trees output_file");
         System.exit(exitCode);
     }
 
@@ -101,6 +102,22 @@ public class DifferenceFromTrueACG {
                     }
                     break;
 
+                case "threads":
+                    i += 1;
+                    if (i>=args.length)
+                        printUsageAndExit(1);
+                    try {
+                        options.threadCount = Integer.valueOf(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Argument to -threads must be an integer.");
+                        printUsageAndExit(1);
+                    }
+                    if (options.threadCount < 1) {
+                        System.out.println("Argument to -threads must be at least 1.");
+                        printUsageAndExit(1);
+                    }
+                    break;
+
                 default:
                     System.err.println("Unknown argument: " + args[i]);
                     printUsageAndExit(1);
@@ -286,9 +303,13 @@ public class DifferenceFromTrueACG {
 
         ACGLogReader logReader;
         if (options.useCOFormat) {
-            logReader = new COACGLogFileReader(options.logFile, options.burninPerc);
+            COACGLogFileReader coLogReader = new COACGLogFileReader(options.logFile, options.burninPerc);
+            coLogReader.setParserThreadCount(options.threadCount);
+            logReader = coLogReader;
         } else {
-            logReader = new BacterACGLogReader(options.logFile, options.burninPerc);
+            BacterACGLogReader bacterLogReader = new BacterACGLogReader(options.logFile, options.burninPerc);
+            bacterLogReader.setParserThreadCount(options.threadCount);
+            logReader = bacterLogReader;
         }
 
 
@@ -0,0 +1,255 @@
+package bacter.inference;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.Evaluator;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Delayed-acceptance MCMC (Christen and Fox, 2005).  Each proposal is
+ * first accepted or rejected under a screening density, in which the
+ * expensive likelihoods of the posterior are replaced by cheap
+ * approximations such as ACGLikelihoodApprox.  Only proposals which
+ * survive this stage are evaluated under the full posterior, and are then
+ * accepted with probability
+ *
+ *   min(1, [p(x')/p(x)] / [s(x')/s(x)])
+ *
+ * where p is the posterior and s the screening density.  As the Hastings
+ * ratio enters only the first stage, the chain has exactly the posterior
+ * as its stationary distribution.  The closer the approximation, the
+ * fewer proposals are rejected at the second stage.
+ *
+ * Operators are tuned on the overall acceptance probability, being the
+ * product of those of the two stages.
+ */
+@Description("MCMC in which proposals are screened using cheap approximate " +
+        "likelihoods before the full posterior is evaluated.")
+public class DelayedAcceptanceMCMC extends MCMC {
+
+    public Input<List<Distribution>> likelihoodsInput = new Input<>(
+            "likelihood",
+            "Expensive component of the posterior, replaced by the " +
+                    "approximate likelihoods when screening proposals.",
+            new ArrayList<>());
+
+    public Input<List<Distribution>> approxLikelihoodsInput = new Input<>(
+            "approxLikelihood",
+            "Cheap approximation to the likelihood used when screening " +
+                    "proposals.  Must not form part of the posterior.",
+            new ArrayList<>());
+
+    private Set<Distribution> likelihoods;
+    private List<Distribution> approxLikelihoods;
+
+    private double oldScreenLogP;
+    private boolean oldScreenLogPKnown;
+
+    private long screenedCount, screenAcceptCount, acceptCount;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (likelihoodsInput.get().isEmpty() || approxLikelihoodsInput.get().isEmpty())
+            throw new IllegalArgumentException("DelayedAcceptanceMCMC requires " +
+                    "at least one likelihood and one approxLikelihood.");
+
+        likelihoods = Collections.newSetFromMap(new IdentityHashMap<>());
+        likelihoods.addAll(likelihoodsInput.get());
+        approxLikelihoods = approxLikelihoodsInput.get();
+
+        List<Distribution> found = new ArrayList<>();
+        collectLikelihoods(posteriorInput.get(), found);
+        if (found.size() != likelihoods.size())
+            throw new IllegalArgumentException("Each likelihood given to " +
+                    "DelayedAcceptanceMCMC must be a component of the posterior.");
+    }
+
+    private void collectLikelihoods(Distribution distr, List<Distribution> found) {
+        if (likelihoods.contains(distr)) {
+            found.add(distr);
+            return;
+        }
+
+        if (distr instanceof CompoundDistribution) {
+            for (Distribution childDistr : ((CompoundDistribution) distr).pDistributions.get())
+                collectLikelihoods(childDistr, found);
+        }
+    }
+
+    @Override
+    public void run() throws IOException, SAXException, ParserConfigurationException {
+        oldScreenLogPKnown = false;
+        screenedCount = 0;
+        screenAcceptCount = 0;
+        acceptCount = 0;
+
+        super.run();
+
+        Log.info.println("Delayed acceptance: " + screenedCount + " proposals screened, "
+                + screenAcceptCount + " passed to full posterior, "
+                + acceptCount + " accepted.");
+    }
+
+    /**
+     * Compute the log screening density of the current state: the
+     * posterior with each likelihood replaced by its approximation.
+     * Components which have not been affected by the proposal retain
+     * their current values.
+     *
+     * @param distr posterior or one of its components
+     * @return log screening density contribution
+     */
+    private double getScreenLogP(Distribution distr) {
+        if (likelihoods.contains(distr))
+            return 0.0;
+
+        if (distr instanceof CompoundDistribution) {
+            double logP = 0.0;
+            for (Distribution childDistr : ((CompoundDistribution) distr).pDistributions.get()) {
+                logP += getScreenLogP(childDistr);
+                if (logP == Double.NEGATIVE_INFINITY)
+                    break;
+            }
+            return logP;
+        }
+
+        return distr.isDirtyCalculation() ? distr.calculateLogP() : distr.getCurrentLogP();
+    }
+
+    private double getScreenLogP() {
+        double logP = getScreenLogP(posterior);
+        if (logP == Double.NEGATIVE_INFINITY)
+            return logP;
+
+        // Approximations are recomputed outright, as they need not
+        // track the dirtiness of their inputs.
+        for (Distribution approxLikelihood : approxLikelihoods)
+            logP += approxLikelihood.calculateLogP();
+
+        return logP;
+    }
+
+    @Override
+    public Operator propagateState(final long sampleNr) {
+        if (!oldScreenLogPKnown) {
+            state.setEverythingDirty(false);
+            oldScreenLogP = getScreenLogP();
+            oldScreenLogPKnown = true;
+        }
+
+        state.store(sampleNr);
+
+        final Operator operator = operatorSchedule.selectOperator();
+
+        final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+        Evaluator evaluator = null;
+
+        if (evaluatorDistribution != null) {
+            evaluator = () -> {
+                double logP = 0.0;
+
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+
+                try {
+                    logP = evaluatorDistribution.calculateLogP();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+
+                state.restore();
+                state.store(sampleNr);
+
+                return logP;
+            };
+        }
+
+        final double logHastingsRatio = operator.proposal(evaluator);
+
+        if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+            // operation failed
+            if (sampleNr >= 0)
+                operator.reject(-2);
+
+            state.restore();
+            if (!operator.requiresStateInitialisation()) {
+                state.setEverythingDirty(false);
+                state.restoreCalculationNodes();
+            }
+
+            logAlpha = Double.NEGATIVE_INFINITY;
+            log(sampleNr);
+            return operator;
+        }
+
+        if (operator.requiresStateInitialisation()) {
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+        }
+
+        // First stage: screen using approximate likelihoods
+        screenedCount += 1;
+        double newScreenLogP = getScreenLogP();
+        double logAlpha1 = newScreenLogP - oldScreenLogP + logHastingsRatio;
+
+        if (newScreenLogP == Double.NEGATIVE_INFINITY
+                || (logAlpha1 < 0 && Randomizer.nextDouble() >= Math.exp(logAlpha1))) {
+            if (sampleNr >= 0)
+                operator.reject(newScreenLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+
+            state.restore();
+            state.restoreCalculationNodes();
+            state.setEverythingDirty(false);
+
+            logAlpha = logAlpha1;
+            log(sampleNr);
+            return operator;
+        }
+
+        // Second stage: correct using full posterior
+        screenAcceptCount += 1;
+        newLogLikelihood = posterior.calculateLogP();
+        double logAlpha2 = newLogLikelihood - oldLogLikelihood - (newScreenLogP - oldScreenLogP);
+
+        logAlpha = Math.min(logAlpha1, 0.0) + Math.min(logAlpha2, 0.0);
+
+        if (logAlpha2 >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha2)) {
+            // accept
+            acceptCount += 1;
+            oldLogLikelihood = newLogLikelihood;
+            oldScreenLogP = newScreenLogP;
+            state.acceptCalculationNodes();
+
+            if (sampleNr >= 0)
+                operator.accept();
+        } else {
+            // reject
+            if (sampleNr >= 0)
+                operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
+
+            state.restore();
+            state.restoreCalculationNodes();
+        }
+        state.setEverythingDirty(false);
+
+        log(sampleNr);
+        return operator;
+    }
+}
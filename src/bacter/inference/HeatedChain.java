@@ -0,0 +1,182 @@
+package bacter.inference;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.Evaluator;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.util.Randomizer;
+
+/**
+ * Chain run at a given temperature T, targeting the posterior raised to
+ * the power 1/T, on behalf of MetropolisCoupledMCMC.  The chain is
+ * advanced one step at a time by its owner, so its chain length, loggers
+ * and state file are not used.  Each heated chain must have its own
+ * state, posterior and operators, with the state nodes listed in the same
+ * order as in the state of the cold chain.
+ */
+@Description("Heated chain used by MetropolisCoupledMCMC.")
+public class HeatedChain extends MCMC {
+
+    private double beta = 1.0;
+
+    public HeatedChain() {
+        chainLengthInput.setRule(Input.Validate.OPTIONAL);
+        loggersInput.setRule(Input.Validate.OPTIONAL);
+    }
+
+    /**
+     * @param temperature temperature of chain, with 1 being the cold chain
+     */
+    public void setTemperature(double temperature) {
+        beta = 1.0/temperature;
+    }
+
+    /**
+     * @return temperature of chain
+     */
+    public double getTemperature() {
+        return 1.0/beta;
+    }
+
+    /**
+     * Initialise the state and calculate the posterior, in the manner of
+     * MCMC.run().
+     */
+    public void initialiseChain() {
+        state.initAndValidate();
+        state.setEverythingDirty(true);
+        posterior = posteriorInput.get();
+
+        int initialisationAttempts = 0;
+        do {
+            for (StateNodeInitialiser initialiser : initialisersInput.get())
+                initialiser.initStateNodes();
+
+            oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+            initialisationAttempts += 1;
+        } while (Double.isInfinite(oldLogLikelihood)
+                && initialisationAttempts < numInitializationAttempts.get());
+
+        if (Double.isInfinite(oldLogLikelihood) || Double.isNaN(oldLogLikelihood))
+            throw new IllegalStateException("Could not find a proper state "
+                    + "to initialise heated chain " + getID() + ".");
+
+        state.storeCalculationNodes();
+        logAlpha = 0;
+    }
+
+    /**
+     * Advance the chain by one step.
+     *
+     * @param sampleNr sample number of step
+     */
+    public void step(long sampleNr) {
+        Operator operator = propagateState(sampleNr);
+        if (sampleNr >= 0)
+            operator.optimize(logAlpha);
+    }
+
+    /**
+     * @return state of chain
+     */
+    public State getChainState() {
+        return state;
+    }
+
+    /**
+     * @return untempered log posterior of the current state
+     */
+    public double getLogPosterior() {
+        return oldLogLikelihood;
+    }
+
+    /**
+     * Recalculate the posterior following the replacement of the state
+     * by that of another chain.
+     */
+    public void stateReplaced() {
+        oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+    }
+
+    @Override
+    public Operator propagateState(final long sampleNr) {
+        if (beta == 1.0)
+            return super.propagateState(sampleNr);
+
+        state.store(sampleNr);
+
+        final Operator operator = operatorSchedule.selectOperator();
+
+        final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+        Evaluator evaluator = null;
+
+        if (evaluatorDistribution != null) {
+            evaluator = () -> {
+                double logP = 0.0;
+
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+
+                try {
+                    logP = beta*evaluatorDistribution.calculateLogP();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+
+                state.restore();
+                state.store(sampleNr);
+
+                return logP;
+            };
+        }
+
+        final double logHastingsRatio = operator.proposal(evaluator);
+
+        if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+            // operation failed
+            if (sampleNr >= 0)
+                operator.reject(-2);
+
+            state.restore();
+            if (!operator.requiresStateInitialisation()) {
+                state.setEverythingDirty(false);
+                state.restoreCalculationNodes();
+            }
+
+            logAlpha = Double.NEGATIVE_INFINITY;
+            return operator;
+        }
+
+        if (operator.requiresStateInitialisation()) {
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+        }
+
+        newLogLikelihood = posterior.calculateLogP();
+        logAlpha = beta*(newLogLikelihood - oldLogLikelihood) + logHastingsRatio;
+
+        if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+            // accept
+            oldLogLikelihood = newLogLikelihood;
+            state.acceptCalculationNodes();
+
+            if (sampleNr >= 0)
+                operator.accept();
+        } else {
+            // reject
+            if (sampleNr >= 0)
+                operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
+
+            state.restore();
+            state.restoreCalculationNodes();
+        }
+        state.setEverythingDirty(false);
+
+        return operator;
+    }
+}
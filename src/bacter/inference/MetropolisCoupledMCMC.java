@@ -0,0 +1,288 @@
+package bacter.inference;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Metropolis-coupled MCMC (Geyer, 1991), in which the cold chain defined
+ * by this object runs alongside a number of heated chains, each in its
+ * own thread.  The ith heated chain targets the posterior raised to the
+ * power 1/(1 + i*deltaTemperature), and so crosses more easily between
+ * the modes of the posterior in the number and placement of conversions.
+ *
+ * All chains take swapEvery steps between swap attempts.  At each
+ * attempt two chains i and j are chosen at random, and their states
+ * exchanged with probability
+ *
+ *   min(1, [p(x_j)/p(x_i)]^(1/T_i - 1/T_j))
+ *
+ * where p is the untempered posterior and T the chain temperatures.  The
+ * state nodes of the chains, such as the ConversionGraph and parameters,
+ * are exchanged using StateNode.copy() and assignFrom(), so only the
+ * cold chain need be logged.
+ *
+ * Without heated chains this is exactly MCMC.  Otherwise, as the chains
+ * draw from a single random number generator in an order which depends on
+ * thread scheduling, runs are not reproducible from their seed.  Heated
+ * chains are not stored in the state file, so are reinitialised when a
+ * run is resumed.
+ */
+@Description("Metropolis-coupled MCMC, running heated chains in " +
+        "parallel and swapping states between chains.")
+public class MetropolisCoupledMCMC extends MCMC {
+
+    public Input<List<HeatedChain>> heatedChainsInput = new Input<>(
+            "heatedChain",
+            "Heated chain, with its own state, posterior and operators.",
+            new ArrayList<>());
+
+    public Input<Double> deltaTemperatureInput = new Input<>(
+            "deltaTemperature",
+            "Temperature of the ith heated chain is 1 + i*deltaTemperature.",
+            0.1);
+
+    public Input<Integer> swapEveryInput = new Input<>(
+            "swapEvery",
+            "Number of steps taken by each chain between swap attempts.",
+            100);
+
+    private List<HeatedChain> heatedChains;
+    private int swapEvery;
+
+    private ExecutorService executor;
+    private List<Future<?>> pending;
+    private int stepsInBlock;
+
+    private StateNode[] swapBuffers;
+
+    private long[][] swapAttempts, swapAccepts;
+    private long[] chainSteps, chainNanos;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        heatedChains = heatedChainsInput.get();
+        swapEvery = swapEveryInput.get();
+
+        if (deltaTemperatureInput.get() <= 0.0)
+            throw new IllegalArgumentException("deltaTemperature must be positive.");
+
+        if (swapEvery < 1)
+            throw new IllegalArgumentException("swapEvery must be at least 1.");
+
+        for (int i=0; i<heatedChains.size(); i++) {
+            HeatedChain chain = heatedChains.get(i);
+            chain.setTemperature(1.0 + (i+1)*deltaTemperatureInput.get());
+
+            State chainState = chain.getChainState();
+            boolean compatible = chainState.getNrOfStateNodes() == state.getNrOfStateNodes();
+            for (int k=0; compatible && k<state.getNrOfStateNodes(); k++)
+                compatible = chainState.getStateNode(k).getClass()
+                        == state.getStateNode(k).getClass();
+
+            if (!compatible)
+                throw new IllegalArgumentException("State of heated chain "
+                        + chain.getID() + " does not match that of the cold chain.");
+        }
+    }
+
+    @Override
+    public void run() throws IOException, SAXException, ParserConfigurationException {
+        if (heatedChains.isEmpty()) {
+            super.run();
+            return;
+        }
+
+        for (HeatedChain chain : heatedChains)
+            chain.initialiseChain();
+
+        swapBuffers = new StateNode[state.getNrOfStateNodes()];
+        for (int k=0; k<swapBuffers.length; k++)
+            swapBuffers[k] = state.getStateNode(k).copy();
+
+        int nChains = heatedChains.size() + 1;
+        swapAttempts = new long[nChains][nChains];
+        swapAccepts = new long[nChains][nChains];
+        chainSteps = new long[nChains];
+        chainNanos = new long[nChains];
+        stepsInBlock = 0;
+
+        executor = Executors.newFixedThreadPool(heatedChains.size(), r -> {
+            Thread thread = new Thread(r, "MetropolisCoupledMCMC heated chain");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            super.run();
+
+            if (pending != null)
+                finishHeatedChains();
+        } finally {
+            executor.shutdownNow();
+            executor = null;
+            pending = null;
+        }
+
+        reportStatistics();
+    }
+
+    @Override
+    public Operator propagateState(final long sampleNr) {
+        if (executor == null)
+            return super.propagateState(sampleNr);
+
+        if (stepsInBlock == 0)
+            startHeatedChains(sampleNr);
+
+        long startTime = System.nanoTime();
+        Operator operator = super.propagateState(sampleNr);
+        chainNanos[0] += System.nanoTime() - startTime;
+        chainSteps[0] += 1;
+
+        stepsInBlock += 1;
+        if (stepsInBlock == swapEvery) {
+            finishHeatedChains();
+            attemptSwap();
+            stepsInBlock = 0;
+        }
+
+        return operator;
+    }
+
+    /**
+     * Set each heated chain running for swapEvery steps.
+     *
+     * @param firstSampleNr sample number of first step
+     */
+    private void startHeatedChains(long firstSampleNr) {
+        pending = new ArrayList<>();
+        for (int i=0; i<heatedChains.size(); i++) {
+            HeatedChain chain = heatedChains.get(i);
+            int chainIdx = i + 1;
+
+            pending.add(executor.submit(() -> {
+                long startTime = System.nanoTime();
+                for (int n=0; n<swapEvery; n++)
+                    chain.step(firstSampleNr + n);
+                chainNanos[chainIdx] += System.nanoTime() - startTime;
+                chainSteps[chainIdx] += swapEvery;
+            }));
+        }
+    }
+
+    /**
+     * Wait for the heated chains to complete their steps.
+     */
+    private void finishHeatedChains() {
+        try {
+            for (Future<?> future : pending)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running heated chains.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Propose the exchange of states between two randomly chosen chains.
+     */
+    private void attemptSwap() {
+        int nChains = heatedChains.size() + 1;
+        int i = Randomizer.nextInt(nChains);
+        int j = Randomizer.nextInt(nChains - 1);
+        if (j >= i)
+            j += 1;
+
+        double logAlpha = (1.0/getTemperature(i) - 1.0/getTemperature(j))
+                * (getLogPosterior(j) - getLogPosterior(i));
+
+        int lower = Math.min(i, j), upper = Math.max(i, j);
+        swapAttempts[lower][upper] += 1;
+
+        if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+            exchangeStates(getChainState(i), getChainState(j));
+            stateReplaced(i);
+            stateReplaced(j);
+
+            swapAccepts[lower][upper] += 1;
+        }
+    }
+
+    private void exchangeStates(State stateA, State stateB) {
+        for (int k=0; k<swapBuffers.length; k++) {
+            StateNode nodeA = stateA.getStateNode(k);
+            StateNode nodeB = stateB.getStateNode(k);
+
+            swapBuffers[k].assignFrom(nodeA);
+            nodeA.assignFromFragile(nodeB);
+            nodeB.assignFromFragile(swapBuffers[k]);
+        }
+    }
+
+    private double getTemperature(int chainIdx) {
+        return chainIdx == 0 ? 1.0 : heatedChains.get(chainIdx-1).getTemperature();
+    }
+
+    private double getLogPosterior(int chainIdx) {
+        return chainIdx == 0 ? oldLogLikelihood : heatedChains.get(chainIdx-1).getLogPosterior();
+    }
+
+    private State getChainState(int chainIdx) {
+        return chainIdx == 0 ? state : heatedChains.get(chainIdx-1).getChainState();
+    }
+
+    private void stateReplaced(int chainIdx) {
+        if (chainIdx == 0)
+            oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+        else
+            heatedChains.get(chainIdx-1).stateReplaced();
+    }
+
+    private void reportStatistics() {
+        int nChains = heatedChains.size() + 1;
+
+        Log.info.println("Metropolis-coupled MCMC chain throughput:");
+        for (int i=0; i<nChains; i++) {
+            double seconds = chainNanos[i]*1e-9;
+            Log.info.println(String.format("  chain %d (temperature %.3f): %d steps, %.1f steps/s",
+                    i, getTemperature(i), chainSteps[i],
+                    seconds > 0 ? chainSteps[i]/seconds : 0.0));
+        }
+
+        Log.info.println("Metropolis-coupled MCMC swap acceptance:");
+        for (int i=0; i<nChains; i++) {
+            for (int j=i+1; j<nChains; j++) {
+                if (swapAttempts[i][j] == 0)
+                    continue;
+
+                Log.info.println(String.format("  chains %d and %d: %d of %d accepted (%.3f)",
+                        i, j, swapAccepts[i][j], swapAttempts[i][j],
+                        swapAccepts[i][j]/(double)swapAttempts[i][j]));
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package bacter.model;
+
+import bacter.ACGSnapshot;
+import bacter.Locus;
+import bacter.util.BinaryACGLogger;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.evolution.tree.coalescent.PopulationFunction;
+import beast.base.util.Randomizer;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Simulates many independent ACGs, and optionally an alignment for each,
+ * using a pool of threads.  Each replicate draws its random numbers from
+ * its own generator, seeded with the ith value drawn from a generator
+ * initialized with the batch seed, so the output depends only on the
+ * seed and not on the number of threads.  Replicates are written in order
+ * to a single Nexus tree file, or to a binary ACG log readable by
+ * ACGAnnotator, with the replicate number taking the place of the sample
+ * number.
+ *
+ * The population model, loci, taxa and site model are shared by all
+ * threads, so must support concurrent evaluation.
+ */
+@Description("Simulates a batch of independent ACGs (and optionally " +
+        "alignments) in parallel.")
+public class ACGBatchSimulator extends beast.base.inference.Runnable {
+
+    public Input<SimulatedACG> simACGInput = new Input<>(
+            "simACG",
+            "Simulated recombination graph specifying the model to simulate " +
+                    "under.  Replicates are simulated by objects of the same class.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> nSimsInput = new Input<>(
+            "nSims",
+            "Number of ARGs to simulate.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> threadCountInput = new Input<>(
+            "threadCount",
+            "Number of threads used to simulate replicates.", 1);
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Seed from which the seeds of individual replicates are derived.  " +
+                    "If absent, the seed is drawn from the BEAST random " +
+                    "number generator.");
+
+    public Input<String> outputFileNameInput = new Input<>(
+            "outputFileName",
+            "Name of file to which simulated ACGs are written.",
+            Input.Validate.REQUIRED);
+
+    public Input<Boolean> binaryInput = new Input<>(
+            "binary",
+            "Write ACGs in the compressed binary ACG log format rather " +
+                    "than as a Nexus tree file.", false);
+
+    public Input<SiteModel> siteModelInput = new Input<>(
+            "siteModel",
+            "Site model used to simulate an alignment for each replicate.");
+
+    public Input<String> alignmentFilePrefixInput = new Input<>(
+            "alignmentFilePrefix",
+            "Prefix of alignment file names.  The alignment of a replicate " +
+                    "is written to prefix<n>.fasta, or prefix<n>.<locus>.fasta " +
+                    "when there are several convertible loci.");
+
+    public Input<Boolean> useNexusInput = new Input<>(
+            "useNexus",
+            "Use Nexus instead of FASTA format to write alignment files.",
+            false);
+
+    public Input<String> dataTypeInput = new Input<>(
+            "dataType",
+            "Data type of simulated alignments.", "nucleotide");
+
+    /**
+     * Maximum number of replicates simulated ahead of the one being
+     * written, per thread.
+     */
+    private static final int LOOKAHEAD = 4;
+
+    @Override
+    public void initAndValidate() {
+        if (nSimsInput.get() < 0)
+            throw new IllegalArgumentException("nSims must be non-negative.");
+
+        if (threadCountInput.get() < 1)
+            throw new IllegalArgumentException("threadCount must be at least 1.");
+
+        if ((siteModelInput.get() == null) != (alignmentFilePrefixInput.get() == null))
+            throw new IllegalArgumentException("siteModel and alignmentFilePrefix " +
+                    "must be specified together.");
+    }
+
+    @Override
+    public void run() throws Exception {
+        SimulatedACG template = simACGInput.get();
+        int nSims = nSimsInput.get();
+        int nThreads = threadCountInput.get();
+        boolean binary = binaryInput.get();
+
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+        SplittableRandom seedGenerator = new SplittableRandom(seed);
+
+        // Bring any cached state up to date before it is read concurrently.
+        if (template.popFuncInput.get() instanceof PopulationFunction.Abstract)
+            ((PopulationFunction.Abstract)template.popFuncInput.get()).prepare();
+
+        BlockingQueue<Replicate> replicates = new ArrayBlockingQueue<>(nThreads);
+        for (int t=0; t<nThreads; t++)
+            replicates.add(new Replicate(template));
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        Deque<Future<Object>> pending = new ArrayDeque<>();
+
+        try (DataOutputStream binaryOut = binary
+                ? BinaryACGLogger.openLog(outputFileNameInput.get(), template, true)
+                : null;
+             PrintStream textOut = binary
+                ? null
+                : new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(outputFileNameInput.get()), 1 << 16))) {
+
+            if (textOut != null) {
+                template.init(textOut);
+                textOut.println();
+            }
+
+            ACGSnapshot prevSnapshot = null;
+            int nWritten = 0;
+            for (int i=0; i<nSims || !pending.isEmpty(); ) {
+                if (i < nSims && pending.size() < LOOKAHEAD*nThreads) {
+                    int sampleNr = i;
+                    long replicateSeed = seedGenerator.nextLong();
+                    pending.add(executor.submit(() -> {
+                        Replicate replicate = replicates.take();
+                        try {
+                            return replicate.simulate(sampleNr, replicateSeed);
+                        } finally {
+                            replicates.put(replicate);
+                        }
+                    }));
+                    i += 1;
+                    continue;
+                }
+
+                Object result = getResult(pending.removeFirst());
+                if (binary) {
+                    ACGSnapshot snapshot = (ACGSnapshot)result;
+                    snapshot.write(binaryOut, nWritten,
+                            prevSnapshot == null || !snapshot.hasSameTopology(prevSnapshot));
+                    prevSnapshot = snapshot;
+                } else {
+                    textOut.print("tree STATE_" + nWritten + " = [&R] ");
+                    textOut.println((String)result);
+                }
+                nWritten += 1;
+            }
+
+            if (textOut != null)
+                textOut.print("End;");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Object getResult(Future<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while simulating ACGs.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Objects used to simulate one replicate at a time.  These are
+     * created on the main thread, as connecting inputs modifies the
+     * shared objects they refer to, and are then used by one thread at a
+     * time.
+     */
+    private class Replicate {
+
+        SimulatedACG acg;
+        List<Locus> alignmentLoci = new ArrayList<>();
+        List<SimulatedAlignment> alignments = new ArrayList<>();
+
+        Replicate(SimulatedACG template) throws ReflectiveOperationException {
+            acg = template.getClass().getDeclaredConstructor().newInstance();
+            acg.setID(template.getID());
+            acg.setInputValue("rho", template.rhoInput.get());
+            acg.setInputValue("delta", template.deltaInput.get());
+            acg.setInputValue("populationModel", template.popFuncInput.get());
+            acg.setInputValue("taxonset", template.getTaxonset());
+            acg.setInputValue("wholeLocusConversionsOnly",
+                    template.wholeLocusConversionsInput.get());
+            if (template.clonalFrameInput.get() != null)
+                acg.setInputValue("clonalFrame", template.clonalFrameInput.get());
+            for (Locus locus : template.lociInput.get())
+                acg.setInputValue("locus", locus);
+            for (TraitSet traitSet : template.m_traitList.get())
+                acg.setInputValue("trait", traitSet);
+
+            if (siteModelInput.get() == null)
+                return;
+
+            alignmentLoci = template.lociInput.get().stream()
+                    .filter(Locus::conversionsAllowed)
+                    .collect(Collectors.toList());
+
+            for (Locus locus : alignmentLoci) {
+                SimulatedAlignment alignment = new SimulatedAlignment();
+                alignment.setInputValue("acg", acg);
+                alignment.setInputValue("siteModel", siteModelInput.get());
+                alignment.setInputValue("locus", locus);
+                alignment.setInputValue("useNexus", useNexusInput.get());
+                alignment.setInputValue("dataType", dataTypeInput.get());
+                alignment.setInputValue("outputOnly", true);
+                alignments.add(alignment);
+            }
+        }
+
+        /**
+         * Simulate a replicate.
+         *
+         * @param sampleNr replicate number
+         * @param seed seed of replicate
+         * @return snapshot of ACG if writing binary output, otherwise the
+         * extended Newick representation of the ACG
+         */
+        Object simulate(int sampleNr, long seed) {
+            SplittableRandom random = new SplittableRandom(seed);
+            acg.simulate(random);
+
+            for (int l=0; l<alignments.size(); l++) {
+                String fileName = alignmentFilePrefixInput.get() + sampleNr;
+                if (alignments.size() > 1)
+                    fileName += "." + alignmentLoci.get(l).getID();
+                fileName += useNexusInput.get() ? ".nexus" : ".fasta";
+
+                SimulatedAlignment alignment = alignments.get(l);
+                alignment.setInputValue("outputFileName", fileName);
+                alignment.setInputValue("seed", random.nextLong());
+                alignment.initAndValidate();
+            }
+
+            if (binaryInput.get()) {
+                ACGSnapshot snapshot = new ACGSnapshot();
+                snapshot.capture(acg);
+                return snapshot;
+            }
+
+            return acg.getExtendedNewick();
+        }
+    }
+}
@@ -124,19 +124,24 @@ public class ACGLikelihoodApprox extends Distribution {
         Map<Node, SiteAncestry> activeCFNodes = new HashMap<>();
         Map<Conversion, SiteAncestry> activeConversions = new HashMap<>();
 
-        ACGEventList acgEventList = new ACGEventList(acg, locus);
+        ACGEventIndex eventIndex = acg.getEventIndex();
 
-        for (ACGEventList.Event event : acgEventList.getACGEvents()) {
+        for (int i=0; i<eventIndex.getEventCount(); i++) {
+            Conversion eventConv = eventIndex.getConversion(i);
+            if (eventConv != null && eventConv.getLocus() != locus)
+                continue;
 
-            switch (event.type) {
+            Node eventNode = eventIndex.getNode(i);
+
+            switch (eventIndex.getType(i)) {
                 case CF_LEAF:
-                    activeCFNodes.put(event.node, new SiteAncestry(event.node, locus));
+                    activeCFNodes.put(eventNode, new SiteAncestry(eventNode, locus));
 
                     break;
 
                 case CF_COALESCENCE:
-                    Node node1 = event.node.getLeft();
-                    Node node2 = event.node.getRight();
+                    Node node1 = eventNode.getLeft();
+                    Node node2 = eventNode.getRight();
 
                     SiteAncestry ancestryCF = new SiteAncestry();
                     Coalescence coalescenceCF = new Coalescence();
@@ -145,43 +150,43 @@ public class ACGLikelihoodApprox extends Distribution {
 
                     activeCFNodes.remove(node1);
                     activeCFNodes.remove(node2);
-                    activeCFNodes.put(event.node, ancestryCF);
+                    activeCFNodes.put(eventNode, ancestryCF);
 
                     if (coalescenceCF.getIntervalCount()>0)
-                        heightMap.put(event.t, coalescenceCF);
+                        heightMap.put(eventIndex.getHeight(i), coalescenceCF);
 
                     break;
 
                 case CONV_DEPART:
                     SiteAncestry inside = new SiteAncestry();
                     SiteAncestry outside = new SiteAncestry();
-                    activeCFNodes.get(event.node).split(
-                            event.conversion.getStartSite(),
-                            event.conversion.getEndSite()+1,
+                    activeCFNodes.get(eventNode).split(
+                            eventConv.getStartSite(),
+                            eventConv.getEndSite()+1,
                             inside, outside);
 
                     if (inside.getIntervalCount()>0) {
-                        activeCFNodes.put(event.node, outside);
-                        activeConversions.put(event.conversion, inside);
+                        activeCFNodes.put(eventNode, outside);
+                        activeConversions.put(eventConv, inside);
                     }
 
                     break;
 
                 case CONV_ARRIVE:
 
-                    if (!activeConversions.containsKey(event.conversion))
+                    if (!activeConversions.containsKey(eventConv))
                         continue;
 
                     SiteAncestry ancestry = new SiteAncestry();
                     Coalescence coalescence = new Coalescence();
-                    activeCFNodes.get(event.node).merge(activeConversions.get(event.conversion),
+                    activeCFNodes.get(eventNode).merge(activeConversions.get(eventConv),
                             coalescence, ancestry);
 
-                    activeCFNodes.put(event.node, ancestry);
-                    activeConversions.remove(event.conversion);
+                    activeCFNodes.put(eventNode, ancestry);
+                    activeConversions.remove(eventConv);
 
                     if (coalescence.getIntervalCount()>0)
-                        heightMap.put(event.t, coalescence);
+                        heightMap.put(eventIndex.getHeight(i), coalescence);
 
                     break;
             }
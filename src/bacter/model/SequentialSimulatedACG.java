@@ -0,0 +1,106 @@
+package bacter.model;
+
+import bacter.Conversion;
+import bacter.Locus;
+import bacter.Region;
+import beast.base.core.Description;
+
+import java.util.*;
+
+/**
+ * Simulates an ACG under the ClonalOrigin model by walking along each
+ * locus, in the manner of sequentially Markov coalescent simulators.
+ * Conversions are generated in order of their start sites, and the
+ * regions of constant marginal tree are assembled as the walk proceeds,
+ * so that neither the conversions nor the regions need to be sorted or
+ * untangled afterwards.  The resulting graph can be passed directly to
+ * SimulatedAlignment.
+ *
+ * Under ClonalOrigin each conversion attaches to the clonal frame
+ * independently of the others, so the set of conversions covering a site
+ * is itself Markov along the locus.  Unlike the SMC' approximation to the
+ * coalescent with recombination, the walk therefore samples exactly the
+ * same distribution of ACGs as SimulatedACG.  The only difference lies in
+ * the regions: conversions which leave the marginal tree unchanged still
+ * delimit regions, until the conversions are next modified and the
+ * regions are recomputed.
+ */
+@Description("Simulates an ACG under the ClonalOrigin model by walking along " +
+        "each locus, generating conversions and marginal tree regions in order.")
+public class SequentialSimulatedACG extends SimulatedACG {
+
+    @Override
+    protected void generateConversions() {
+
+        // Conversion start points form a Poisson process along each locus,
+        // extended by delta-1 sites to account for conversions starting
+        // before the first site.
+        double rate = rho*getCFEventList().getClonalFrameLength();
+
+        // Adding a conversion invalidates the regions of every locus, so
+        // these are only installed once all conversions are in place.
+        Map<Locus, List<Region>> regionsByLocus = new HashMap<>();
+
+        for (Locus locus : getConvertibleLoci()) {
+            double extendedLength = locus.getSiteCount() + delta - 1.0;
+
+            PriorityQueue<Conversion> activeByEnd = new PriorityQueue<>(
+                    Comparator.comparingInt(Conversion::getEndSite));
+            Set<Conversion> activeConversions = new HashSet<>();
+            List<Region> regions = new ArrayList<>();
+
+            double u = rate > 0.0 ? nextExponential(rate) : Double.POSITIVE_INFINITY;
+            int lastBoundary = 0;
+
+            while (u < extendedLength || !activeByEnd.isEmpty()) {
+
+                int nextStart;
+                if (u < extendedLength)
+                    nextStart = u < delta ? 0 : (int)Math.ceil(u - delta);
+                else
+                    nextStart = Integer.MAX_VALUE;
+
+                int nextEnd;
+                if (!activeByEnd.isEmpty())
+                    nextEnd = activeByEnd.peek().getEndSite() + 1;
+                else
+                    nextEnd = Integer.MAX_VALUE;
+
+                int nextBoundary = Math.min(nextStart, nextEnd);
+                if (nextBoundary > lastBoundary) {
+                    regions.add(new Region(lastBoundary, nextBoundary, activeConversions));
+                    lastBoundary = nextBoundary;
+                }
+
+                if (nextStart < nextEnd) {
+                    int endSite = nextStart + (int)nextGeometric(1.0/delta);
+                    endSite = Math.min(endSite, locus.getSiteCount()-1);
+
+                    Conversion conv = new Conversion();
+                    conv.setLocus(locus);
+                    conv.setStartSite(nextStart);
+                    conv.setEndSite(endSite);
+                    associateConversionWithCF(conv);
+                    addConversion(conv);
+
+                    // Regions hold copies, as RegionList does.
+                    Conversion convCopy = conv.getCopy();
+                    activeByEnd.add(convCopy);
+                    activeConversions.add(convCopy);
+
+                    u += nextExponential(rate);
+                } else {
+                    activeConversions.remove(activeByEnd.poll());
+                }
+            }
+
+            if (lastBoundary < locus.getSiteCount())
+                regions.add(new Region(lastBoundary, locus.getSiteCount(), activeConversions));
+
+            regionsByLocus.put(locus, regions);
+        }
+
+        for (Locus locus : regionsByLocus.keySet())
+            regionLists.get(locus).setRegions(regionsByLocus.get(locus));
+    }
+}
@@ -35,8 +35,10 @@ import feast.nexus.TreesBlock;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.SplittableRandom;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -68,9 +70,15 @@ public class SimulatedACG extends ConversionGraph {
             "outputFileName",
             "If provided, simulated ARG is additionally written to this file.");
 
-    private double rho, delta;
+    protected double rho, delta;
     private PopulationFunction popFunc;
 
+    /**
+     * Source of random numbers for the current simulation.  When null,
+     * the BEAST random number generator is used.
+     */
+    private SplittableRandom random;
+
     public SimulatedACG() {
         m_taxonset.setRule(Input.Validate.REQUIRED);
     }
@@ -155,13 +163,84 @@ public class SimulatedACG extends ConversionGraph {
     }
 
     /**
-     * Use coalescent model to simulate clonal frame.
+     * Simulate a new ACG, drawing all random numbers from the given
+     * generator rather than from the BEAST random number generator.
+     * Distinct SimulatedACG objects can therefore simulate concurrently
+     * provided that the objects they share (loci, taxa, traits, clonal
+     * frame and population model) are only read.
+     *
+     * @param random random number generator
+     */
+    public void simulate(SplittableRandom random) {
+        this.random = random;
+        try {
+            initAndValidate();
+        } finally {
+            this.random = null;
+        }
+    }
+
+    protected double nextDouble() {
+        return random != null ? random.nextDouble() : Randomizer.nextDouble();
+    }
+
+    protected int nextInt(int n) {
+        return random != null ? random.nextInt(n) : Randomizer.nextInt(n);
+    }
+
+    protected double nextExponential(double rate) {
+        return random != null
+                ? -Math.log(1.0 - random.nextDouble())/rate
+                : Randomizer.nextExponential(rate);
+    }
+
+    /**
+     * Draws from the Poisson distribution by counting the arrivals of a
+     * unit-rate Poisson process before time mean.  The cost is linear in
+     * the mean, as is that of generating the conversions which follow.
+     */
+    private long nextPoisson(double mean) {
+        if (random == null)
+            return (long)Randomizer.nextPoisson(mean);
+
+        long k = 0;
+        double t = -Math.log(1.0 - random.nextDouble());
+        while (t < mean) {
+            k += 1;
+            t -= Math.log(1.0 - random.nextDouble());
+        }
+
+        return k;
+    }
+
+    /**
+     * @return number of failures before first success in trials with
+     * success probability p
+     */
+    protected long nextGeometric(double p) {
+        if (random == null)
+            return (long)Randomizer.nextGeometric(p);
+
+        if (p >= 1.0)
+            return 0;
+
+        return (long)Math.floor(Math.log(1.0 - random.nextDouble())/Math.log(1.0 - p));
+    }
+
+    /**
+     * Use coalescent model to simulate clonal frame.  Leaves are visited
+     * in order of sampling time using a sorted array and a cursor, and the
+     * lineages present are held in an array from which a lineage is
+     * removed by moving the last one into its place, so the simulation
+     * takes O(n log n) time for n taxa.
      */
     private void simulateClonalFrame() {
 
+        int nLeaves = m_taxonset.get().getTaxonCount();
+
         // Initialize leaf nodes
-        List<Node> leafNodes = new ArrayList<>();
-        for (int i=0; i<m_taxonset.get().getTaxonCount(); i++) {
+        Node[] inactiveNodes = new Node[nLeaves];
+        for (int i=0; i<nLeaves; i++) {
             Node leaf = new Node();
             leaf.setNr(i);
             leaf.setID(m_taxonset.get().getTaxonId(i));
@@ -171,34 +250,26 @@ public class SimulatedACG extends ConversionGraph {
             else
                 leaf.setHeight(0.0);
             
-            leafNodes.add(leaf);
+            inactiveNodes[i] = leaf;
         }
         
-        // Create and sort list of inactive nodes
-        List<Node> inactiveNodes = new ArrayList<>(leafNodes);
-        Collections.sort(inactiveNodes, (Node n1, Node n2) -> {
-            if (n1.getHeight()<n2.getHeight())
-                return -1;
-            
-            if (n1.getHeight()>n2.getHeight())
-                return 1;
-            
-            return 0;
-        });
+        // Sort inactive nodes in order of sampling time
+        Arrays.sort(inactiveNodes, Comparator.comparingDouble(Node::getHeight));
+        int nextInactive = 0;
         
-        List<Node> activeNodes = new ArrayList<>();
+        Node[] activeNodes = new Node[nLeaves];
+        int k = 0;
         
         double tau = 0.0;
-        int nextNr = leafNodes.size();
+        int nextNr = nLeaves;
         while (true) {
             
             // Calculate coalescence propensity
-            int k = activeNodes.size();
             double chi = 0.5*k*(k-1);
             
             // Draw scaled coalescent time
             if (chi>0.0)
-                tau += Randomizer.nextExponential(chi);
+                tau += nextExponential(chi);
             else
                 tau = Double.POSITIVE_INFINITY;
             
@@ -206,16 +277,21 @@ public class SimulatedACG extends ConversionGraph {
             double t = popFunc.getInverseIntensity(tau);
             
             // If new time takes us past next sample time, insert that sample
-            if (!inactiveNodes.isEmpty() && t>inactiveNodes.get(0).getHeight()) {
-                Node nextActive = inactiveNodes.remove(0);
-                activeNodes.add(nextActive);
+            if (nextInactive<nLeaves && t>inactiveNodes[nextInactive].getHeight()) {
+                Node nextActive = inactiveNodes[nextInactive++];
+                activeNodes[k++] = nextActive;
                 tau = popFunc.getIntensity(nextActive.getHeight());
                 continue;
             }
             
             // Coalesce random pair of active nodes.
-            Node node1 = activeNodes.remove(Randomizer.nextInt(k));
-            Node node2 = activeNodes.remove(Randomizer.nextInt(k-1));
+            int idx1 = nextInt(k);
+            Node node1 = activeNodes[idx1];
+            activeNodes[idx1] = activeNodes[--k];
+
+            int idx2 = nextInt(k);
+            Node node2 = activeNodes[idx2];
+            activeNodes[idx2] = activeNodes[--k];
             
             Node parent = new Node();
             parent.addChild(node1);
@@ -223,26 +299,29 @@ public class SimulatedACG extends ConversionGraph {
             parent.setHeight(t);
             parent.setNr(nextNr++);
             
-            activeNodes.add(parent);
+            activeNodes[k++] = parent;
             
-            if (inactiveNodes.isEmpty() && activeNodes.size()<2)
+            if (nextInactive==nLeaves && k<2)
                 break;
         }
         
         // Remaining active node is root
-        setRoot(activeNodes.get(0));
+        setRoot(activeNodes[0]);
     }
     
-    private void generateConversions() {
+    /**
+     * Generate conversions on the clonal frame.
+     */
+    protected void generateConversions() {
 
         // Draw number of conversions:
-        int Nconv = (int) Randomizer.nextPoisson(rho*getClonalFrameLength()*
+        int Nconv = (int) nextPoisson(rho*getClonalFrameLength()*
             (getTotalConvertibleSequenceLength()+(delta-1.0)* getConvertibleLoci().size()));
 
         // Generate conversions:
         for (int i=0; i<Nconv; i++) {
             // Choose alignment
-            double u = Randomizer.nextDouble()*(getTotalConvertibleSequenceLength()
+            double u = nextDouble()*(getTotalConvertibleSequenceLength()
                     + (delta-1.0)* getConvertibleLoci().size());
 
             Locus affectedLocus = null;
@@ -264,7 +343,7 @@ public class SimulatedACG extends ConversionGraph {
             } else {
                 startSite = (int)Math.ceil(u-delta);
             }
-            endSite = startSite + (int)Randomizer.nextGeometric(1.0/delta);
+            endSite = startSite + (int)nextGeometric(1.0/delta);
             endSite = Math.min(endSite, affectedLocus.getSiteCount()-1);
 
             Conversion conv = new Conversion();
@@ -282,76 +361,50 @@ public class SimulatedACG extends ConversionGraph {
      * 
      * @param conv recombination to associate
      */
-    private void associateConversionWithCF(Conversion conv) {
-    
-        List<CFEventList.Event> eventList = getCFEvents();
+    protected void associateConversionWithCF(Conversion conv) {
 
-        // Select departure point            
-        double u = Randomizer.nextDouble()*getClonalFrameLength();
-        
-        boolean started = false;
-        for (int eidx=0; eidx<eventList.size(); eidx++) {
+        CFEventList cfEventList = getCFEventList();
+        List<CFEventList.Event> eventList = cfEventList.getCFEvents();
+
+        // Select departure point
+        double u = nextDouble()*cfEventList.getClonalFrameLength();
+
+        int startIdx = cfEventList.getIntervalIndexAtLength(u);
+        CFEventList.Event startEvent = eventList.get(startIdx);
+        double interval = eventList.get(startIdx+1).getHeight() - startEvent.getHeight();
+
+        u -= cfEventList.getLengthBelow(startIdx);
+        int lineage = Math.min((int)(u/interval), startEvent.getLineageCount()-1);
+        conv.setNode1(cfEventList.getLineage(startIdx, lineage));
+        conv.setHeight1(startEvent.getHeight() + u - lineage*interval);
+
+        // Select arrival point
+        u = nextExponential(1.0);
+        for (int eidx=startIdx; eidx<eventList.size(); eidx++) {
             CFEventList.Event event = eventList.get(eidx);
 
-            if (!started) {
-                
-                double interval = eventList.get(eidx+1).getHeight() - event.getHeight();
-                
-                if (u<interval*event.getLineageCount()) {
-                    for (Node node : getNodesAsArray()) {
-                        if (!node.isRoot()
-                                && node.getHeight()<=event.getHeight()
-                                && node.getParent().getHeight()>event.getHeight()) {
-                            
-                            if (u<interval) {
-                                conv.setNode1(node);
-                                conv.setHeight1(event.getHeight() + u);
-                                break;
-                            } else
-                                u -= interval;
-                            
-                        }
-                    }
-                    started = true;
-                    u = Randomizer.nextExponential(1.0);
-                } else
-                    u -= interval*event.getLineageCount();
-            }
-            
-            if (started) {
-                double t = Math.max(event.getHeight(), conv.getHeight1());
+            double t = Math.max(event.getHeight(), conv.getHeight1());
 
-                double intervalArea;
-                if (eidx<eventList.size()-1) {
-                    intervalArea = popFunc.getIntegral(t, eventList.get(eidx+1).getHeight());
-                } else
-                    intervalArea = Double.POSITIVE_INFINITY;
-                
-                if (u<intervalArea*event.getLineageCount()) {
-                    
-                    // Fix height of attachment point
+            double intervalArea;
+            if (eidx<eventList.size()-1) {
+                intervalArea = popFunc.getIntegral(t, eventList.get(eidx+1).getHeight());
+            } else
+                intervalArea = Double.POSITIVE_INFINITY;
 
-                    double tauEnd = popFunc.getIntensity(t) + u/event.getLineageCount();
-                    double tEnd = popFunc.getInverseIntensity(tauEnd);
-                    conv.setHeight2(tEnd);                    
-                    
-                    // Choose particular lineage to attach to
-                    int nodeNumber = Randomizer.nextInt(event.getLineageCount());
-                    for (Node node : getNodesAsArray()) {
-                        if (node.getHeight()<=event.getHeight()
-                                && (node.isRoot() || node.getParent().getHeight()>event.getHeight())) {
-                            
-                            if (nodeNumber == 0) {
-                                conv.setNode2(node);
-                                break;
-                            } else
-                                nodeNumber -= 1;
-                        }
-                    }
-                    break;
-                } else
-                    u -= intervalArea*event.getLineageCount();
-            }
+            if (u<intervalArea*event.getLineageCount()) {
+
+                // Fix height of attachment point
+
+                double tauEnd = popFunc.getIntensity(t) + u/event.getLineageCount();
+                double tEnd = popFunc.getInverseIntensity(tauEnd);
+                conv.setHeight2(tEnd);
+
+                // Choose particular lineage to attach to
+                conv.setNode2(cfEventList.getLineage(eidx,
+                        nextInt(event.getLineageCount())));
+                break;
+            } else
+                u -= intervalArea*event.getLineageCount();
         }
     }
 }
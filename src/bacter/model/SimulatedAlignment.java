@@ -21,6 +21,7 @@ import bacter.ConversionGraph;
 import bacter.Locus;
 import bacter.MarginalTree;
 import bacter.Region;
+import bacter.util.AlignmentFileWriter;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.alignment.Alignment;
@@ -35,12 +36,17 @@ import feast.nexus.CharactersBlock;
 import feast.nexus.NexusBuilder;
 import feast.nexus.TaxaBlock;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -69,7 +75,26 @@ public class SimulatedAlignment extends Alignment {
 
     public Input<Locus> locusInput = new Input<>("locus",
             "Locus for which alignment will be simulated.");
+
+    public Input<Integer> threadCountInput = new Input<>("threadCount",
+            "Number of threads used to simulate regions in parallel.", 1);
+
+    public Input<Long> seedInput = new Input<>("seed",
+            "Seed from which the random number streams used for each " +
+                    "region are derived.  If absent, the seed is drawn " +
+                    "from the BEAST random number generator.");
+
+    public Input<Boolean> outputOnlyInput = new Input<>("outputOnly",
+            "If true, the alignment is written to outputFileName as it is " +
+                    "simulated and is not retained in memory, in which case " +
+                    "this object cannot itself be used as an alignment.",
+            false);
     
+    /**
+     * Number of sites simulated together.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
     private ConversionGraph acg;
     private SiteModel siteModel;
     private DataType dataType;
@@ -99,8 +124,35 @@ public class SimulatedAlignment extends Alignment {
         // data type for us.
         grabDataType();
 
+        int nTaxa = acg.getLeafNodeCount();
+
+        // Stream alignment straight to disk if it is not needed in memory
+        if (outputOnlyInput.get()) {
+            if (outputFileNameInput.get() == null)
+                throw new IllegalArgumentException("outputOnly requires " +
+                        "outputFileName to be specified.");
+
+            try (AlignmentFileWriter writer = new AlignmentFileWriter(
+                    new File(outputFileNameInput.get()), Arrays.asList(acg.getTaxaNames()),
+                    locus.getSiteCount(), dataType, useNexusInput.get())) {
+                simulate(locus, null, writer);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error writing simulated " +
+                        "alignment: " + e.getMessage());
+            }
+
+            return;
+        }
+
         // Simulate alignment
-        simulate(locus);
+        int[][] alignment = new int[nTaxa][locus.getSiteCount()];
+        simulate(locus, alignment, null);
+
+        for (int leafIdx=0; leafIdx<nTaxa; leafIdx++) {
+            String sSeq = dataType.encodingToString(alignment[leafIdx]);
+            String sTaxon = acg.getNode(leafIdx).getID();
+            sequenceInput.setValue(new Sequence(sTaxon, sSeq), this);
+        }
         
         super.initAndValidate();
         
@@ -126,130 +178,262 @@ public class SimulatedAlignment extends Alignment {
 
     /**
      * Perform actual sequence simulation.
+     *
+     * Each region draws its random numbers from its own stream, the ith
+     * region using the ith stream split from a generator initialized with
+     * the seed.  Regions can therefore be simulated by any number of
+     * threads without affecting the result.
+     *
+     * @param locus locus to simulate
+     * @param alignment array in which to place leaf states, or null
+     * @param writer writer to which leaf states are passed as they are
+     *               simulated, or null
      */
-    private void simulate(Locus locus) {
-        Node cfRoot = acg.getRoot();
+    private void simulate(Locus locus, int[][] alignment, AlignmentFileWriter writer) {
         int nTaxa = acg.getLeafNodeCount();
-        
-        double[] categoryProbs = siteModel.getCategoryProportions(cfRoot);
+        int nThreads = threadCountInput.get();
+        if (nThreads < 1)
+            throw new IllegalArgumentException("threadCount must be at least 1.");
 
-        int nCategories = siteModel.getCategoryCount();
-        int nStates = dataType.getStateCount();
-        double[][] transitionProbs = new double[nCategories][nStates*nStates];
-        
-        int[][] alignment = new int[nTaxa][locus.getSiteCount()];
-        
-        for (Region region : acg.getRegions(locus)) {
-            int thisLength = region.getRegionLength();
+        List<Region> regions = acg.getRegions(locus);
+
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+        SplittableRandom seedGenerator = new SplittableRandom(seed);
+        SplittableRandom[] regionRandoms = new SplittableRandom[regions.size()];
+        for (int r=0; r<regions.size(); r++)
+            regionRandoms[r] = seedGenerator.split();
+
+        // Ensure the clonal frame event list is up to date before it is
+        // read concurrently during marginal tree construction.
+        acg.getCFEvents();
+
+        // Position of each leaf's sequence in the output file
+        List<String> taxaNames = Arrays.asList(acg.getTaxaNames());
+        int[] leafTaxonIndices = new int[nTaxa];
+        for (int leafIdx=0; leafIdx<nTaxa; leafIdx++)
+            leafTaxonIndices[leafIdx] = taxaNames.indexOf(acg.getNode(leafIdx).getID());
+
+        if (nThreads == 1 || regions.size() < 2) {
+            RegionSimulator simulator = new RegionSimulator(alignment, writer, leafTaxonIndices);
+            for (int r=0; r<regions.size(); r++)
+                simulator.simulate(regions.get(r), regionRandoms[r]);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+            AtomicInteger nextRegion = new AtomicInteger(0);
+
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t=0; t<nThreads; t++) {
+                futures.add(executor.submit(() -> {
+                    RegionSimulator simulator = new RegionSimulator(alignment, writer, leafTaxonIndices);
+                    int r;
+                    while ((r = nextRegion.getAndIncrement()) < regions.size())
+                        simulator.simulate(regions.get(r), regionRandoms[r]);
+                    return null;
+                }));
+            }
+
+            try {
+                for (Future<Void> future : futures)
+                    future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while simulating alignment.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Simulates regions of the alignment, holding the working arrays
+     * required.  Each thread uses its own simulator.
+     *
+     * A region is simulated down its marginal tree one block of sites at
+     * a time, visiting the nodes of the tree in an order in which parents
+     * precede their children.  States at leaves are written directly into
+     * the alignment, or else passed to the writer at the end of each
+     * block, while those at internal nodes are only held for the current
+     * block.  Transition probabilities are computed once per
+     * branch and category and stored as cumulative rows, from which each
+     * state is drawn by a single uniform variate.
+     */
+    private class RegionSimulator {
+        final int nTaxa, nCategories, nStates;
+        final double[] categoryCDF, frequencyCDF;
+
+        final Node[] nodeOrder;
+        final double[] transitionProbs;
+        final double[][][] transitionCDFs;
+
+        final int[] categories = new int[BLOCK_SIZE];
+        final int[][] internalStates, leafStates;
+
+        final int[][] alignment;
+        final AlignmentFileWriter writer;
+        final int[] leafTaxonIndices;
+
+        RegionSimulator(int[][] alignment, AlignmentFileWriter writer, int[] leafTaxonIndices) {
+            this.alignment = alignment;
+            this.writer = writer;
+            this.leafTaxonIndices = leafTaxonIndices;
 
+            nTaxa = acg.getLeafNodeCount();
+            nCategories = siteModel.getCategoryCount();
+            nStates = dataType.getStateCount();
+
+            int nNodes = 2*nTaxa - 1;
+            nodeOrder = new Node[nNodes];
+            transitionProbs = new double[nStates*nStates];
+            transitionCDFs = new double[nNodes][nCategories][nStates*nStates];
+            internalStates = new int[nTaxa-1][BLOCK_SIZE];
+            leafStates = alignment == null ? new int[nTaxa][BLOCK_SIZE] : null;
+
+            categoryCDF = new double[nCategories];
+            frequencyCDF = new double[nStates];
+            synchronized (siteModel) {
+                getCumulativeRows(siteModel.getCategoryProportions(acg.getRoot()),
+                        nCategories, categoryCDF);
+                getCumulativeRows(siteModel.getSubstitutionModel().getFrequencies(),
+                        nStates, frequencyCDF);
+            }
+        }
+
+        /**
+         * Simulate sites belonging to a region.
+         *
+         * @param region region to simulate
+         * @param random random number stream for region
+         */
+        void simulate(Region region, SplittableRandom random) {
             MarginalTree marginalTree = new MarginalTree(acg, region);
-            
-            int[] categories = new int[thisLength];
-            for (int i=0; i<thisLength; i++)
-                categories[i] = Randomizer.randomChoicePDF(categoryProbs);
-            
-            int[][] regionAlignment = new int[nTaxa][thisLength];
-            
-            Node thisRoot = marginalTree.getRoot();
-            
-            int[] parentSequence = new int[region.getRegionLength()];
-            double[] frequencies = siteModel.getSubstitutionModel().getFrequencies();
-            for (int i=0; i<parentSequence.length; i++)
-                parentSequence[i] = Randomizer.randomChoicePDF(frequencies);
-
-            traverse(thisRoot, parentSequence,
-                    categories, transitionProbs,
-                    regionAlignment);
-            
-            // DEBUG: Count differences
-            int segsites = 0;
-            for (int s=0; s<regionAlignment[0].length; s++) {
-                int state = regionAlignment[0][s];
-                for (int l=1; l<nTaxa; l++) {
-                    if (state != regionAlignment[l][s]) {
-                        segsites += 1;
-                        break;
+            int nRegionNodes = getNodeOrder(marginalTree.getRoot(), nodeOrder);
+
+            // Calculate cumulative transition probabilities for each branch.
+            // Substitution models cache intermediate results, so these
+            // calculations are not performed concurrently.
+            synchronized (siteModel) {
+                for (int n=1; n<nRegionNodes; n++) {
+                    Node node = nodeOrder[n];
+                    for (int c=0; c<nCategories; c++) {
+                        siteModel.getSubstitutionModel().getTransitionProbabilities(
+                                node, node.getParent().getHeight(), node.getHeight(),
+                                siteModel.getRateForCategory(c, node),
+                                transitionProbs);
+                        getCumulativeRows(transitionProbs, nStates, transitionCDFs[n][c]);
+                    }
+                }
+            }
+
+            int regionEnd = region.leftBoundary + region.getRegionLength();
+            for (int blockStart=region.leftBoundary; blockStart<regionEnd; blockStart+=BLOCK_SIZE) {
+                int blockLength = Math.min(BLOCK_SIZE, regionEnd - blockStart);
+
+                for (int i=0; i<blockLength; i++)
+                    categories[i] = drawFromCDF(random, categoryCDF, 0, nCategories);
+
+                for (int n=0; n<nRegionNodes; n++) {
+                    Node node = nodeOrder[n];
+
+                    int[] states;
+                    int offset;
+                    if (node.isLeaf() && alignment != null) {
+                        states = alignment[node.getNr()];
+                        offset = blockStart;
+                    } else if (node.isLeaf()) {
+                        states = leafStates[node.getNr()];
+                        offset = 0;
+                    } else {
+                        states = internalStates[node.getNr() - nTaxa];
+                        offset = 0;
+                    }
+
+                    if (n == 0) {
+                        for (int i=0; i<blockLength; i++)
+                            states[offset+i] = drawFromCDF(random, frequencyCDF, 0, nStates);
+                    } else {
+                        int[] parentStates = internalStates[node.getParent().getNr() - nTaxa];
+                        double[][] cdfs = transitionCDFs[n];
+                        for (int i=0; i<blockLength; i++)
+                            states[offset+i] = drawFromCDF(random, cdfs[categories[i]],
+                                    parentStates[i]*nStates, nStates);
+                    }
+                }
+
+                if (writer != null) {
+                    try {
+                        for (int leafIdx=0; leafIdx<nTaxa; leafIdx++)
+                            writer.writeSites(leafTaxonIndices[leafIdx], blockStart,
+                                    leafStates[leafIdx], 0, blockLength);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Error writing simulated " +
+                                "alignment: " + e.getMessage());
                     }
                 }
             }
-            System.out.println(segsites + " segregating sites in region " + region);
-            
-            copyToAlignment(alignment, regionAlignment, region);
         }
-        
-        for (int leafIdx=0; leafIdx<nTaxa; leafIdx++) {
-            String sSeq = dataType.encodingToString(alignment[leafIdx]);
-            String sTaxon = acg.getNode(leafIdx).getID();
-            sequenceInput.setValue(new Sequence(sTaxon, sSeq), this);
+    }
+
+    /**
+     * Place the nodes of a tree in an order in which each parent
+     * precedes its children, with the root first.
+     *
+     * @param root root of tree
+     * @param nodeOrder array to fill
+     * @return number of nodes
+     */
+    private static int getNodeOrder(Node root, Node[] nodeOrder) {
+        nodeOrder[0] = root;
+        int count = 1;
+        for (int n=0; n<count; n++) {
+            for (Node child : nodeOrder[n].getChildren())
+                nodeOrder[count++] = child;
         }
+
+        return count;
     }
-    
+
     /**
-     * Traverse a marginal tree simulating a region of the sequence alignment
-     * down it.
-     * 
-     * @param node Node of the marginal tree
-     * @param parentSequence Sequence at the parent node in the marginal tree
-     * @param categories Mapping from sites to categories
-     * @param transitionProbs
-     * @param regionAlignment 
+     * Convert consecutive rows of probabilities into rows of cumulative
+     * probabilities.
+     *
+     * @param probs probabilities, row by row
+     * @param rowLength length of each row
+     * @param cdf array to fill with cumulative probabilities
      */
-    private void traverse(Node node,
-            int[] parentSequence,
-            int[] categories, double[][] transitionProbs,
-            int[][] regionAlignment) {
-        
-        for (Node child : node.getChildren()) {
-
-            // Calculate transition probabilities
-            for (int i=0; i<siteModel.getCategoryCount(); i++) {
-                siteModel.getSubstitutionModel().getTransitionProbabilities(
-                        child, node.getHeight(), child.getHeight(),
-                        siteModel.getRateForCategory(i, child),
-                        transitionProbs[i]);
-            }
-            
-            // Draw characters on child sequence
-            int[] childSequence = new int[parentSequence.length];
-            int nStates = dataType.getStateCount();
-            double[] charProb = new double[nStates];
-            for (int i=0; i<childSequence.length; i++) {
-                int category = categories[i];
-                System.arraycopy(transitionProbs[category],
-                        parentSequence[i]*nStates, charProb, 0, nStates);
-                childSequence[i] = Randomizer.randomChoicePDF(charProb);
-            }
-            
-            if (child.isLeaf()) {
-                System.arraycopy(childSequence, 0,
-                        regionAlignment[child.getNr()], 0, childSequence.length);
-            } else {
-                traverse(child, childSequence,
-                        categories, transitionProbs,
-                        regionAlignment);
+    private static void getCumulativeRows(double[] probs, int rowLength, double[] cdf) {
+        for (int offset=0; offset<probs.length; offset+=rowLength) {
+            double sum = 0.0;
+            for (int i=0; i<rowLength; i++) {
+                sum += probs[offset+i];
+                cdf[offset+i] = sum;
             }
         }
     }
-    
+
     /**
-     * Copy region alignment over to full alignment.
+     * Draw from a distribution given by a row of cumulative probabilities,
+     * which need not be normalized.
      *
-     * @param alignment
-     * @param regionAlignment
-     * @param region
+     * @param random random number stream
+     * @param cdf cumulative probabilities
+     * @param offset offset of row
+     * @param n length of row
+     * @return index drawn, relative to the start of the row
      */
-    private void copyToAlignment(int[][] alignment, int[][] regionAlignment,
-            Region region) {
-        
-        int nTaxa = alignment.length;
-        
-        for (int leafIdx=0; leafIdx<nTaxa; leafIdx++) {
-            System.arraycopy(regionAlignment[leafIdx], 0,
-                    alignment[leafIdx], region.leftBoundary,
-                    region.getRegionLength());
+    private static int drawFromCDF(SplittableRandom random, double[] cdf, int offset, int n) {
+        double u = random.nextDouble()*cdf[offset+n-1];
+        for (int i=0; i<n-1; i++) {
+            if (u < cdf[offset+i])
+                return i;
         }
+
+        return n-1;
     }
-    
+
     /**
      * HORRIBLE function to identify data type from given description.
      * 
@@ -258,8 +442,12 @@ public class SimulatedAlignment extends Alignment {
     private void grabDataType() {
         if (userDataTypeInput.get() != null) {
             dataType = userDataTypeInput.get();
-        } else {
+        } else if (dataType == null
+                || !dataTypeInput.get().equals(dataType.getTypeDescription())) {
 
+            // Only search when the description has changed, as this
+            // object may be re-initialized for each of many replicates.
+            dataType = null;
             List<String> dataTypeDescList = new ArrayList<>();
             List<String> classNames = PackageManager.find(beast.base.evolution.datatype.DataType.class, "beast.base.evolution.datatype");
             for (String className : classNames) {
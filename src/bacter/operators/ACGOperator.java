@@ -19,12 +19,13 @@ package bacter.operators;
 
 import bacter.Conversion;
 import bacter.ConversionGraph;
-import bacter.Locus;
 import beast.base.core.Input;
 import beast.base.inference.Operator;
 import beast.base.evolution.tree.Node;
 import beast.base.util.Randomizer;
 
+import java.util.List;
+
 /**
  * Abstract class of operators which act on the ConversionGraph state.
  * 
@@ -88,15 +89,11 @@ public abstract class ACGOperator extends Operator {
             grandParent.addChild(sister);
         }
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode1() == parent)
-                    conv.setNode1(sister);
+        for (Conversion conv : acg.getDepartingConversions(parent))
+            conv.setNode1(sister);
 
-                if (conv.getNode2() == parent)
-                    conv.setNode2(sister);
-            }
-        }
+        for (Conversion conv : acg.getArrivingConversions(parent))
+            conv.setNode2(sister);
     }
 
     /**
@@ -130,31 +127,23 @@ public abstract class ACGOperator extends Operator {
 
         parent.setHeight(destTime);
 
-        for (Locus locus : acg.getConvertibleLoci()) {
-            for (Conversion conv : acg.getConversions(locus)) {
-                if (conv.getNode1() == destEdgeBase && conv.getHeight1() > destTime)
-                    conv.setNode1(parent);
+        // Edge lists are ordered by height, so only the oldest
+        // attachments need be visited.
 
-                if (conv.getNode2() == destEdgeBase && conv.getHeight2() > destTime)
-                    conv.setNode2(parent);
-            }
-        }
+        List<Conversion> departing = acg.getDepartingConversions(destEdgeBase);
+        for (int i=departing.size()-1; i>=0 && departing.get(i).getHeight1() > destTime; i--)
+            departing.get(i).setNode1(parent);
+
+        List<Conversion> arriving = acg.getArrivingConversions(destEdgeBase);
+        for (int i=arriving.size()-1; i>=0 && arriving.get(i).getHeight2() > destTime; i--)
+            arriving.get(i).setNode2(parent);
     }
 
     /**
      * @return conversion selected uniformly at random
      */
     protected Conversion chooseConversion() {
-        int idx = Randomizer.nextInt(acg.getTotalConvCount());
-        for (Locus locus : acg.getConvertibleLoci()) {
-            if (idx<acg.getConvCount(locus))
-                return acg.getConversions(locus).get(idx);
-            else
-                idx -= acg.getConvCount(locus);
-        }
-
-        throw new IllegalStateException("Programmer error: loop fell through" +
-                " in chooseConversion().");
+        return acg.getConversion(Randomizer.nextInt(acg.getTotalConvCount()));
     }
 
     /**
@@ -1,7 +1,6 @@
 package bacter.operators;
 
 import bacter.Conversion;
-import bacter.Locus;
 import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.tree.Node;
@@ -48,27 +47,27 @@ public abstract class CFOperator extends ConversionCreationOperator {
             double upperBound = Math.min(node.getParent().getHeight(),
                     srcNodeP.getHeight());
 
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if (conv.getHeight1() > lowerBound && conv.getHeight1() < upperBound) {
-                        if (conv.getNode1() == srcNode)
-                            conv.setNode1(node);
-
-                        if (conv.getNode1() == node &&
-                                (!reverseRootMove || conv.getHeight1() < volatileHeight))
-                            logP += Math.log(0.5);
-                    }
-
-                    if (conv.getHeight2() > lowerBound && conv.getHeight2() < upperBound) {
-                        if (conv.getNode2() == srcNode)
-                            conv.setNode2(node);
-
-                        if (conv.getNode2() == node
-                                && (!reverseRootMove || conv.getNode1() != node
-                                || conv.getHeight1() < volatileHeight))
-                            logP += Math.log(0.5);
-                    }
-                }
+            for (Conversion conv : acg.getDepartingConversions(srcNode)) {
+                if (conv.getHeight1() > lowerBound && conv.getHeight1() < upperBound)
+                    conv.setNode1(node);
+            }
+
+            for (Conversion conv : acg.getArrivingConversions(srcNode)) {
+                if (conv.getHeight2() > lowerBound && conv.getHeight2() < upperBound)
+                    conv.setNode2(node);
+            }
+
+            for (Conversion conv : acg.getDepartingConversions(node)) {
+                if (conv.getHeight1() > lowerBound && conv.getHeight1() < upperBound
+                        && (!reverseRootMove || conv.getHeight1() < volatileHeight))
+                    logP += Math.log(0.5);
+            }
+
+            for (Conversion conv : acg.getArrivingConversions(node)) {
+                if (conv.getHeight2() > lowerBound && conv.getHeight2() < upperBound
+                        && (!reverseRootMove || conv.getNode1() != node
+                        || conv.getHeight1() < volatileHeight))
+                    logP += Math.log(0.5);
             }
 
             node = node.getParent();
@@ -84,9 +83,11 @@ public abstract class CFOperator extends ConversionCreationOperator {
                     *(acg.getTotalConvertibleSequenceLength()
                     + acg.getConvertibleLoci().size()*(deltaInput.get().getValue() - 1.0));
 
+            // Only the edges above the root's children extend above
+            // volatileHeight.
             List<Conversion> toRemove = new ArrayList<>();
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
+            for (Node rootChild : acg.getRoot().getChildren()) {
+                for (Conversion conv : acg.getDepartingConversions(rootChild)) {
                     if (conv.getHeight1() > volatileHeight)
                         toRemove.add(conv);
                 }
@@ -138,21 +139,22 @@ public abstract class CFOperator extends ConversionCreationOperator {
 
         Node node = srcNode.getParent();
         while (node != null) {
-            for (Locus locus : acg.getConvertibleLoci()) {
-                for (Conversion conv : acg.getConversions(locus)) {
-                    if (conv.getNode1() == node && conv.getHeight1() < destTime) {
-                        if (Randomizer.nextBoolean())
-                            conv.setNode1(srcNode);
-                        logP += Math.log(0.5);
-                    }
-
-                    if (conv.getNode2() == node && conv.getHeight2() < destTime) {
-                        if (Randomizer.nextBoolean())
-                            conv.setNode2(srcNode);
-                        logP += Math.log(0.5);
-                    }
+            for (Conversion conv : acg.getDepartingConversions(node)) {
+                if (conv.getHeight1() >= destTime)
+                    break;
 
-                }
+                if (Randomizer.nextBoolean())
+                    conv.setNode1(srcNode);
+                logP += Math.log(0.5);
+            }
+
+            for (Conversion conv : acg.getArrivingConversions(node)) {
+                if (conv.getHeight2() >= destTime)
+                    break;
+
+                if (Randomizer.nextBoolean())
+                    conv.setNode2(srcNode);
+                logP += Math.log(0.5);
             }
 
             node = node.getParent();
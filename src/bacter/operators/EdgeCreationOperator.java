@@ -20,7 +20,6 @@ package bacter.operators;
 import bacter.CFEventList;
 import bacter.Conversion;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.coalescent.PopulationFunction;
 import beast.base.util.Randomizer;
 import java.util.List;
@@ -62,17 +61,18 @@ public abstract class EdgeCreationOperator extends ACGOperator {
         double u = Randomizer.nextDouble()*acg.getClonalFrameLength();
         logP += Math.log(1.0/acg.getClonalFrameLength());
         
-        for (Node node : acg.getNodesAsArray()) {
-            if (node.isRoot())
-                continue;
-            
-            if (u<node.getLength()) {
-                conv.setNode1(node);
-                conv.setHeight1(node.getHeight() + u);
-                break;
-            } else
-                u -= node.getLength();
-        }
+        CFEventList cfEventList = acg.getCFEventList();
+        List<CFEventList.Event> events = cfEventList.getCFEvents();
+
+        int idx = cfEventList.getIntervalIndexAtLength(u);
+        CFEventList.Event event = events.get(idx);
+        double interval = events.get(idx+1).getHeight() - event.getHeight();
+
+        u -= cfEventList.getLengthBelow(idx);
+        int lineage = Math.min((int)(u/interval), event.getLineageCount()-1);
+        conv.setNode1(cfEventList.getLineage(idx, lineage));
+        conv.setHeight1(Math.min(event.getHeight() + u - lineage*interval,
+                events.get(idx+1).getHeight()));
         
         // Select arrival point
         logP += coalesceEdge(conv);
@@ -106,12 +106,11 @@ public abstract class EdgeCreationOperator extends ACGOperator {
     public double coalesceEdge(Conversion conv) {
         double logP = 0.0;
         
-        List<CFEventList.Event> events = acg.getCFEvents();
+        CFEventList cfEventList = acg.getCFEventList();
+        List<CFEventList.Event> events = cfEventList.getCFEvents();
         
         // Locate event immediately below departure point
-        int startIdx = 0;
-        while (events.get(startIdx+1).getHeight()<conv.getHeight1())
-            startIdx += 1;
+        int startIdx = cfEventList.getIntervalIndex(conv.getHeight1());
                 
         // Choose edge length in dimensionless time.
         double u = Randomizer.nextExponential(1.0);
@@ -138,17 +137,8 @@ public abstract class EdgeCreationOperator extends ACGOperator {
                         popFunc.getIntensity(t) + u/event.getLineageCount()));
                 
                 // Attach to random clonal frame lineage extant at this time
-                int z = Randomizer.nextInt(event.getLineageCount());
-                for (Node node : acg.getNodesAsArray()) {
-                    if (conv.getHeight2()>node.getHeight() &&
-                            (node.isRoot() || conv.getHeight2()<node.getParent().getHeight())) {
-                        if (z==0) {
-                            conv.setNode2(node);
-                            break;
-                        } else
-                            z -= 1;
-                    }
-                }
+                conv.setNode2(cfEventList.getLineage(i,
+                        Randomizer.nextInt(event.getLineageCount())));
 
                 logP += -u + Math.log(1.0/popFunc.getPopSize(conv.getHeight2()));
                 break;
@@ -0,0 +1,392 @@
+package bacter.operators;
+
+import bacter.ACGSnapshot;
+import bacter.ConversionGraph;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Multiple-try Metropolis (Liu, Liang and Wong, 2000) wrapper for
+ * operators which modify only the conversions of an ACG, such as
+ * AddRemoveConversion, ConvertedEdgeHop and ConvertedRegionShift.
+ *
+ * Each proposal applies the wrapped operator K times to the current state
+ * x, giving candidates y_1..y_K, and selects y_j with probability
+ * proportional to the weight
+ *
+ *   w(y_j, x) = p(y_j) sqrt(T(y_j, x)/T(x, y_j))
+ *
+ * where p is the target density and T the proposal kernel of the wrapped
+ * operator, so that the square root is the Hastings ratio it reports.  The
+ * wrapped operator is then applied K-1 times to the selected candidate y,
+ * giving the balancing reference points x*_1..x*_{K-1}, with x*_K = x.  The
+ * Hastings ratio returned is that which causes MCMC to accept y with the
+ * multiple-try probability
+ *
+ *   min(1, sum_j w(y_j, x) / sum_j w(x*_j, y)),
+ *
+ * leaving the target distribution unchanged.  With a single try the
+ * wrapped operator is recovered exactly.
+ *
+ * Candidates and reference points are scored on scoring ACGs lying
+ * outside of the MCMC state, each with its own copy of the ACG-dependent
+ * components of the target distribution, one thread per scoring ACG.
+ * Parameters, site models and distributions not depending on the ACG may
+ * be shared with the target.  Scoring distributions are recomputed
+ * incrementally from one state to the next, and in full only when the
+ * clonal frame or the value of the target at the current state shows
+ * that they have fallen out of step with the chain.
+ */
+@Description("Multiple-try Metropolis wrapper for operators which modify " +
+        "only the conversions of an ACG, scoring candidates in parallel.")
+public class MultipleTryOperator extends ACGOperator {
+
+    public Input<ACGOperator> operatorInput = new Input<>(
+            "operator",
+            "Operator used to generate candidate states.  Must modify " +
+                    "only the conversions of the ACG.",
+            Input.Validate.REQUIRED);
+
+    public Input<Distribution> distributionInput = new Input<>(
+            "distribution",
+            "Distribution targeted by the chain, usually the posterior.",
+            Input.Validate.REQUIRED);
+
+    public Input<List<ConversionGraph>> scoringACGsInput = new Input<>(
+            "scoringACG",
+            "ACG outside of the state, having the same loci and taxa as " +
+                    "acg, on which candidates are scored.  Each is used by " +
+                    "its own thread.",
+            new ArrayList<>());
+
+    public Input<List<Distribution>> scoringDistributionsInput = new Input<>(
+            "scoringDistribution",
+            "Copy of the target distribution computed using the " +
+                    "corresponding scoringACG.",
+            new ArrayList<>());
+
+    public Input<Integer> triesInput = new Input<>(
+            "tries",
+            "Number of candidate states generated per proposal.", 4);
+
+    /**
+     * Maximum difference between the target and a scoring distribution
+     * at the current state, relative to the magnitude of the target,
+     * before the latter is recomputed in full.
+     */
+    private static final double TOLERANCE = 1e-8;
+
+    private ACGOperator operator;
+    private Distribution distribution;
+    private int nTries;
+
+    private List<Scorer> scorers;
+    private ExecutorService executor;
+
+    private ACGSnapshot current;
+    private ACGSnapshot[] candidates, references;
+    private double[] candidateLogHRs, candidateLogPs;
+    private double[] referenceLogHRs, referenceLogPs;
+    private double[] scorerLogPs;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        operator = operatorInput.get();
+        distribution = distributionInput.get();
+        nTries = triesInput.get();
+
+        if (operator.acgInput.get() != acg)
+            throw new IllegalArgumentException("Operator wrapped by " +
+                    "MultipleTryOperator must act on the same ACG.");
+
+        if (nTries < 1)
+            throw new IllegalArgumentException("tries must be at least 1.");
+
+        List<ConversionGraph> scoringACGs = scoringACGsInput.get();
+        List<Distribution> scoringDistributions = scoringDistributionsInput.get();
+        if (scoringACGs.isEmpty() || scoringACGs.size() != scoringDistributions.size())
+            throw new IllegalArgumentException("MultipleTryOperator requires " +
+                    "at least one scoringACG, each with a scoringDistribution.");
+
+        scorers = new ArrayList<>();
+        for (int s=0; s<scoringACGs.size(); s++)
+            scorers.add(new Scorer(scoringACGs.get(s), scoringDistributions.get(s)));
+
+        if (scorers.size() > 1) {
+            executor = Executors.newFixedThreadPool(scorers.size(), r -> {
+                Thread thread = new Thread(r, "MultipleTryOperator scorer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        current = new ACGSnapshot();
+        candidates = new ACGSnapshot[nTries];
+        references = new ACGSnapshot[nTries];
+        for (int j=0; j<nTries; j++) {
+            candidates[j] = new ACGSnapshot();
+            references[j] = new ACGSnapshot();
+        }
+
+        candidateLogHRs = new double[nTries];
+        candidateLogPs = new double[nTries];
+        referenceLogHRs = new double[nTries];
+        referenceLogPs = new double[nTries];
+        scorerLogPs = new double[scorers.size()];
+    }
+
+    /**
+     * The scoring ACGs are deliberately excluded, as they do not form
+     * part of the state.
+     */
+    @Override
+    public List<StateNode> listStateNodes() {
+        return operatorInput.get().listStateNodes();
+    }
+
+    @Override
+    public double proposal() {
+        current.capture(acg);
+        double targetLogP = distribution.getCurrentLogP();
+
+        // Forward draws from the current state
+        drawStates(current, candidates, candidateLogHRs, nTries);
+        forEachScorer(s -> {
+            scorerLogPs[s] = scorers.get(s).synchronise(acg, current, targetLogP);
+            scoreStates(s, candidates, candidateLogHRs, candidateLogPs, nTries);
+        });
+        double logPx = scorerLogPs[0];
+
+        double[] forwardLogWeights = new double[nTries];
+        for (int j=0; j<nTries; j++)
+            forwardLogWeights[j] = candidateLogPs[j] + 0.5*candidateLogHRs[j];
+
+        double forwardLogSum = logSumExp(forwardLogWeights);
+        if (forwardLogSum == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        int chosen = chooseIndex(forwardLogWeights, forwardLogSum);
+        ACGSnapshot y = candidates[chosen];
+        acg.assignConversionsFromSnapshot(y);
+
+        // Balancing draws from the selected candidate
+        drawStates(y, references, referenceLogHRs, nTries-1);
+        forEachScorer(s -> scoreStates(s, references, referenceLogHRs, referenceLogPs, nTries-1));
+
+        double[] reverseLogWeights = new double[nTries];
+        for (int j=0; j<nTries-1; j++)
+            reverseLogWeights[j] = referenceLogPs[j] + 0.5*referenceLogHRs[j];
+        reverseLogWeights[nTries-1] = logPx - 0.5*candidateLogHRs[chosen];
+
+        double reverseLogSum = logSumExp(reverseLogWeights);
+
+        // MCMC multiplies the returned ratio by p(y)/p(x).
+        return forwardLogSum - reverseLogSum - (candidateLogPs[chosen] - logPx);
+    }
+
+    /**
+     * Generate states by applying the wrapped operator to a given state,
+     * to which the ACG is returned after each application.
+     *
+     * @param from snapshot of state to which operator is applied
+     * @param states snapshots in which generated states are recorded
+     * @param logHRs Hastings ratios reported by the operator, negative
+     *               infinity where no state was generated
+     * @param n number of states to generate
+     */
+    private void drawStates(ACGSnapshot from, ACGSnapshot[] states, double[] logHRs, int n) {
+        for (int j=0; j<n; j++) {
+            logHRs[j] = operator.proposal();
+
+            if (acg.clonalFrameIsDirty())
+                throw new IllegalStateException("MultipleTryOperator cannot wrap "
+                        + operator.getID() + ", which modifies the clonal frame.");
+
+            if (logHRs[j] > Double.NEGATIVE_INFINITY)
+                states[j].capture(acg);
+
+            acg.assignConversionsFromSnapshot(from);
+        }
+    }
+
+    /**
+     * Score those generated states allocated to a given scorer.
+     *
+     * @param s index of scorer
+     * @param states snapshots of generated states
+     * @param logHRs Hastings ratios of generated states
+     * @param logPs target log densities of generated states
+     * @param n number of generated states
+     */
+    private void scoreStates(int s, ACGSnapshot[] states, double[] logHRs, double[] logPs, int n) {
+        Scorer scorer = scorers.get(s);
+        for (int j=s; j<n; j+=scorers.size()) {
+            if (logHRs[j] > Double.NEGATIVE_INFINITY)
+                logPs[j] = scorer.score(states[j]);
+            else
+                logPs[j] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Run a task for each scorer, in parallel if there is more than one.
+     *
+     * @param task task taking the index of the scorer
+     */
+    private void forEachScorer(IntConsumer task) {
+        if (executor == null) {
+            task.accept(0);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int s=0; s<scorers.size(); s++) {
+            int scorerIdx = s;
+            futures.add(executor.submit(() -> task.accept(scorerIdx)));
+        }
+
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring candidates.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static double logSumExp(double[] logValues) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double logValue : logValues)
+            max = Math.max(max, logValue);
+
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
+
+        double sum = 0.0;
+        for (double logValue : logValues)
+            sum += Math.exp(logValue - max);
+
+        return max + Math.log(sum);
+    }
+
+    private static int chooseIndex(double[] logWeights, double logSum) {
+        double u = Randomizer.nextDouble();
+
+        int idx;
+        for (idx=0; idx<logWeights.length-1; idx++) {
+            u -= Math.exp(logWeights[idx] - logSum);
+            if (u < 0)
+                break;
+        }
+
+        // Guard against rounding selecting a state of zero weight
+        while (logWeights[idx] == Double.NEGATIVE_INFINITY)
+            idx -= 1;
+
+        return idx;
+    }
+
+    /**
+     * Scoring ACG together with its distribution.  Each is driven by a
+     * State of its own, so that the distribution is updated from one
+     * scored state to the next just as the target is by MCMC.
+     */
+    private static class Scorer {
+
+        ConversionGraph acg;
+        Distribution distribution;
+        State state;
+
+        ACGSnapshot clonalFrame = null;
+        boolean disagreementReported = false;
+
+        Scorer(ConversionGraph acg, Distribution distribution) {
+            this.acg = acg;
+            this.distribution = distribution;
+
+            state = new State();
+            state.initByName("stateNode", acg);
+            state.initialise();
+            state.setPosterior(distribution);
+        }
+
+        /**
+         * Bring the scoring ACG and distribution into step with the
+         * current state of the chain.
+         *
+         * @param target ACG of the chain, which is only read
+         * @param snapshot snapshot of the current state
+         * @param targetLogP target log density of the current state
+         * @return scoring log density of the current state
+         */
+        double synchronise(ConversionGraph target, ACGSnapshot snapshot, double targetLogP) {
+            double logP;
+            if (clonalFrame != null && clonalFrame.hasSameClonalFrame(snapshot)) {
+                logP = score(snapshot);
+                if (agrees(logP, targetLogP))
+                    return logP;
+            }
+
+            acg.assignFromFragile(target);
+            logP = state.robustlyCalcPosterior(distribution);
+
+            if (clonalFrame == null)
+                clonalFrame = new ACGSnapshot();
+            clonalFrame.capture(acg);
+
+            // Candidates are weighted using the scoring distribution
+            // alone, so a persistent difference from the target affects
+            // efficiency but not correctness.
+            if (!agrees(logP, targetLogP) && !disagreementReported) {
+                Log.warning.println("Warning: scoring distribution of "
+                        + "MultipleTryOperator disagrees with target ("
+                        + logP + " vs. " + targetLogP + ").  Check that it "
+                        + "is a faithful copy of the target.");
+                disagreementReported = true;
+            }
+
+            return logP;
+        }
+
+        private static boolean agrees(double logP, double targetLogP) {
+            return Math.abs(logP - targetLogP) <= TOLERANCE*Math.max(1.0, Math.abs(targetLogP));
+        }
+
+        /**
+         * @param snapshot snapshot of state sharing the clonal frame of
+         *                 the scoring ACG
+         * @return scoring log density of state
+         */
+        double score(ACGSnapshot snapshot) {
+            state.store(-1);
+            acg.assignConversionsFromSnapshot(snapshot);
+
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            double logP = distribution.calculateLogP();
+            state.acceptCalculationNodes();
+            state.setEverythingDirty(false);
+
+            return logP;
+        }
+    }
+}
@@ -2,6 +2,10 @@ package bacter.util;
 
 import bacter.ConversionGraph;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
@@ -9,4 +13,71 @@ public interface ACGLogReader extends Iterable<ConversionGraph> {
 
     int getACGCount();
     int getCorrectedACGCount();
+
+    /**
+     * @return number of ACGs excluded as burn-in
+     */
+    default int getBurnin() {
+        return getACGCount() - getCorrectedACGCount();
+    }
+
+    /**
+     * @return Nexus text preceding the trees in the equivalent text log,
+     * or the empty string if not available.
+     */
+    default String getPreamble() {
+        return "";
+    }
+
+    /**
+     * @return Nexus text following the trees in the equivalent text log,
+     * or the empty string if not available.
+     */
+    default String getPostamble() {
+        return "";
+    }
+
+    /**
+     * Retrieve an iterator over the ACGs following burn-in whose indices
+     * (counting from the first ACG after burn-in) lie in the range
+     * [from, to).  Implementations display no progress bar, and
+     * iterators over different ranges do not share graphs, so may be
+     * consumed on different threads, but should all be created on the
+     * same thread.  Depending on the log format, the ACGs preceding the
+     * range may still need to be read.
+     *
+     * The default implementation simply skips the ACGs preceding the
+     * range in an ordinary iteration, so is subject to any progress bar
+     * displayed by iterator().  Readers should override it.
+     *
+     * @param from index of first ACG to visit
+     * @param to index following that of the last ACG to visit
+     * @return ConversionGraph iterator
+     */
+    default Iterator<ConversionGraph> iterator(int from, int to) {
+        if (from >= to)
+            return Collections.emptyIterator();
+
+        Iterator<ConversionGraph> iterator = iterator();
+        for (int i=0; i<from; i++)
+            iterator.next();
+
+        return new Iterator<ConversionGraph>() {
+            int current = from;
+
+            @Override
+            public boolean hasNext() {
+                return current < to;
+            }
+
+            @Override
+            public ConversionGraph next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                current += 1;
+                return iterator.next();
+            }
+        };
+    }
 }
@@ -0,0 +1,143 @@
+package bacter.util;
+
+import beast.base.evolution.datatype.DataType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes an alignment to a FASTA or Nexus file without holding the
+ * sequences in memory.  The layout of the file is fixed on construction,
+ * with each sequence occupying one character per site, so that any range
+ * of sites of any sequence can then be written directly to its place in
+ * the file.  Ranges may be written in any order and from several threads
+ * at once.  The Nexus layout matches that produced by feast's
+ * NexusBuilder with a TaxaBlock and a CharactersBlock.
+ *
+ * Only data types whose states are each represented by a single
+ * character are supported.
+ */
+public class AlignmentFileWriter implements Closeable {
+
+    static final int CHUNK_SIZE = 1 << 16;
+
+    FileChannel channel;
+    int siteCount;
+    long[] sequenceOffsets;
+    byte[] stateCodes;
+
+    ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(CHUNK_SIZE));
+
+    /**
+     * Create the file and write everything but the sequences themselves.
+     *
+     * @param file destination file
+     * @param taxonNames names of taxa, in the order in which sequences are
+     *                   to appear
+     * @param siteCount number of sites in each sequence
+     * @param dataType data type of sequences
+     * @param useNexus if true, use Nexus rather than FASTA format
+     * @throws IOException if the file cannot be written
+     */
+    public AlignmentFileWriter(File file, List<String> taxonNames, int siteCount,
+                               DataType dataType, boolean useNexus) throws IOException {
+        this.siteCount = siteCount;
+
+        stateCodes = new byte[dataType.getStateCount()];
+        for (int s=0; s<stateCodes.length; s++) {
+            String code = dataType.encodingToString(new int[] {s});
+            if (code.length() != 1)
+                throw new IllegalArgumentException("Data type "
+                        + dataType.getTypeDescription()
+                        + " cannot be written by AlignmentFileWriter.");
+            stateCodes[s] = (byte)code.charAt(0);
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        sequenceOffsets = new long[taxonNames.size()];
+        long offset = 0;
+
+        if (useNexus) {
+            StringBuilder sb = new StringBuilder("#NEXUS\n\nbegin taxa;\n");
+            sb.append("\tdimensions ntax=").append(taxonNames.size()).append(";\n");
+            sb.append("\ttaxlabels");
+            for (String taxonName : taxonNames)
+                sb.append(" ").append(taxonName);
+            sb.append(";\nend;\n\nbegin characters;\n");
+            sb.append("\tdimensions nchar=").append(siteCount).append(";\n");
+            sb.append("\tformat datatype=").append(dataType.getTypeDescription()).append(";\n");
+            sb.append("\tmatrix");
+            offset = writeString(sb.toString(), offset);
+
+            for (int t=0; t<taxonNames.size(); t++) {
+                offset = writeString("\n\t\t" + taxonNames.get(t) + " ", offset);
+                sequenceOffsets[t] = offset;
+                offset += siteCount;
+            }
+
+            writeString(";\nend;\n", offset);
+        } else {
+            for (int t=0; t<taxonNames.size(); t++) {
+                offset = writeString(">" + taxonNames.get(t) + "\n", offset);
+                sequenceOffsets[t] = offset;
+                offset += siteCount;
+                offset = writeString("\n", offset);
+            }
+        }
+    }
+
+    private long writeString(String str, long offset) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+            offset += channel.write(bytes, offset);
+
+        return offset;
+    }
+
+    /**
+     * Write a range of sites of one sequence.
+     *
+     * @param taxonIndex index of sequence, in the order given on construction
+     * @param firstSite first site to write
+     * @param states array containing the states to write
+     * @param offset position of the state of the first site in states
+     * @param length number of sites to write
+     * @throws IOException if thrown by the underlying channel
+     */
+    public void writeSites(int taxonIndex, int firstSite,
+                           int[] states, int offset, int length) throws IOException {
+        if (firstSite < 0 || firstSite + length > siteCount)
+            throw new IndexOutOfBoundsException("Sites lie outside alignment.");
+
+        ByteBuffer buffer = buffers.get();
+        byte[] buf = buffer.array();
+
+        long position = sequenceOffsets[taxonIndex] + firstSite;
+        for (int done=0; done<length; ) {
+            int count = Math.min(buf.length, length - done);
+            for (int i=0; i<count; i++)
+                buf[i] = stateCodes[states[offset + done + i]];
+
+            buffer.clear();
+            buffer.limit(count);
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+
+            done += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,379 @@
+package bacter.util;
+
+import bacter.ACGSnapshot;
+import bacter.Conversion;
+import bacter.ConversionGraph;
+import bacter.Locus;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logger which moves ACG formatting and output off the MCMC thread.  At
+ * each logged step only a compact ACGSnapshot of the graph is captured;
+ * a background thread reconstitutes the graph from the snapshot, formats
+ * it and writes it to the log file.  Snapshots are recycled through a
+ * bounded pool, so if the writer falls behind the sampler blocks until a
+ * snapshot becomes free rather than accumulating unwritten states.
+ *
+ * The output is identical to that produced by an ordinary Logger
+ * containing the ACG itself, a TrimmedACGLogger, a ClonalFrameLogger or
+ * a ConvertedRegionLogger, depending on the chosen content.  The ACG is
+ * given by the acg input, so the log input of Logger is not used.
+ */
+@Description("Logs ACGs from a background thread.")
+public class AsyncACGLogger extends Logger {
+
+    public enum Content { acg, trimmedACG, clonalFrame, convertedRegions }
+
+    public Input<ConversionGraph> acgInput = new Input<>(
+            "acg", "Conversion graph to log.", Validate.REQUIRED);
+
+    public Input<Content> contentInput = new Input<>("content",
+            "What to log: the full ACG (default), the ACG with root-connecting " +
+                    "conversions removed, the clonal frame or the converted regions.",
+            Content.acg, Content.values());
+
+    public Input<Integer> queueSizeInput = new Input<>("queueSize",
+            "Maximum number of logged states awaiting output.", 8);
+
+    private ConversionGraph acg;
+    private Content content;
+    private int every;
+
+    private PrintStream out;
+
+    /**
+     * Number of the last sample in a resumed log, or -1 if the log was
+     * not resumed.  Kept per logger rather than relying on the static
+     * Logger.sampleOffset, which is set by whichever logger is
+     * initialized last.
+     */
+    private long sampleNrOffset = -1;
+
+    /**
+     * Logged state awaiting output.  An entry with a null snapshot
+     * signals the end of the log.
+     */
+    private static class Entry {
+        long sampleNr;
+        ACGSnapshot snapshot;
+    }
+
+    private BlockingQueue<Entry> freeEntries, pendingEntries;
+    private Thread writerThread;
+    private volatile Throwable writerError;
+
+    public AsyncACGLogger() {
+        loggersInput.setRule(Validate.OPTIONAL);
+    }
+
+    /**
+     * Logger.initAndValidate() is deliberately not called, as it requires
+     * the log input to be non-empty.
+     */
+    @Override
+    public void initAndValidate() {
+        acg = acgInput.get();
+        content = contentInput.get();
+        every = everyInput.get();
+
+        if (queueSizeInput.get() < 1)
+            throw new IllegalArgumentException("queueSize must be at least 1.");
+    }
+
+    @Override
+    public int getEvery() {
+        return every;
+    }
+
+    @Override
+    public void init() throws IOException {
+        String fileName = fileNameInput.get();
+        boolean resuming = false;
+        if (fileName == null || fileName.isEmpty())
+            out = System.out;
+        else {
+            resuming = FILE_MODE == LogFileMode.resume && new File(fileName).exists();
+            if (resuming) {
+                sampleNrOffset = readLastSampleNr(new File(fileName));
+                removeFooter(new File(fileName));
+            }
+
+            out = new PrintStream(new BufferedOutputStream(new FileOutputStream(
+                    fileName, resuming)));
+        }
+
+        if (!resuming)
+            writeHeader();
+
+        freeEntries = new ArrayBlockingQueue<>(queueSizeInput.get());
+        pendingEntries = new ArrayBlockingQueue<>(queueSizeInput.get() + 1);
+        for (int i=0; i<queueSizeInput.get(); i++) {
+            Entry entry = new Entry();
+            entry.snapshot = new ACGSnapshot();
+            freeEntries.add(entry);
+        }
+
+        writerThread = new Thread(this::writeEntries, "AsyncACGLogger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void log(long sampleNr) {
+        if (sampleNr < 0 || sampleNr % every > 0)
+            return;
+
+        // As in Logger.log(), samples of resumed runs follow on from
+        // the last sample in the log.
+        if (sampleNrOffset >= 0) {
+            if (sampleNr == 0)
+                return;
+            sampleNr += sampleNrOffset;
+        }
+
+        try {
+            Entry entry;
+            while ((entry = freeEntries.poll(100, TimeUnit.MILLISECONDS)) == null)
+                checkWriter();
+
+            entry.sampleNr = sampleNr;
+            entry.snapshot.capture(acg);
+            pendingEntries.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while logging ACG.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writerThread == null)
+            return;
+
+        try {
+            pendingEntries.put(new Entry());
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+
+        checkWriter();
+
+        writeFooter();
+        if (out != System.out)
+            out.close();
+        else
+            out.flush();
+    }
+
+    private void checkWriter() {
+        if (writerError != null)
+            throw new RuntimeException("Error writing ACG log.", writerError);
+    }
+
+    /**
+     * Body of writer thread.
+     */
+    private void writeEntries() {
+        ConversionGraph shadowACG = new ConversionGraph();
+        shadowACG.setID(acg.getID());
+
+        try {
+            while (true) {
+                Entry entry = pendingEntries.take();
+                if (entry.snapshot == null)
+                    break;
+
+                shadowACG.assignFromSnapshot(entry.snapshot);
+                writeState(shadowACG, entry.sampleNr);
+
+                freeEntries.put(entry);
+            }
+        } catch (Throwable e) {
+            writerError = e;
+        }
+
+        out.flush();
+    }
+
+    private void writeHeader() {
+        switch (content) {
+            case acg:
+            case trimmedACG:
+                acg.init(out);
+                out.println();
+                break;
+
+            case clonalFrame:
+                out.println("#NEXUS\n");
+                out.println("Begin taxa;");
+                out.println("\tDimensions ntax=" + acg.getLeafNodeCount() + ";");
+                out.println("\t\tTaxlabels");
+                acg.printTaxa(acg.getRoot(), out, acg.getNodeCount() / 2);
+                out.println("\t\t\t;");
+                out.println("End;");
+
+                out.println("Begin trees;");
+                out.println("\tTranslate");
+                acg.printTranslate(acg.getRoot(), out, acg.getNodeCount() / 2);
+                out.println(";");
+                break;
+
+            case convertedRegions:
+                String mainID = (getID() == null || getID().matches(("\\s*")))
+                        ? acg.getID() + ".converted"
+                        : getID();
+
+                StringBuilder sb = new StringBuilder("Sample\t");
+                for (Locus locus : acg.getConvertibleLoci())
+                    sb.append(mainID).append(".").append(locus.getID()).append("\t");
+                out.println(sb.toString().trim());
+                break;
+        }
+    }
+
+    private void writeState(ConversionGraph state, long sampleNr) {
+        switch (content) {
+            case acg:
+                out.print("tree STATE_" + sampleNr + " = [&R] ");
+                out.println(state.getExtendedNewick());
+                break;
+
+            case trimmedACG:
+                out.print("tree STATE_" + sampleNr + " = ");
+                out.println(state.getTrimmedExtendedNewick());
+                break;
+
+            case clonalFrame:
+                out.print("tree STATE_" + sampleNr + " = ");
+                out.print(state.getRoot().toSortedNewick(new int[1], false));
+                out.println(";");
+                break;
+
+            case convertedRegions:
+                StringBuilder sb = new StringBuilder();
+                sb.append(sampleNr).append("\t");
+                for (Locus locus : state.getConvertibleLoci()) {
+                    if (state.getConvCount(locus) == 0) {
+                        sb.append("NA\t");
+                        break;
+                    }
+
+                    boolean isFirst = true;
+                    for (Conversion conv : state.getConversions(locus)) {
+                        if (isFirst)
+                            isFirst = false;
+                        else
+                            sb.append(",");
+
+                        sb.append(conv.getStartSite()).append(":").append(conv.getEndSite());
+                    }
+                    sb.append("\t");
+                }
+                out.println(sb.toString().trim());
+                break;
+        }
+    }
+
+    /**
+     * Find the number of the last sample written to a log by a previous
+     * run, as done by Logger.init() when resuming.
+     *
+     * @param logFile log file to be resumed
+     * @return last sample number, or -1 if the log contains no samples
+     * @throws IOException if the file cannot be read
+     */
+    private long readLastSampleNr(File logFile) throws IOException {
+        long lastSampleNr = -1;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String sampleField;
+                if (content == Content.convertedRegions) {
+                    int tabIdx = line.indexOf('\t');
+                    sampleField = tabIdx < 0 ? line : line.substring(0, tabIdx);
+                } else {
+                    line = line.trim();
+                    if (!line.startsWith("tree STATE_"))
+                        continue;
+                    int endIdx = line.indexOf(' ', "tree STATE_".length());
+                    sampleField = line.substring("tree STATE_".length(),
+                            endIdx < 0 ? line.length() : endIdx);
+                }
+
+                try {
+                    lastSampleNr = Long.parseLong(sampleField.trim());
+                } catch (NumberFormatException ignored) {
+                    // Header line or truncated final line
+                }
+            }
+        }
+
+        return lastSampleNr;
+    }
+
+    /**
+     * Remove the closing "End;" of a tree log written by a previous run,
+     * so that the log can be appended to.
+     *
+     * @param logFile log file to be resumed
+     * @throws IOException if the file cannot be modified
+     */
+    private void removeFooter(File logFile) throws IOException {
+        if (content == Content.convertedRegions)
+            return;
+
+        byte[] footer = "End;".getBytes(StandardCharsets.US_ASCII);
+
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (!Character.isWhitespace(raf.read()))
+                    break;
+                end -= 1;
+            }
+
+            if (end < footer.length)
+                return;
+
+            byte[] tail = new byte[footer.length];
+            raf.seek(end - footer.length);
+            raf.readFully(tail);
+            if (Arrays.equals(tail, footer))
+                raf.setLength(end - footer.length);
+        }
+    }
+
+    private void writeFooter() {
+        switch (content) {
+            case acg:
+            case trimmedACG:
+            case clonalFrame:
+                out.print("End;");
+                break;
+
+            default:
+                break;
+        }
+    }
+}
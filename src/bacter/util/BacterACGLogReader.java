@@ -20,13 +20,18 @@ package bacter.util;
 import bacter.ConversionGraph;
 import bacter.Locus;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
 
 /**
  * Class representing ACG log files.  Includes methods for
@@ -35,19 +40,41 @@ import java.util.List;
  * iterator over all ACGs included after burn-in.  The iterator
  * automatically displays a progress bar on stdout.
  *
+ * The log is scanned once on construction to build an index of the
+ * byte offsets of each tree, which iterators use to seek directly past
+ * the burn-in and to read trees through a large buffer.  The index may
+ * optionally be saved alongside the log (with the suffix ".idx") and is
+ * then reused by later readers for as long as the log is unmodified.
+ * Iterators close the log once the last ACG has been read, so consumers
+ * which stop early should call close() on them.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class BacterACGLogReader implements ACGLogReader {
+
+    static final String INDEX_FILE_SUFFIX = ".idx";
+    static final byte[] INDEX_MAGIC = "BACTRIDX".getBytes(StandardCharsets.US_ASCII);
+    static final int INDEX_VERSION = 1;
+
+    static final int BUFFER_SIZE = 1 << 20;
+
     File logFile;
-    BufferedReader reader;
 
     List<String> preamble, postamble;
-    String nextLine;
 
     List<Locus> loci;
 
     int nACGs, burnin;
 
+    /**
+     * Byte offsets delimiting the preamble, each tree and the postamble.
+     * The tree ends exclude the line terminator.
+     */
+    long preambleEnd, postambleStart;
+    long[] treeStarts, treeEnds;
+
+    int parserThreadCount = 1;
+
     /**
      * Construct and initialize the reader.  The Preamble is
      * read and the list of loci constructed immediately.
@@ -56,22 +83,43 @@ public class BacterACGLogReader implements ACGLogReader {
      * @throws IOException
      */
     public BacterACGLogReader(File logFile, double burninPercentage) throws IOException {
-        this.logFile = logFile;
-
-        reader = new BufferedReader(new FileReader(logFile));
+        this(logFile, burninPercentage, false);
+    }
 
-        preamble = new ArrayList<>();
-        skipPreamble();
+    /**
+     * Construct and initialize the reader.  The Preamble is
+     * read and the list of loci constructed immediately.
+     *
+     * @param logFile ACG log file.
+     * @param burninPercentage percentage of ACGs to discard as burn-in
+     * @param useIndexFile if true, the tree index is loaded from (or,
+     *                     if missing or stale, saved to) a file next to
+     *                     the log
+     * @throws IOException
+     */
+    public BacterACGLogReader(File logFile, double burninPercentage,
+                              boolean useIndexFile) throws IOException {
+        this.logFile = logFile;
 
-        nACGs = 0;
-        while (true) {
-            if (getNextTreeString() == null)
-                break;
+        File indexFile = new File(logFile.getPath() + INDEX_FILE_SUFFIX);
+        if (!useIndexFile || !readIndex(indexFile)) {
+            buildIndex();
 
-            nACGs += 1;
+            if (useIndexFile) {
+                try {
+                    writeIndex(indexFile);
+                } catch (IOException e) {
+                    System.err.println("Warning: failed to write index file "
+                            + indexFile + ": " + e.getMessage());
+                }
+            }
         }
+
         burnin = (int)Math.round(nACGs*burninPercentage/100);
 
+        preamble = new ArrayList<>();
+        readPreamble();
+
         postamble = new ArrayList<>();
         readPostamble();
 
@@ -79,45 +127,242 @@ public class BacterACGLogReader implements ACGLogReader {
         extractLoci();
     }
 
-
     /**
-     * Internal method for skimming the preamble at the start
-     * of the log, before we get to the tree section.
+     * Scan the log file, recording the offsets of the end of the
+     * preamble, of each complete tree and of the start of the
+     * postamble.  Trees may span several lines, the last of which ends
+     * with a semicolon.  Only the part of the file present when the scan
+     * begins is considered.
      *
      * @throws IOException
      */
-    private void skipPreamble() throws IOException {
-        boolean recordPreamble = preamble.isEmpty();
+    private void buildIndex() throws IOException {
+        nACGs = 0;
+        treeStarts = new long[1024];
+        treeEnds = new long[1024];
+
+        preambleEnd = -1;
+        postambleStart = -1;
+        long currentTreeStart = -1;
+
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] buf = buffer.array();
+
+            // State of the line currently being scanned.  The prefix holds
+            // the first characters of the line after leading whitespace.
+            long lineStart = 0;
+            long trimmedStart = -1, trimmedEnd = -1;
+            byte[] prefix = new byte[4];
+            int prefixLength = 0;
+            byte lastByte = 0;
+            boolean skipLF = false;
+
+            long offset = 0;
+            while (offset <= fileSize && postambleStart < 0) {
+                int count = 0;
+                if (offset < fileSize) {
+                    buffer.clear();
+                    if (fileSize - offset < buffer.capacity())
+                        buffer.limit((int)(fileSize - offset));
+                    while (buffer.hasRemaining() && count >= 0)
+                        count = channel.read(buffer, offset + buffer.position());
+                    count = buffer.position();
+                }
+
+                for (int j=0; j<=count; j++) {
+                    long pos = offset + j;
+                    boolean atEOF = j == count;
+                    if (atEOF && pos < fileSize)
+                        break;
+
+                    byte b = atEOF ? (byte)'\n' : buf[j];
+
+                    if (skipLF) {
+                        skipLF = false;
+                        if (b == '\n' && !atEOF) {
+                            lineStart = pos + 1;
+                            continue;
+                        }
+                    }
+
+                    if (b != '\n' && b != '\r') {
+                        if ((b & 0xff) > ' ') {
+                            if (trimmedStart < 0)
+                                trimmedStart = pos;
+                            trimmedEnd = pos + 1;
+                            lastByte = b;
+                        }
+                        if (trimmedStart >= 0 && prefixLength < prefix.length)
+                            prefix[prefixLength++] = b;
+                        continue;
+                    }
 
-        while(true) {
-            nextLine = reader.readLine();
+                    // End of line (or of file)
 
-            if (nextLine == null)
-                throw new IOException("Reached end of file while searching for first tree.");
+                    if (atEOF && pos == lineStart)
+                        break;
 
-            nextLine = nextLine.trim();
+                    long trimmedLength = trimmedStart < 0 ? 0 : trimmedEnd - trimmedStart;
 
-            if (nextLine.toLowerCase().startsWith("tree"))
-                break;
+                    if (preambleEnd < 0 && trimmedLength >= 4 && startsWithIgnoreCase(prefix, "tree"))
+                        preambleEnd = lineStart;
 
-            if (recordPreamble)
-                preamble.add(nextLine);
+                    if (preambleEnd >= 0) {
+                        if (trimmedLength == 4 && startsWithIgnoreCase(prefix, "end;")) {
+                            postambleStart = lineStart;
+                            break;
+                        }
+
+                        if (currentTreeStart < 0 && trimmedLength > 0)
+                            currentTreeStart = trimmedStart;
+
+                        if (trimmedLength > 0 && lastByte == ';') {
+                            addTree(currentTreeStart, trimmedEnd);
+                            currentTreeStart = -1;
+                        }
+                    }
+
+                    lineStart = pos + 1;
+                    trimmedStart = -1;
+                    prefixLength = 0;
+                    skipLF = b == '\r';
+
+                    if (atEOF)
+                        break;
+                }
+
+                offset += Math.max(count, 1);
+            }
+
+            if (postambleStart < 0)
+                postambleStart = fileSize;
+        }
+
+        if (preambleEnd < 0)
+            throw new IOException("Reached end of file while searching for first tree.");
+
+        treeStarts = Arrays.copyOf(treeStarts, nACGs);
+        treeEnds = Arrays.copyOf(treeEnds, nACGs);
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] prefix, String str) {
+        for (int i=0; i<str.length(); i++) {
+            if (Character.toLowerCase((char)prefix[i]) != str.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private void addTree(long start, long end) {
+        if (nACGs == treeStarts.length) {
+            treeStarts = Arrays.copyOf(treeStarts, 2*nACGs);
+            treeEnds = Arrays.copyOf(treeEnds, 2*nACGs);
+        }
+
+        treeStarts[nACGs] = start;
+        treeEnds[nACGs] = end;
+        nACGs += 1;
+    }
+
+    /**
+     * Load tree index from file.
+     *
+     * @param indexFile index file
+     * @return true if index was loaded, false if it is missing, unreadable
+     * or was built for a different version of the log file.
+     */
+    private boolean readIndex(File indexFile) {
+        if (!indexFile.exists())
+            return false;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC) || in.readInt() != INDEX_VERSION)
+                return false;
+
+            if (in.readLong() != logFile.length() || in.readLong() != logFile.lastModified())
+                return false;
+
+            preambleEnd = in.readLong();
+            postambleStart = in.readLong();
+            nACGs = in.readInt();
+            treeStarts = new long[nACGs];
+            treeEnds = new long[nACGs];
+            for (int i=0; i<nACGs; i++) {
+                treeStarts[i] = in.readLong();
+                treeEnds[i] = in.readLong();
+            }
+
+            return true;
+
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Save tree index to file.
+     *
+     * @param indexFile index file
+     * @throws IOException
+     */
+    private void writeIndex(File indexFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+
+            out.write(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(logFile.length());
+            out.writeLong(logFile.lastModified());
+            out.writeLong(preambleEnd);
+            out.writeLong(postambleStart);
+            out.writeInt(nACGs);
+            for (int i=0; i<nACGs; i++) {
+                out.writeLong(treeStarts[i]);
+                out.writeLong(treeEnds[i]);
+            }
         }
     }
 
+    /**
+     * Internal method for reading the preamble at the start
+     * of the log, before we get to the tree section.
+     *
+     * @throws IOException
+     */
+    private void readPreamble() throws IOException {
+        byte[] bytes = new byte[(int)preambleEnd];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(logFile))) {
+            in.readFully(bytes);
+        }
+
+        BufferedReader reader = new BufferedReader(new StringReader(
+                new String(bytes, StandardCharsets.UTF_8)));
+
+        String line;
+        while ((line = reader.readLine()) != null)
+            preamble.add(line.trim());
+    }
+
     /**
      * Internal method for extracting postamble following trees.
      *
      * @throws IOException
      */
     private void readPostamble() throws IOException {
-        while (true) {
-            if (nextLine == null)
-                break;
-
-            postamble.add(nextLine);
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            BufferedReader reader = new BufferedReader(Channels.newReader(
+                    channel.position(postambleStart), StandardCharsets.UTF_8.newDecoder(), -1));
 
-            nextLine = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null)
+                postamble.add(line);
         }
     }
 
@@ -163,48 +408,89 @@ public class BacterACGLogReader implements ACGLogReader {
     }
 
     /**
-     * Rewind to the beginning of the file.
-     *
-     * @throws IOException
+     * Reads indexed tree strings from the log file through a large
+     * buffer.  Trees are expected to be requested in increasing order,
+     * in which case the file is read sequentially, but any tree may be
+     * requested.
      */
-    private void reset() throws IOException {
-        reader.close();
-        reader = new BufferedReader(new FileReader(logFile));
-        skipPreamble();
-    }
+    class TreeStringReader implements Closeable {
+        FileChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long bufferStart = 0;
+        int bufferLength = 0;
 
-    /**
-     * @return the next available tree string or null if none exists
-     * @throws IOException
-     */
-    private String getNextTreeString() throws IOException {
         StringBuilder sb = new StringBuilder();
 
-        while (true) {
-            if (nextLine == null || nextLine.trim().toLowerCase().equals("end;"))
-                return null;
+        TreeStringReader() throws IOException {
+            channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        }
 
-            sb.append(nextLine.trim());
-            if (nextLine.trim().endsWith(";"))
-                break;
+        /**
+         * @param i index of tree in log, including burn-in
+         * @return tree string, beginning with the opening bracket
+         * @throws IOException
+         */
+        String getTreeString(int i) throws IOException {
+            long start = treeStarts[i], end = treeEnds[i];
+
+            if (start < bufferStart || end > bufferStart + bufferLength)
+                fillBuffer(start, end);
+
+            byte[] buf = buffer.array();
+            int from = (int)(start - bufferStart), to = (int)(end - bufferStart);
+
+            // Fast path for trees occupying a single line
+            int p = from;
+            while (p < to && buf[p] != '\n' && buf[p] != '\r' && buf[p] != '(')
+                p += 1;
+            if (p < to && buf[p] == '(') {
+                int q = p;
+                while (q < to && buf[q] != '\n' && buf[q] != '\r')
+                    q += 1;
+                if (q == to)
+                    return new String(buf, p, to - p, StandardCharsets.UTF_8);
+            }
 
-            nextLine = reader.readLine();
+            // Concatenate trimmed lines
+            sb.setLength(0);
+            int lineStart = from;
+            for (p = from; p <= to; p++) {
+                if (p < to && buf[p] != '\n' && buf[p] != '\r')
+                    continue;
+
+                int s = lineStart, e = p;
+                while (s < e && (buf[s] & 0xff) <= ' ')
+                    s += 1;
+                while (e > s && (buf[e-1] & 0xff) <= ' ')
+                    e -= 1;
+                sb.append(new String(buf, s, e - s, StandardCharsets.UTF_8));
+
+                lineStart = p + 1;
+            }
+
+            return sb.substring(sb.indexOf("("));
         }
-        nextLine = reader.readLine();
 
-        String treeString = sb.toString();
+        private void fillBuffer(long start, long end) throws IOException {
+            if (end - start > buffer.capacity())
+                buffer = ByteBuffer.allocate((int)(end - start));
 
-        return treeString.substring(treeString.indexOf("("));
-    }
+            buffer.clear();
+            int count = 0;
+            while (buffer.hasRemaining() && count >= 0)
+                count = channel.read(buffer, start + buffer.position());
 
-    /**
-     * Skip burn-in portion of log.
-     *
-     * @throws IOException
-     */
-    private void skipBurnin() throws IOException {
-        for (int i=0; i<burnin; i++)
-            getNextTreeString();
+            bufferStart = start;
+            bufferLength = buffer.position();
+
+            if (end > bufferStart + bufferLength)
+                throw new EOFException("Log file " + logFile + " was truncated.");
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 
     /**
@@ -235,6 +521,21 @@ public class BacterACGLogReader implements ACGLogReader {
         return nACGs - burnin;
     }
 
+    /**
+     * Set the number of threads used to parse trees during iteration.
+     * When greater than one, iterators read tree strings on a background
+     * thread and parse them in parallel, each parser using its own
+     * ConversionGraph.  ACGs are still delivered in log order.
+     *
+     * @param parserThreadCount number of parser threads (default 1)
+     */
+    public void setParserThreadCount(int parserThreadCount) {
+        if (parserThreadCount < 1)
+            throw new IllegalArgumentException("Number of parser threads must be at least 1.");
+
+        this.parserThreadCount = parserThreadCount;
+    }
+
     /**
      * Retrieve an iterator for iterating over the ACGs represented
      * by this log file.  Important points
@@ -243,91 +544,305 @@ public class BacterACGLogReader implements ACGLogReader {
      * in the file when the ACGLogFileReader is constructed.  This is to avoid
      * problems associated with summarising ongoing analyses.
      *
-     * 2. The iterator reuses a single ConversionGraph object during
-     * the iteration.  This means that if you want to collect these
-     * graphs as the iteration progresses you'll need to use
-     * ConversionGraph::copy.
+     * 2. The iterator reuses ConversionGraph objects during the iteration,
+     * so each ACG returned is only valid until the next call to next().
+     * This means that if you want to collect these graphs as the
+     * iteration progresses you'll need to use ConversionGraph::copy.
      *
      * @return ConversionGraph iterator
      */
     @Override
     public Iterator<ConversionGraph> iterator() {
-        try {
-            reset();
-            skipBurnin();
-        } catch (IOException e) {
-            throw new IllegalStateException(e.getMessage());
+        if (parserThreadCount > 1)
+            return new ParallelACGIterator(parserThreadCount);
+
+        return new ProgressIterator(new SequentialACGIterator(0, getCorrectedACGCount()));
+    }
+
+    /**
+     * Iterator displaying a progress bar as ACGs are read.
+     */
+    private class ProgressIterator implements Iterator<ConversionGraph>, Closeable {
+
+        final SequentialACGIterator iterator;
+        int current = 0;
+
+        ProgressIterator(SequentialACGIterator iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public ConversionGraph next() {
+            ConversionGraph acg = iterator.next();
+
+            printProgressBar(current, getCorrectedACGCount());
+            current += 1;
+
+            return acg;
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public Iterator<ConversionGraph> iterator(int from, int to) {
+        return new SequentialACGIterator(from, to);
+    }
+
+    /**
+     * Iterator which reads and parses a range of trees on the calling
+     * thread.  The log file is opened only if the range is non-empty, and
+     * is closed once the last ACG has been read, if reading fails, or when
+     * close() is called by a consumer stopping early.
+     */
+    private class SequentialACGIterator implements Iterator<ConversionGraph>, Closeable {
+
+        final int to;
+        int current;
+
+        ConversionGraph acg;
+        TreeStringReader treeReader;
+
+        SequentialACGIterator(int from, int to) {
+            this.to = to;
+            current = from;
+
+            if (!hasNext())
+                return;
+
+            acg = createACG();
+
+            try {
+                treeReader = new TreeStringReader();
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading ACG log.", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current < to;
+        }
+
+        @Override
+        public ConversionGraph next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            String result;
+            try {
+                result = treeReader.getTreeString(burnin + current);
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException("Error reading ACG log.", e);
+            }
+
+            current += 1;
+            if (!hasNext())
+                close();
+
+            acg.fromExtendedNewick(result);
+
+            return acg;
         }
 
+        @Override
+        public void close() {
+            if (treeReader == null)
+                return;
+
+            try {
+                treeReader.close();
+            } catch (IOException ignored) {
+                // Nothing further is read from the log
+            }
+            treeReader = null;
+        }
+    }
+
+    /**
+     * @return new ConversionGraph with the loci of this log
+     */
+    private ConversionGraph createACG() {
         ConversionGraph acg = new ConversionGraph();
         for (Locus locus : getLoci())
             acg.lociInput.setValue(locus, acg);
         try {
             acg.initAndValidate();
         } catch (Exception e) {
-            throw new IllegalStateException(e.getMessage());
+            throw new IllegalStateException(e.getMessage(), e);
         }
 
-        return new Iterator<ConversionGraph>() {
+        return acg;
+    }
 
-            boolean lineConsumed = true;
-            String nextLine = null;
+    /**
+     * Tree string together with the graph it is parsed into.
+     */
+    private static class ParseSlot {
+        final ConversionGraph acg;
+        String treeString;
 
-            int current = 0;
+        ParseSlot(ConversionGraph acg) {
+            this.acg = acg;
+        }
+    }
 
-            private String getNextLineNoConsume() {
-                if (lineConsumed) {
-                    try {
-                        nextLine = getNextTreeString();
-                        lineConsumed = false;
-                    } catch (IOException e) {
-                        throw new IllegalStateException(e.getMessage());
-                    }
-                }
+    /**
+     * Iterator which parses trees in parallel.  A reader thread fills
+     * free slots with tree strings and submits them to a pool of parser
+     * threads, queueing the resulting futures in log order.  The number
+     * of slots bounds how far reading and parsing may run ahead of the
+     * consumer.  The slot holding the most recently returned graph is
+     * only released on the following call to next().
+     *
+     * The reader thread and parser pool are shut down, and the log file
+     * closed, once the last ACG has been returned, if reading or parsing
+     * fails, or when close() is called by a consumer stopping early.
+     */
+    private class ParallelACGIterator implements Iterator<ConversionGraph>, Closeable {
+
+        final ExecutorService parserPool;
+        final BlockingQueue<ParseSlot> freeSlots;
+        final BlockingQueue<Future<ParseSlot>> parsedSlots;
+        Thread readerThread;
+
+        ParseSlot currentSlot = null;
+        int current = 0;
+
+        ParallelACGIterator(int nThreads) {
+            int nSlots = 2*nThreads + 1;
+            freeSlots = new ArrayBlockingQueue<>(nSlots);
+            parsedSlots = new ArrayBlockingQueue<>(nSlots + 1);
+            for (int i=0; i<nSlots; i++)
+                freeSlots.add(new ParseSlot(createACG()));
+
+            parserPool = Executors.newFixedThreadPool(nThreads, r -> {
+                Thread thread = new Thread(r, "BacterACGLogReader parser");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            readerThread = new Thread(this::readTrees, "BacterACGLogReader reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
 
-                return nextLine;
+        /**
+         * Body of reader thread.
+         */
+        private void readTrees() {
+            try (TreeStringReader treeReader = new TreeStringReader()) {
+                for (int i=burnin; i<nACGs; i++) {
+                    ParseSlot slot = freeSlots.take();
+                    slot.treeString = treeReader.getTreeString(i);
+                    parsedSlots.put(parserPool.submit(() -> {
+                        slot.acg.fromExtendedNewick(slot.treeString);
+                        slot.treeString = null;
+                        return slot;
+                    }));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                CompletableFuture<ParseSlot> failure = new CompletableFuture<>();
+                failure.completeExceptionally(e);
+                parsedSlots.offer(failure);
+            } finally {
+                parserPool.shutdown();
             }
+        }
 
-            private void printProgressBar() {
+        @Override
+        public boolean hasNext() {
+            return current<getCorrectedACGCount();
+        }
 
-                if (current==0) {
-                    System.out.println("0%             25%            50%            75%           100%");
-                    System.out.println("|--------------|--------------|--------------|--------------|");
-                }
+        @Override
+        public ConversionGraph next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            if (currentSlot != null)
+                freeSlots.add(currentSlot);
+
+            try {
+                currentSlot = parsedSlots.take().get();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading ACGs.", e);
+            } catch (ExecutionException e) {
+                close();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
 
-                if (current < getCorrectedACGCount()-1) {
-                    if (current % (int) Math.ceil(getCorrectedACGCount() / 61.0) == 0) {
-                        System.out.print("\r");
-                        for (int i = 0; i < Math.round(61.0 * current / getCorrectedACGCount()); i++)
-                            System.out.print("*");
-                        System.out.flush();
-                    }
-                } else {
-                    System.out.print("\r");
-                    for (int i=0; i<61; i++)
-                        System.out.print("*");
-                    System.out.println();
-                }
+            printProgressBar(current, getCorrectedACGCount());
+            current += 1;
+            if (!hasNext())
+                close();
 
-            }
+            return currentSlot.acg;
+        }
 
-            @Override
-            public boolean hasNext() {
-                return current<getCorrectedACGCount() && getNextLineNoConsume() != null;
+        /**
+         * Stop the reader thread, which may be waiting for a free slot,
+         * and the parser pool.  The reader thread closes the log file on
+         * exiting, which is awaited.
+         */
+        @Override
+        public void close() {
+            if (readerThread == null)
+                return;
+
+            readerThread.interrupt();
+            parserPool.shutdownNow();
+
+            try {
+                readerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            readerThread = null;
+        }
+    }
 
-            @Override
-            public ConversionGraph next() {
-                String result = getNextLineNoConsume();
-                lineConsumed = true;
-                acg.fromExtendedNewick(result);
+    /**
+     * Display progress of an iteration over ACGs on stdout.
+     *
+     * @param current index of ACG currently being processed
+     * @param total total number of ACGs to be processed
+     */
+    static void printProgressBar(int current, int total) {
 
-                printProgressBar();
-                current += 1;
+        if (current==0) {
+            System.out.println("0%             25%            50%            75%           100%");
+            System.out.println("|--------------|--------------|--------------|--------------|");
+        }
 
-                return acg;
+        if (current < total-1) {
+            if (current % (int) Math.ceil(total / 61.0) == 0) {
+                System.out.print("\r");
+                for (int i = 0; i < Math.round(61.0 * current / total); i++)
+                    System.out.print("*");
+                System.out.flush();
             }
-        };
+        } else {
+            System.out.print("\r");
+            for (int i=0; i<61; i++)
+                System.out.print("*");
+            System.out.println();
+        }
+
     }
 }
-
@@ -0,0 +1,472 @@
+package bacter.util;
+
+import bacter.ACGSnapshot;
+import bacter.ConversionGraph;
+import bacter.Locus;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader for ACG logs written by BinaryACGLogger.  Provides the same
+ * iteration, burn-in and preamble facilities as BacterACGLogReader,
+ * including reuse of a single ConversionGraph object during iteration.
+ *
+ * A truncated final record (for instance from an analysis which is still
+ * running) is ignored.  Iterators close the log file once the last ACG has
+ * been read, so consumers which stop early should call close() on them.
+ *
+ * For uncompressed logs, the position of each record is noted when the
+ * records are counted, so that iteration over a range of the log can
+ * begin at the nearest preceding record which includes the clonal frame
+ * topology.  Compressed logs must be decoded from the start.
+ */
+public class BinaryACGLogReader implements ACGLogReader {
+
+    File logFile;
+
+    int taxaTranslationOffset;
+    String preamble;
+    List<Locus> loci;
+
+    boolean compressed;
+
+    int nACGs, burnin;
+    long lastSampleNr = -1;
+
+    /**
+     * File positions of the records of an uncompressed log, together with
+     * the index of the last record at or before each which includes the
+     * clonal frame topology.  Null for compressed logs.
+     */
+    long[] recordOffsets;
+    int[] topologyRecords;
+
+    /**
+     * Construct and initialize the reader.  The header is read and the
+     * number of complete records counted immediately.
+     *
+     * @param logFile binary ACG log file
+     * @param burninPercentage percentage of ACGs to discard as burn-in
+     * @throws IOException if file cannot be read or is not a binary ACG log
+     */
+    public BinaryACGLogReader(File logFile, double burninPercentage) throws IOException {
+        this.logFile = logFile;
+
+        nACGs = 0;
+        try (RecordInputStream in = open()) {
+            ACGSnapshot snapshot = new ACGSnapshot();
+            long[] offsets = new long[1024];
+            int[] topologies = new int[1024];
+
+            while (true) {
+                long offset = in.getFilePosition();
+                try {
+                    lastSampleNr = snapshot.read(in, loci, taxaTranslationOffset);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (nACGs == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2*nACGs);
+                    topologies = Arrays.copyOf(topologies, 2*nACGs);
+                }
+                offsets[nACGs] = offset;
+                topologies[nACGs] = snapshot.readIncludedTopology() || nACGs == 0
+                        ? nACGs
+                        : topologies[nACGs-1];
+
+                nACGs += 1;
+            }
+
+            if (!in.isCompressed()) {
+                recordOffsets = offsets;
+                topologyRecords = topologies;
+            }
+        }
+
+        burnin = (int)Math.round(nACGs*burninPercentage/100);
+    }
+
+    /**
+     * @param file file to test
+     * @return true if file begins with the binary ACG log magic bytes
+     * @throws IOException if file cannot be read
+     */
+    public static boolean isBinaryLog(File file) throws IOException {
+        byte[] magic = new byte[BinaryACGLogger.MAGIC.length];
+
+        try (InputStream is = new FileInputStream(file)) {
+            int n = 0;
+            while (n < magic.length) {
+                int count = is.read(magic, n, magic.length - n);
+                if (count < 0)
+                    return false;
+                n += count;
+            }
+        }
+
+        return Arrays.equals(magic, BinaryACGLogger.MAGIC);
+    }
+
+    /**
+     * Input stream counting the bytes read from the underlying stream.
+     */
+    private static class PositionedInputStream extends FilterInputStream {
+        long position = 0;
+
+        PositionedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                position += 1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Stream of log records, which also reports the current position in
+     * the log file.
+     */
+    private static class RecordInputStream extends DataInputStream {
+        private final PositionedInputStream fileStream;
+        private final boolean compressed;
+
+        RecordInputStream(InputStream in, PositionedInputStream fileStream, boolean compressed) {
+            super(in);
+            this.fileStream = fileStream;
+            this.compressed = compressed;
+        }
+
+        /**
+         * @return position in the log file of the next record, meaningful
+         * only for uncompressed logs
+         */
+        long getFilePosition() {
+            return fileStream.position;
+        }
+
+        boolean isCompressed() {
+            return compressed;
+        }
+    }
+
+    /**
+     * Open log file and read header.
+     *
+     * @return stream positioned at the first record
+     * @throws IOException if file cannot be read or is not a binary ACG log
+     */
+    private RecordInputStream open() throws IOException {
+        PositionedInputStream fileStream = new PositionedInputStream(
+                new BufferedInputStream(new FileInputStream(logFile), 1 << 16));
+        InputStream is = fileStream;
+
+        try {
+            byte[] magic = new byte[BinaryACGLogger.MAGIC.length];
+            new DataInputStream(is).readFully(magic);
+            if (!Arrays.equals(magic, BinaryACGLogger.MAGIC))
+                throw new IOException(logFile + " is not a binary ACG log.");
+
+            int version = is.read();
+            if (version != BinaryACGLogger.VERSION)
+                throw new IOException("Unsupported binary ACG log version " + version + ".");
+
+            int flags = is.read();
+            compressed = (flags & BinaryACGLogger.FLAG_GZIP) != 0;
+            if (compressed)
+                is = new BufferedInputStream(new GZIPInputStream(is, 1 << 16), 1 << 16);
+
+            RecordInputStream in = new RecordInputStream(is, fileStream, compressed);
+
+            taxaTranslationOffset = in.readInt();
+
+            byte[] preambleBytes = new byte[in.readInt()];
+            in.readFully(preambleBytes);
+
+            int locusCount = in.readInt();
+            List<String> locusIDs = new ArrayList<>();
+            List<Integer> siteCounts = new ArrayList<>();
+            List<Boolean> conversionsAllowed = new ArrayList<>();
+            for (int i=0; i<locusCount; i++) {
+                locusIDs.add(in.readUTF());
+                siteCounts.add(in.readInt());
+                conversionsAllowed.add(in.readBoolean());
+            }
+
+            if (loci == null) {
+                StringBuilder sb = new StringBuilder();
+                for (String line : new String(preambleBytes, StandardCharsets.UTF_8).split("\n", -1))
+                    sb.append(line.trim()).append("\n");
+                preamble = sb.toString().trim() + "\n";
+
+                loci = new ArrayList<>();
+                for (int i=0; i<locusCount; i++) {
+                    Locus locus = new Locus(locusIDs.get(i), siteCounts.get(i));
+                    locus.conversionsAllowedInput.setValue(conversionsAllowed.get(i), locus);
+                    loci.add(locus);
+                }
+            }
+
+            return in;
+
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the complete records of the log to another stream, as done
+     * when a log is resumed.
+     *
+     * @param out destination of records
+     * @return sample number of the last record, or -1 if there are none
+     * @throws IOException if the log cannot be read or out written
+     */
+    long copyRecords(DataOutput out) throws IOException {
+        ACGSnapshot snapshot = new ACGSnapshot();
+
+        try (DataInputStream in = open()) {
+            for (int i=0; i<nACGs; i++) {
+                long sampleNr = snapshot.read(in, loci, taxaTranslationOffset);
+                snapshot.write(out, sampleNr, snapshot.readIncludedTopology());
+            }
+        }
+
+        return lastSampleNr;
+    }
+
+    /**
+     * @return true if the records of the log are gzip compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return loci read from the header
+     */
+    public List<Locus> getLoci() {
+        return loci;
+    }
+
+    @Override
+    public int getACGCount() {
+        return nACGs;
+    }
+
+    @Override
+    public int getBurnin() {
+        return burnin;
+    }
+
+    @Override
+    public int getCorrectedACGCount() {
+        return nACGs - burnin;
+    }
+
+    @Override
+    public String getPreamble() {
+        return preamble;
+    }
+
+    /**
+     * Retrieve an iterator over the ACGs following burn-in.  As with
+     * BacterACGLogReader, only ACGs present when the reader was
+     * constructed are visited and a single ConversionGraph object is
+     * reused for every ACG.
+     *
+     * @return ConversionGraph iterator, which is also Closeable
+     */
+    @Override
+    public Iterator<ConversionGraph> iterator() {
+        return new ProgressIterator(new RecordIterator(0, getCorrectedACGCount()));
+    }
+
+    /**
+     * Iterator displaying a progress bar as ACGs are read.
+     */
+    private class ProgressIterator implements Iterator<ConversionGraph>, Closeable {
+
+        final RecordIterator iterator;
+        int current = 0;
+
+        ProgressIterator(RecordIterator iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public ConversionGraph next() {
+            ConversionGraph acg = iterator.next();
+
+            BacterACGLogReader.printProgressBar(current, getCorrectedACGCount());
+            current += 1;
+
+            return acg;
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public Iterator<ConversionGraph> iterator(int from, int to) {
+        return new RecordIterator(from, to);
+    }
+
+    /**
+     * Iterator over a range of the records following burn-in.  The log
+     * file is opened only if the range is non-empty, and is closed once
+     * the last record has been read, if reading fails, or when close() is
+     * called by a consumer stopping early.
+     */
+    private class RecordIterator implements Iterator<ConversionGraph>, Closeable {
+
+        final int to;
+        int current;
+
+        ConversionGraph acg;
+        ACGSnapshot snapshot;
+        DataInputStream in;
+
+        RecordIterator(int from, int to) {
+            this.to = to;
+            current = from;
+
+            if (!hasNext())
+                return;
+
+            acg = createACG();
+            snapshot = new ACGSnapshot();
+            try {
+                in = openAtRecord(burnin + from, snapshot);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error reading binary ACG log.", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current < to;
+        }
+
+        @Override
+        public ConversionGraph next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            try {
+                snapshot.read(in, loci, taxaTranslationOffset);
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException("Error reading binary ACG log.", e);
+            }
+
+            current += 1;
+            if (!hasNext())
+                close();
+
+            acg.assignFromSnapshot(snapshot);
+
+            return acg;
+        }
+
+        @Override
+        public void close() {
+            if (in == null)
+                return;
+
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // Nothing further is read from the log
+            }
+            in = null;
+        }
+    }
+
+    /**
+     * Open the log at a given record.  Records omitting the topology refer
+     * to those preceding them, so reading begins at the last record which
+     * includes the topology (or, for compressed logs, at the first record)
+     * and continues up to the given record.
+     *
+     * @param record index of record, counting from the start of the log
+     * @param snapshot snapshot into which preceding records are read
+     * @return stream positioned at the given record
+     * @throws IOException if file cannot be read
+     */
+    private DataInputStream openAtRecord(int record, ACGSnapshot snapshot) throws IOException {
+        int start = 0;
+        DataInputStream in;
+
+        if (recordOffsets != null) {
+            start = topologyRecords[record];
+            FileInputStream fis = new FileInputStream(logFile);
+            fis.getChannel().position(recordOffsets[start]);
+            in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+        } else
+            in = open();
+
+        try {
+            for (int i=start; i<record; i++)
+                snapshot.read(in, loci, taxaTranslationOffset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        return in;
+    }
+
+    private ConversionGraph createACG() {
+        ConversionGraph acg = new ConversionGraph();
+        for (Locus locus : getLoci())
+            acg.lociInput.setValue(locus, acg);
+        try {
+            acg.initAndValidate();
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        return acg;
+    }
+}
@@ -0,0 +1,201 @@
+package bacter.util;
+
+import bacter.ACGSnapshot;
+import bacter.ConversionGraph;
+import bacter.Locus;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Logger writing ACGs in a compact binary format, readable by
+ * BinaryACGLogReader (and therefore by ACGAnnotator).
+ *
+ * The file begins with the magic bytes "BACTRACG", a format version byte
+ * and a flags byte indicating whether the remainder of the file is gzip
+ * compressed.  This is followed by the taxon label offset, the Nexus
+ * preamble of the equivalent text log (taxa, loci and translation
+ * blocks) and the list of loci with their lengths and whether they allow
+ * conversions, and then by one record per logged sample as written by
+ * ACGSnapshot.write().  Records omit the clonal frame topology whenever it
+ * is unchanged from the previous sample.  The ACG is given by the acg
+ * input, so the log input of Logger is not used.
+ *
+ * When resuming, the complete records of the existing log are copied to
+ * a fresh file which replaces it, discarding any truncated final record,
+ * and further records are appended to this as a new gzip member (or
+ * directly, for uncompressed logs).
+ */
+@Description("Logs ACGs in a compact binary format.")
+public class BinaryACGLogger extends Logger {
+
+    public static final byte[] MAGIC = "BACTRACG".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    public static final int FLAG_GZIP = 1;
+
+    public Input<ConversionGraph> acgInput = new Input<>(
+            "acg", "Conversion graph to log.", Validate.REQUIRED);
+
+    public Input<Boolean> compressInput = new Input<>("compress",
+            "Compress log using gzip. (Default true.)", true);
+
+    private ConversionGraph acg;
+    private int every;
+
+    private DataOutputStream out;
+    private ACGSnapshot snapshot, prevSnapshot;
+    private boolean isFirst;
+
+    /**
+     * Number of the last sample in a resumed log, or -1 if the log was
+     * not resumed.
+     */
+    private long sampleNrOffset = -1;
+
+    public BinaryACGLogger() {
+        loggersInput.setRule(Validate.OPTIONAL);
+    }
+
+    /**
+     * Logger.initAndValidate() is deliberately not called, as it requires
+     * the log input to be non-empty.
+     */
+    @Override
+    public void initAndValidate() {
+        acg = acgInput.get();
+        every = everyInput.get();
+
+        if (fileNameInput.get() == null || fileNameInput.get().isEmpty())
+            throw new IllegalArgumentException("BinaryACGLogger requires a file name.");
+    }
+
+    @Override
+    public int getEvery() {
+        return every;
+    }
+
+    @Override
+    public void init() throws IOException {
+        File logFile = new File(fileNameInput.get());
+        if (FILE_MODE == LogFileMode.resume && logFile.exists())
+            out = resumeLog(logFile);
+        else
+            out = openLog(logFile.getPath(), acg, compressInput.get());
+
+        snapshot = new ACGSnapshot();
+        prevSnapshot = new ACGSnapshot();
+        isFirst = true;
+    }
+
+    /**
+     * Create a binary ACG log and write its header, after which records
+     * produced by ACGSnapshot.write() may be appended.
+     *
+     * @param fileName name of log file
+     * @param acg graph supplying the taxa and loci of the logged ACGs
+     * @param compress if true, compress records using gzip
+     * @return stream to which records are to be written
+     * @throws IOException if the file cannot be written
+     */
+    public static DataOutputStream openLog(String fileName, ConversionGraph acg,
+                                           boolean compress) throws IOException {
+        OutputStream os = new FileOutputStream(fileName);
+        os.write(MAGIC);
+        os.write(VERSION);
+        os.write(compress ? FLAG_GZIP : 0);
+        if (compress)
+            os = new GZIPOutputStream(os, 1 << 16);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(baos, true, "UTF-8");
+        acg.init(ps);
+        ps.println();
+        byte[] preamble = baos.toByteArray();
+
+        out.writeInt(acg.getTaxaTranslationOffset());
+        out.writeInt(preamble.length);
+        out.write(preamble);
+
+        out.writeInt(acg.lociInput.get().size());
+        for (Locus locus : acg.lociInput.get()) {
+            out.writeUTF(locus.getID());
+            out.writeInt(locus.getSiteCount());
+            out.writeBoolean(locus.conversionsAllowed());
+        }
+
+        return out;
+    }
+
+    /**
+     * Prepare an existing log to be appended to.  Its complete records
+     * are copied to a new log which replaces it, after which the new log
+     * is reopened for appending.  The compression of the existing log is
+     * retained.
+     *
+     * @param logFile existing log file
+     * @return stream to which further records are to be written
+     * @throws IOException if the log cannot be read or written
+     */
+    private DataOutputStream resumeLog(File logFile) throws IOException {
+        BinaryACGLogReader reader = new BinaryACGLogReader(logFile, 0);
+        boolean compress = reader.isCompressed();
+
+        File tmpFile = new File(logFile.getPath() + ".tmp");
+        try (DataOutputStream tmpOut = openLog(tmpFile.getPath(), acg, compress)) {
+            sampleNrOffset = reader.copyRecords(tmpOut);
+        }
+        Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // GZIPInputStream reads concatenated gzip members as a single stream.
+        OutputStream os = new FileOutputStream(logFile, true);
+        if (compress)
+            os = new GZIPOutputStream(os, 1 << 16);
+
+        return new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+    }
+
+    @Override
+    public void log(long sampleNr) {
+        if (sampleNr < 0 || sampleNr % every > 0)
+            return;
+
+        // As in Logger.log(), samples of resumed runs follow on from
+        // the last sample in the log.
+        if (sampleNrOffset >= 0) {
+            if (sampleNr == 0)
+                return;
+            sampleNr += sampleNrOffset;
+        }
+
+        snapshot.capture(acg);
+
+        try {
+            snapshot.write(out, sampleNr, isFirst || !snapshot.hasSameTopology(prevSnapshot));
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing binary ACG log.", e);
+        }
+
+        ACGSnapshot tmp = prevSnapshot;
+        prevSnapshot = snapshot;
+        snapshot = tmp;
+        isFirst = false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error closing binary ACG log.", e);
+        }
+    }
+}
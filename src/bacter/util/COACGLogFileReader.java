@@ -27,63 +27,101 @@ import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
 
 /**
  * Reads log file output of ClonalOrigin.
  *
+ * The log is scanned once on construction to record the byte offsets of
+ * each complete Iteration element.  Iterators use this index to seek
+ * directly past the burn-in, and parse each Iteration element on its
+ * own into a reused ConversionGraph.  As with BacterACGLogReader,
+ * iterations may optionally be parsed in parallel.
+ *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class COACGLogFileReader implements ACGLogReader {
-    File logFile;
 
-    XMLStreamReader xmlStreamReader;
+    static final int BUFFER_SIZE = 1 << 20;
+    static final byte[] ITERATION_TAG = "iteration".getBytes(StandardCharsets.US_ASCII);
+
+    File logFile;
 
     List<Locus> loci = new ArrayList<>();
 
     int nACGs, burnin;
 
+    /**
+     * Byte offsets of the start of the opening tag and of the end of the
+     * closing tag of each Iteration element.
+     */
+    long[] iterationStarts, iterationEnds;
+
+    int parserThreadCount = 1;
+
     public COACGLogFileReader(File logFile, double burninPercentage) throws IOException, XMLStreamException {
         this.logFile = logFile;
 
-        reset();
+        readHeader();
+        buildIndex();
+
+        burnin = (int)Math.round(nACGs*burninPercentage/100);
+    }
 
+    /**
+     * Read locus boundaries and names from the Blocks and Regions
+     * elements preceding the first iteration.
+     *
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void readHeader() throws IOException, XMLStreamException {
         List<Integer> locusSize = null;
         List<String> locusName = null;
 
         String text;
 
-        nACGs = 0;
-
-        while (xmlStreamReader.hasNext()) {
-            int eventType = xmlStreamReader.next();
-            if (eventType == XMLStreamConstants.START_ELEMENT) {
-                switch (xmlStreamReader.getLocalName().toLowerCase()) {
-                    case "iteration":
-                        nACGs += 1;
-                        break;
-
-                    case "blocks":
-                        xmlStreamReader.next();
-                        text = xmlStreamReader.getText().trim();
-                        locusSize = new ArrayList<>();
-                        for (String rangeStr : text.split(";")) {
-                            String[] splitRange = rangeStr.split(",");
-                            locusSize.add(Integer.valueOf(splitRange[1]) - Integer.valueOf(splitRange[0]));
-                        }
-                        break;
+        try (InputStream is = new BufferedInputStream(new FileInputStream(logFile))) {
+            XMLStreamReader xmlStreamReader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+
+            header:
+            while (xmlStreamReader.hasNext()) {
+                int eventType = xmlStreamReader.next();
+                if (eventType == XMLStreamConstants.START_ELEMENT) {
+                    switch (xmlStreamReader.getLocalName().toLowerCase()) {
+                        case "iteration":
+                            break header;
+
+                        case "blocks":
+                            xmlStreamReader.next();
+                            text = xmlStreamReader.getText().trim();
+                            locusSize = new ArrayList<>();
+                            for (String rangeStr : text.split(";")) {
+                                String[] splitRange = rangeStr.split(",");
+                                locusSize.add(Integer.valueOf(splitRange[1]) - Integer.valueOf(splitRange[0]));
+                            }
+                            break;
 
-                    case "regions":
-                        xmlStreamReader.next();
-                        locusName = Arrays.asList(xmlStreamReader.getText().trim().split(","));
-                        break;
+                        case "regions":
+                            xmlStreamReader.next();
+                            locusName = Arrays.asList(xmlStreamReader.getText().trim().split(","));
+                            break;
 
-                    default:
+                        default:
+                    }
                 }
             }
+
+            xmlStreamReader.close();
         }
 
         if (locusName == null || locusSize == null)
@@ -91,8 +129,108 @@ public class COACGLogFileReader implements ACGLogReader {
 
         for (int i=0; i<locusName.size(); i++)
             loci.add(new Locus(locusName.get(i), locusSize.get(i)));
+    }
 
-        burnin = (int)Math.round(nACGs*burninPercentage/100);
+    /**
+     * Scan the log file for Iteration tags, recording the offsets of each
+     * complete Iteration element.  Only the part of the file present when
+     * the scan begins is considered.
+     *
+     * @throws IOException
+     */
+    private void buildIndex() throws IOException {
+        nACGs = 0;
+        iterationStarts = new long[1024];
+        iterationEnds = new long[1024];
+
+        // State of the tag currently being matched: tagMatch is the number
+        // of characters of the tag name matched so far, or -1 if no
+        // Iteration tag is being matched.
+        int tagMatch = -1;
+        boolean closingTag = false, awaitingClose = false;
+        long tagStart = 0, currentStart = -1;
+
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] buf = buffer.array();
+
+            long offset = 0;
+            while (offset < fileSize) {
+                buffer.clear();
+                if (fileSize - offset < buffer.capacity())
+                    buffer.limit((int)(fileSize - offset));
+                int count = 0;
+                while (buffer.hasRemaining() && count >= 0)
+                    count = channel.read(buffer, offset + buffer.position());
+                count = buffer.position();
+                if (count == 0)
+                    break;
+
+                for (int j=0; j<count; j++) {
+                    byte b = buf[j];
+
+                    if (awaitingClose) {
+                        if (b == '>') {
+                            awaitingClose = false;
+                            if (currentStart >= 0) {
+                                addIteration(currentStart, offset + j + 1);
+                                currentStart = -1;
+                            }
+                        }
+                        continue;
+                    }
+
+                    if (b == '<') {
+                        tagMatch = 0;
+                        closingTag = false;
+                        tagStart = offset + j;
+                        continue;
+                    }
+
+                    if (tagMatch < 0)
+                        continue;
+
+                    if (tagMatch == 0 && b == '/' && !closingTag) {
+                        closingTag = true;
+                    } else if (tagMatch < ITERATION_TAG.length) {
+                        if (Character.toLowerCase((char)b) == ITERATION_TAG[tagMatch])
+                            tagMatch += 1;
+                        else
+                            tagMatch = -1;
+                    } else {
+                        if (b == '>' || b == '/' || (b & 0xff) <= ' ') {
+                            if (closingTag)
+                                awaitingClose = b != '>';
+                            else
+                                currentStart = tagStart;
+
+                            if (closingTag && b == '>' && currentStart >= 0) {
+                                addIteration(currentStart, offset + j + 1);
+                                currentStart = -1;
+                            }
+                        }
+                        tagMatch = -1;
+                    }
+                }
+
+                offset += count;
+            }
+        }
+
+        iterationStarts = Arrays.copyOf(iterationStarts, nACGs);
+        iterationEnds = Arrays.copyOf(iterationEnds, nACGs);
+    }
+
+    private void addIteration(long start, long end) {
+        if (nACGs == iterationStarts.length) {
+            iterationStarts = Arrays.copyOf(iterationStarts, 2*nACGs);
+            iterationEnds = Arrays.copyOf(iterationEnds, 2*nACGs);
+        }
+
+        iterationStarts[nACGs] = start;
+        iterationEnds[nACGs] = end;
+        nACGs += 1;
     }
 
     @Override
@@ -100,187 +238,401 @@ public class COACGLogFileReader implements ACGLogReader {
         return nACGs;
     }
 
+    @Override
+    public int getBurnin() {
+        return burnin;
+    }
+
     @Override
     public int getCorrectedACGCount() {
         return nACGs - burnin;
     }
 
-    private void reset() throws IOException {
-        try {
-            if (xmlStreamReader != null)
-                xmlStreamReader.close();
+    /**
+     * Set the number of threads used to parse iterations.  When greater
+     * than one, iterators read Iteration elements on a background thread
+     * and parse them in parallel, each parser using its own
+     * ConversionGraph.  ACGs are still delivered in log order.
+     *
+     * @param parserThreadCount number of parser threads (default 1)
+     */
+    public void setParserThreadCount(int parserThreadCount) {
+        if (parserThreadCount < 1)
+            throw new IllegalArgumentException("Number of parser threads must be at least 1.");
 
-            xmlStreamReader = XMLInputFactory.newInstance().createXMLStreamReader(
-                    new BufferedInputStream(new FileInputStream(logFile)));
-        } catch (XMLStreamException | FileNotFoundException e) {
-            throw new IOException(e.getMessage());
-        }
+        this.parserThreadCount = parserThreadCount;
     }
 
     /**
-     * Move through log file until the opening tag of the named element.
-     *
-     * @param elementName name of element to skip until
-     * @return true if element found, false otherwise
-     * @throws XMLStreamException
+     * Reads indexed Iteration elements from the log file through a large
+     * buffer.  Iterations are expected to be requested in increasing
+     * order, in which case the file is read sequentially.
      */
-    public boolean skipUntil(String elementName) throws XMLStreamException {
-        while (xmlStreamReader.hasNext()) {
-            if (xmlStreamReader.next() == XMLStreamConstants.START_ELEMENT &&
-                    xmlStreamReader.getLocalName().toLowerCase().equals(elementName))
-                return true;
+    class IterationReader implements Closeable {
+        FileChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long bufferStart = 0;
+        int bufferLength = 0;
+
+        IterationReader() throws IOException {
+            channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        }
+
+        /**
+         * Copy an Iteration element into the given parser's buffer.
+         *
+         * @param i index of iteration in log, including burn-in
+         * @param parser destination
+         * @throws IOException
+         */
+        void readIteration(int i, IterationParser parser) throws IOException {
+            long start = iterationStarts[i], end = iterationEnds[i];
+
+            if (start < bufferStart || end > bufferStart + bufferLength)
+                fillBuffer(start, end);
+
+            parser.setBytes(buffer.array(), (int)(start - bufferStart), (int)(end - start));
+        }
+
+        private void fillBuffer(long start, long end) throws IOException {
+            if (end - start > buffer.capacity())
+                buffer = ByteBuffer.allocate((int)(end - start));
+
+            buffer.clear();
+            int count = 0;
+            while (buffer.hasRemaining() && count >= 0)
+                count = channel.read(buffer, start + buffer.position());
+
+            bufferStart = start;
+            bufferLength = buffer.position();
+
+            if (end > bufferStart + bufferLength)
+                throw new EOFException("Log file " + logFile + " was truncated.");
         }
 
-        return false;
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 
     /**
-     * Skip burnin portion of log file
-     *
-     * @throws XMLStreamException
+     * Parses single Iteration elements into a ConversionGraph.  The
+     * graph, the byte buffer holding the element and the arrays holding
+     * recombination edge properties are all reused between iterations.
      */
-    public void skipBurnin() throws XMLStreamException {
-        for (int i=0; i<burnin; i++)
-            skipUntil("iteration");
-    }
+    class IterationParser {
+        final ConversionGraph acg;
+        final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+        byte[] bytes = new byte[0];
+        int length;
+
+        int nEdges;
+        int[] rStarts = new int[16], rEnds = new int[16];
+        int[] rEFroms = new int[16], rETos = new int[16];
+        double[] rAFroms = new double[16], rATos = new double[16];
+
+        IterationParser() {
+            acg = new ConversionGraph();
+            for (Locus locus : loci)
+                acg.lociInput.setValue(locus, acg);
+            try {
+                acg.initAndValidate();
+            } catch (Exception e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
 
-    @Override
-    public Iterator<ConversionGraph> iterator() {
+        void setBytes(byte[] src, int offset, int length) {
+            if (bytes.length < length)
+                bytes = new byte[Math.max(length, 2*bytes.length)];
 
-        try {
-            reset();
-            skipBurnin();
-        } catch (XMLStreamException | IOException e) {
-            throw new IllegalStateException(e.getMessage());
+            System.arraycopy(src, offset, bytes, 0, length);
+            this.length = length;
         }
 
-        return new Iterator<ConversionGraph>() {
+        /**
+         * Parse the Iteration element currently held in the buffer.
+         *
+         * @return graph described by the element
+         */
+        ConversionGraph parse() {
+            String newick = null;
+            boolean inRecEdge = false;
+            nEdges = 0;
+
+            try {
+                XMLStreamReader xmlStreamReader = xmlInputFactory.createXMLStreamReader(
+                        new ByteArrayInputStream(bytes, 0, length), "UTF-8");
+
+                while (xmlStreamReader.hasNext()) {
+                    int type = xmlStreamReader.next();
+
+                    if (type == XMLStreamConstants.END_ELEMENT
+                            && xmlStreamReader.getLocalName().toLowerCase().equals("recedge")) {
+                        inRecEdge = false;
+                        nEdges += 1;
+                        continue;
+                    }
 
-            int current = 0;
+                    if (type != XMLStreamConstants.START_ELEMENT)
+                        continue;
 
-            @Override
-            public boolean hasNext() {
-                return current < nACGs;
-            }
+                    String name = xmlStreamReader.getLocalName().toLowerCase();
 
-            @Override
-            public ConversionGraph next() {
+                    if (name.equals("tree")) {
+                        newick = xmlStreamReader.getElementText().trim();
+                        continue;
+                    }
 
-                current += 1;
+                    if (name.equals("recedge")) {
+                        inRecEdge = true;
+                        ensureEdgeCapacity();
+                        continue;
+                    }
 
-                ConversionGraph acg = new ConversionGraph();
-                for (Locus locus : loci)
-                    acg.lociInput.setValue(locus, acg);
-                try {
-                    acg.initAndValidate();
-                } catch (Exception e) {
-                    throw new IllegalStateException(e.getMessage());
-                }
+                    if (!inRecEdge)
+                        continue;
 
-                String newick = null;
-                List<Integer> rStarts = new ArrayList<>();
-                List<Integer> rEnds = new ArrayList<>();
-                List<Integer> rEFroms = new ArrayList<>();
-                List<Integer> rETos = new ArrayList<>();
-                List<Double> rAFroms = new ArrayList<>();
-                List<Double> rATos = new ArrayList<>();
+                    switch (name) {
 
-                try {
-                    skipUntil("iteration");
+                        case "start":
+                            rStarts[nEdges] = Integer.parseInt(xmlStreamReader.getElementText().trim());
+                            break;
 
-                    while (xmlStreamReader.hasNext()) {
-                        int type = xmlStreamReader.next();
+                        case "end":
+                            rEnds[nEdges] = Integer.parseInt(xmlStreamReader.getElementText().trim()) - 1;
+                            break;
 
-                        if (type == XMLStreamConstants.END_ELEMENT &&
-                                xmlStreamReader.getLocalName().toLowerCase().equals("iteration"))
+                        case "efrom":
+                            rEFroms[nEdges] = Integer.parseInt(xmlStreamReader.getElementText().trim());
                             break;
 
-                        if (type != XMLStreamConstants.START_ELEMENT)
-                            continue;
+                        case "eto":
+                            rETos[nEdges] = Integer.parseInt(xmlStreamReader.getElementText().trim());
+                            break;
 
+                        case "afrom":
+                            rAFroms[nEdges] = Double.parseDouble(xmlStreamReader.getElementText().trim());
+                            break;
 
-                        switch (xmlStreamReader.getLocalName().toLowerCase()) {
-                            case "tree":
-                                xmlStreamReader.next();
-                                newick = xmlStreamReader.getText().trim();
-                                break;
+                        case "ato":
+                            rATos[nEdges] = Double.parseDouble(xmlStreamReader.getElementText().trim());
+                            break;
 
-                            case "recedge":
+                        default:
+                    }
+                }
 
-                                while ((type = xmlStreamReader.next()) != XMLStreamConstants.END_ELEMENT ||
-                                        !xmlStreamReader.getLocalName().toLowerCase().equals("recedge")) {
-                                    if (type != XMLStreamConstants.START_ELEMENT)
-                                        continue;
+                xmlStreamReader.close();
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
 
-                                    switch (xmlStreamReader.getLocalName().toLowerCase()) {
-                                        case "start":
-                                            xmlStreamReader.next();
-                                            rStarts.add(Integer.valueOf(xmlStreamReader.getText().trim()));
-                                            break;
+            if (newick == null)
+                throw new IllegalStateException("Iteration element lacks a <Tree> element.");
+
+            acg.fromExtendedNewick(newick, true, 0);
+            for (int i=0; i<nEdges; i++) {
+                Node fromNode = acg.getNode(rEFroms[i]);
+                Node toNode = acg.getNode(rETos[i]);
+
+                Conversion conv = new Conversion(
+                        toNode,
+                        toNode.getHeight() + rATos[i],
+                        fromNode,
+                        fromNode.getHeight() + rAFroms[i],
+                        rStarts[i],
+                        rEnds[i],
+                        acg,
+                        loci.get(0));
+                acg.addConversion(conv);
+            }
 
-                                        case "end":
-                                            xmlStreamReader.next();
-                                            rEnds.add(Integer.valueOf(xmlStreamReader.getText().trim()) - 1);
-                                            break;
+            return acg;
+        }
 
-                                        case "efrom":
-                                            xmlStreamReader.next();
-                                            rEFroms.add(Integer.valueOf(xmlStreamReader.getText().trim()));
-                                            break;
+        private void ensureEdgeCapacity() {
+            if (nEdges < rStarts.length)
+                return;
+
+            int size = 2*rStarts.length;
+            rStarts = Arrays.copyOf(rStarts, size);
+            rEnds = Arrays.copyOf(rEnds, size);
+            rEFroms = Arrays.copyOf(rEFroms, size);
+            rETos = Arrays.copyOf(rETos, size);
+            rAFroms = Arrays.copyOf(rAFroms, size);
+            rATos = Arrays.copyOf(rATos, size);
+        }
+    }
 
-                                        case "eto":
-                                            xmlStreamReader.next();
-                                            rETos.add(Integer.valueOf(xmlStreamReader.getText().trim()));
-                                            break;
+    /**
+     * Retrieve an iterator over the ACGs following burn-in.  A single
+     * ConversionGraph object is reused (one per parser thread when
+     * parsing in parallel), so each ACG returned is only valid until the
+     * next call to next().
+     *
+     * @return ConversionGraph iterator
+     */
+    @Override
+    public Iterator<ConversionGraph> iterator() {
+        if (parserThreadCount > 1)
+            return new ParallelACGIterator(parserThreadCount);
 
-                                        case "afrom":
-                                            xmlStreamReader.next();
-                                            rAFroms.add(Double.valueOf(xmlStreamReader.getText().trim()));
-                                            break;
+        Iterator<ConversionGraph> iterator = iterator(0, getCorrectedACGCount());
 
-                                        case "ato":
-                                            xmlStreamReader.next();
-                                            rATos.add(Double.valueOf(xmlStreamReader.getText().trim()));
-                                            break;
+        return new Iterator<ConversionGraph>() {
 
-                                        default:
-                                    }
-                                }
+            int current = 0;
 
-                                break;
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
 
-                            default:
-                        }
+            @Override
+            public ConversionGraph next() {
+                ConversionGraph acg = iterator.next();
 
-                    }
-                } catch (XMLStreamException e) {
-                    throw new IllegalStateException(e.getMessage());
-                }
+                BacterACGLogReader.printProgressBar(current, getCorrectedACGCount());
+                current += 1;
 
-                acg.fromExtendedNewick(newick, true, 0);
-                for (int i=0; i<rStarts.size(); i++) {
-                    Node fromNode = acg.getNode(rEFroms.get(i));
-                    Node toNode = acg.getNode(rETos.get(i));
-
-                    Conversion conv = new Conversion(
-                            toNode,
-                            toNode.getHeight() + rATos.get(i),
-                            fromNode,
-                            fromNode.getHeight() + rAFroms.get(i),
-                            rStarts.get(i),
-                            rEnds.get(i),
-                            acg,
-                            loci.get(0));
-                    acg.addConversion(conv);
+                return acg;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<ConversionGraph> iterator(int from, int to) {
+        IterationReader iterationReader;
+        try {
+            iterationReader = new IterationReader();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+        IterationParser parser = new IterationParser();
+
+        return new Iterator<ConversionGraph>() {
+
+            int current = from;
+
+            @Override
+            public boolean hasNext() {
+                return current < to;
+            }
+
+            @Override
+            public ConversionGraph next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                try {
+                    iterationReader.readIteration(burnin + current, parser);
+                    if (current == to - 1)
+                        iterationReader.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage());
                 }
 
                 current += 1;
 
-                return acg;
+                return parser.parse();
             }
         };
     }
 
+    /**
+     * Iterator which parses iterations in parallel.  A reader thread
+     * copies Iteration elements into free parsers and submits them to a
+     * pool of parser threads, queueing the resulting futures in log
+     * order.  The parser holding the most recently returned graph is only
+     * released on the following call to next().
+     */
+    private class ParallelACGIterator implements Iterator<ConversionGraph> {
+
+        final ExecutorService parserPool;
+        final BlockingQueue<IterationParser> freeParsers;
+        final BlockingQueue<Future<IterationParser>> parsedIterations;
+
+        IterationParser currentParser = null;
+        int current = 0;
+
+        ParallelACGIterator(int nThreads) {
+            int nParsers = 2*nThreads + 1;
+            freeParsers = new ArrayBlockingQueue<>(nParsers);
+            parsedIterations = new ArrayBlockingQueue<>(nParsers + 1);
+            for (int i=0; i<nParsers; i++)
+                freeParsers.add(new IterationParser());
+
+            parserPool = Executors.newFixedThreadPool(nThreads, r -> {
+                Thread thread = new Thread(r, "COACGLogFileReader parser");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            Thread readerThread = new Thread(this::readIterations, "COACGLogFileReader reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+
+        /**
+         * Body of reader thread.
+         */
+        private void readIterations() {
+            try (IterationReader iterationReader = new IterationReader()) {
+                for (int i=burnin; i<nACGs; i++) {
+                    IterationParser parser = freeParsers.take();
+                    iterationReader.readIteration(i, parser);
+                    parsedIterations.put(parserPool.submit(() -> {
+                        parser.parse();
+                        return parser;
+                    }));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                CompletableFuture<IterationParser> failure = new CompletableFuture<>();
+                failure.completeExceptionally(e);
+                parsedIterations.offer(failure);
+            } finally {
+                parserPool.shutdown();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current<getCorrectedACGCount();
+        }
+
+        @Override
+        public ConversionGraph next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            if (currentParser != null)
+                freeParsers.add(currentParser);
+
+            try {
+                currentParser = parsedIterations.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading ACGs.", e);
+            } catch (ExecutionException e) {
+                parserPool.shutdownNow();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
+
+            BacterACGLogReader.printProgressBar(current, getCorrectedACGCount());
+            current += 1;
+
+            return currentParser.acg;
+        }
+    }
+
     public static void main(String[] args) throws IOException, XMLStreamException {
 
         COACGLogFileReader reader = new COACGLogFileReader(
@@ -0,0 +1,289 @@
+package bacter.util;
+
+import bacter.ACGSnapshot;
+import bacter.ConversionGraph;
+import bacter.Locus;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Wrapper around another ACGLogReader which retains the ACGs visited
+ * during the first iteration, so that later iterations need not read and
+ * parse the log again.  ACGs are held in memory as ACGSnapshots until the
+ * given memory budget is exhausted, after which the remainder are spilled
+ * to a temporary file in the binary ACG log record format.  Spilled
+ * records always include the clonal frame topology and their offsets are
+ * retained, so that any range of cached ACGs can be visited directly.
+ *
+ * Graphs reconstituted from the cache carry the same clonal frame,
+ * heights and conversions as those produced by the underlying reader.
+ * Metadata is only retained for ACGs cached in memory.
+ */
+public class CachedACGLogReader implements ACGLogReader {
+
+    ACGLogReader logReader;
+    long memoryBudget;
+
+    List<ACGSnapshot> memoryCache = new ArrayList<>();
+    long memoryUsed;
+
+    File spillFile;
+    int spillCount;
+    long[] spillOffsets = new long[0];
+
+    List<Locus> loci;
+    int taxaTranslationOffset;
+
+    boolean cacheComplete = false;
+
+    /**
+     * @param logReader reader to wrap
+     * @param memoryBudget approximate number of bytes of heap to devote
+     *                     to cached ACGs before spilling to disk
+     */
+    public CachedACGLogReader(ACGLogReader logReader, long memoryBudget) {
+        this.logReader = logReader;
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public int getACGCount() {
+        return logReader.getACGCount();
+    }
+
+    @Override
+    public int getCorrectedACGCount() {
+        return logReader.getCorrectedACGCount();
+    }
+
+    @Override
+    public int getBurnin() {
+        return logReader.getBurnin();
+    }
+
+    @Override
+    public String getPreamble() {
+        return logReader.getPreamble();
+    }
+
+    @Override
+    public String getPostamble() {
+        return logReader.getPostamble();
+    }
+
+    /**
+     * @return number of ACGs cached in memory
+     */
+    public int getMemoryCacheSize() {
+        return memoryCache.size();
+    }
+
+    /**
+     * @return number of ACGs cached on disk
+     */
+    public int getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * Retrieve an iterator over the ACGs following burn-in.  The first
+     * complete iteration is delegated to the underlying reader and fills
+     * the cache; subsequent iterations replay the cache.  As with the
+     * other readers, a single ConversionGraph object is reused.
+     *
+     * @return ConversionGraph iterator
+     */
+    @Override
+    public Iterator<ConversionGraph> iterator() {
+        if (cacheComplete)
+            return new CacheIterator();
+
+        clearCache();
+        return new FillingIterator(logReader.iterator());
+    }
+
+    private void clearCache() {
+        memoryCache.clear();
+        memoryUsed = 0;
+        spillCount = 0;
+
+        if (spillFile != null) {
+            if (!spillFile.delete())
+                spillFile.deleteOnExit();
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Iterator over underlying reader which records each ACG it returns.
+     */
+    private class FillingIterator implements Iterator<ConversionGraph> {
+
+        Iterator<ConversionGraph> iterator;
+
+        CountingOutputStream spillCounter;
+        DataOutputStream spillOut;
+        ACGSnapshot spillSnapshot = new ACGSnapshot();
+
+        FillingIterator(Iterator<ConversionGraph> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public ConversionGraph next() {
+            ConversionGraph acg = iterator.next();
+
+            if (loci == null) {
+                loci = acg.lociInput.get();
+                taxaTranslationOffset = acg.getTaxaTranslationOffset();
+            }
+
+            try {
+                if (spillOut == null) {
+                    ACGSnapshot snapshot = new ACGSnapshot();
+                    snapshot.capture(acg);
+
+                    if (memoryUsed + snapshot.getMemoryEstimate() <= memoryBudget) {
+                        memoryCache.add(snapshot);
+                        memoryUsed += snapshot.getMemoryEstimate();
+                    } else {
+                        spillFile = File.createTempFile("acgcache", ".bin");
+                        spillFile.deleteOnExit();
+                        spillCounter = new CountingOutputStream(new BufferedOutputStream(
+                                new FileOutputStream(spillFile), 1 << 16));
+                        spillOut = new DataOutputStream(spillCounter);
+                    }
+                }
+
+                if (spillOut != null) {
+                    if (spillCount == spillOffsets.length)
+                        spillOffsets = Arrays.copyOf(spillOffsets, Math.max(16, 2*spillCount));
+                    spillOffsets[spillCount] = spillCounter.count;
+
+                    spillSnapshot.capture(acg);
+                    spillSnapshot.write(spillOut, spillCount, true);
+                    spillCount += 1;
+                }
+
+                if (!iterator.hasNext()) {
+                    if (spillOut != null)
+                        spillOut.close();
+                    cacheComplete = true;
+                }
+
+            } catch (IOException e) {
+                throw new IllegalStateException("Error writing ACG cache: " + e.getMessage());
+            }
+
+            return acg;
+        }
+    }
+
+    /**
+     * Visit a range of the cached ACGs, or of the ACGs of the underlying
+     * reader if the cache has not yet been filled.
+     */
+    @Override
+    public Iterator<ConversionGraph> iterator(int from, int to) {
+        if (cacheComplete)
+            return new CacheIterator(from, to, false);
+
+        return logReader.iterator(from, to);
+    }
+
+    /**
+     * Iterator replaying cached ACGs.
+     */
+    private class CacheIterator implements Iterator<ConversionGraph> {
+
+        ConversionGraph acg = new ConversionGraph();
+
+        int current, from, to;
+        boolean showProgress;
+
+        DataInputStream spillIn;
+        ACGSnapshot spillSnapshot = new ACGSnapshot();
+
+        CacheIterator() {
+            this(0, memoryCache.size() + spillCount, true);
+        }
+
+        CacheIterator(int from, int to, boolean showProgress) {
+            this.from = from;
+            this.to = to;
+            this.current = from;
+            this.showProgress = showProgress;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current < to;
+        }
+
+        @Override
+        public ConversionGraph next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            if (current < memoryCache.size()) {
+                acg.assignFromSnapshot(memoryCache.get(current));
+            } else {
+                try {
+                    if (spillIn == null) {
+                        FileInputStream fis = new FileInputStream(spillFile);
+                        fis.getChannel().position(spillOffsets[current - memoryCache.size()]);
+                        spillIn = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+                    }
+
+                    spillSnapshot.read(spillIn, loci, taxaTranslationOffset);
+
+                    if (current == to - 1)
+                        spillIn.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Error reading ACG cache: " + e.getMessage());
+                }
+
+                acg.assignFromSnapshot(spillSnapshot);
+            }
+
+            if (showProgress)
+                BacterACGLogReader.printProgressBar(current - from, to - from);
+            current += 1;
+
+            return acg;
+        }
+    }
+
+    /**
+     * Output stream which counts the bytes written to it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
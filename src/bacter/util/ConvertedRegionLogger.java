@@ -61,11 +61,13 @@ public class ConvertedRegionLogger extends BEASTObject implements Loggable {
                 return;
             }
 
-            for (int r = 0; r < acgInput.get().getConvCount(locus); r++) {
-                if (r > 0)
+            boolean isFirst = true;
+            for (Conversion recomb : acgInput.get().getConversions(locus)) {
+                if (isFirst)
+                    isFirst = false;
+                else
                     out.print(",");
 
-                Conversion recomb = acgInput.get().getConversions(locus).get(r);
                 out.print(recomb.getStartSite() + ":" + recomb.getEndSite());
             }
             out.print("\t");
@@ -0,0 +1,693 @@
+package bacter.util.parsers;
+
+import bacter.Conversion;
+import bacter.Locus;
+import beast.base.evolution.tree.Node;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written reader for ACGs in the extended Newick format described
+ * by ExtendedNewick.g4.  Produces the same clonal frame and conversions
+ * as the ANTLR-generated parser and visitor previously used by
+ * ConversionGraph, but reads the string in a single pass over a character
+ * buffer, recording the network in reusable primitive arrays rather than
+ * building a parse tree.  The clonal frame is then assembled from these
+ * arrays directly.
+ *
+ * Instances are not thread-safe, but may be reused for any number of
+ * strings.  The clonal frame nodes of a previously read ACG may also be
+ * supplied for reuse, in which case no nodes are allocated unless the
+ * new clonal frame is larger.
+ */
+public class ExtendedNewickReader {
+
+    private char[] stringBuf = new char[0];
+    private char[] buf;
+    private int pos, end;
+
+    /*
+     * Network nodes (including hybrid nodes), numbered in order of
+     * appearance of their opening bracket or first character, i.e. in
+     * pre-order.
+     */
+    private int nodeCount;
+    private int[] parent = new int[0];
+    private int[] firstChild, lastChild, nextSibling, childCount;
+    private double[] length, height;
+    private String[] label, hybridID;
+    private Node[] cfNode;
+
+    /*
+     * Conversion metadata found on hybrid leaf nodes.
+     */
+    private boolean[] hasRegion;
+    private int[] regionStart, regionEnd;
+    private Locus[] locus;
+
+    private List<Locus> loci;
+    private Map<String, Conversion> convIDMap;
+
+    private Node[] reusableNodes;
+    private int nextReusableNode;
+
+    private int nodeNumberOffset, cfLeafCount;
+
+    public ExtendedNewickReader() { }
+
+    /**
+     * Read an ACG from an extended Newick string.
+     *
+     * @param string extended Newick representation of ACG
+     * @param loci loci to which conversions may refer
+     * @param numbered true if internal node labels provide node numbers
+     * @param nodeNumberOffset offset subtracted from labels to obtain node numbers
+     * @param convIDMap map to be populated with the conversions read, keyed
+     *                  by hybrid node ID
+     * @return root of clonal frame
+     */
+    public Node parse(String string, List<Locus> loci, boolean numbered,
+                      int nodeNumberOffset, Map<String, Conversion> convIDMap) {
+        return parse(string, loci, numbered, nodeNumberOffset, convIDMap, null);
+    }
+
+    /**
+     * Read an ACG from an extended Newick string, reusing existing
+     * clonal frame nodes.
+     *
+     * @param string extended Newick representation of ACG
+     * @param loci loci to which conversions may refer
+     * @param numbered true if internal node labels provide node numbers
+     * @param nodeNumberOffset offset subtracted from labels to obtain node numbers
+     * @param convIDMap map to be populated with the conversions read, keyed
+     *                  by hybrid node ID
+     * @param reusableNodes nodes to use for the clonal frame before any
+     *                      new nodes are allocated, or null
+     * @return root of clonal frame
+     */
+    public Node parse(String string, List<Locus> loci, boolean numbered,
+                      int nodeNumberOffset, Map<String, Conversion> convIDMap,
+                      Node[] reusableNodes) {
+        if (stringBuf.length < string.length())
+            stringBuf = new char[string.length()];
+        string.getChars(0, string.length(), stringBuf, 0);
+
+        return parse(stringBuf, string.length(), loci, numbered, nodeNumberOffset,
+                convIDMap, reusableNodes);
+    }
+
+    /**
+     * Read an ACG from a character buffer containing an extended Newick
+     * string.
+     *
+     * @param chars character buffer
+     * @param charCount number of characters to read from buffer
+     * @param loci loci to which conversions may refer
+     * @param numbered true if internal node labels provide node numbers
+     * @param nodeNumberOffset offset subtracted from labels to obtain node numbers
+     * @param convIDMap map to be populated with the conversions read, keyed
+     *                  by hybrid node ID
+     * @param reusableNodes nodes to use for the clonal frame before any
+     *                      new nodes are allocated, or null
+     * @return root of clonal frame
+     */
+    public Node parse(char[] chars, int charCount, List<Locus> loci, boolean numbered,
+                      int nodeNumberOffset, Map<String, Conversion> convIDMap,
+                      Node[] reusableNodes) {
+        this.buf = chars;
+        this.pos = 0;
+        this.end = charCount;
+        this.loci = loci;
+        this.convIDMap = convIDMap;
+        this.nodeNumberOffset = nodeNumberOffset;
+        this.reusableNodes = reusableNodes;
+        this.nextReusableNode = 0;
+
+        nodeCount = 0;
+        cfLeafCount = 0;
+
+        skipWhitespace();
+        parseNode(-1);
+        skipWhitespace();
+        if (pos < end && buf[pos] == ';')
+            pos += 1;
+
+        computeHeights();
+        collectConversions();
+        attachConversions();
+
+        Node root = stripHybridNodes(0);
+        root.setParent(null);
+
+        if (!numbered)
+            numberInternalNodes(root, cfLeafCount);
+
+        // Release references to objects no longer needed.
+        Arrays.fill(label, 0, nodeCount, null);
+        Arrays.fill(hybridID, 0, nodeCount, null);
+        Arrays.fill(locus, 0, nodeCount, null);
+        Arrays.fill(cfNode, 0, nodeCount, null);
+        this.buf = null;
+        this.loci = null;
+        this.convIDMap = null;
+        this.reusableNodes = null;
+
+        return root;
+    }
+
+    /*
+     * Scanning
+     */
+
+    private int parseNode(int parentIdx) {
+        int idx = newNode(parentIdx);
+
+        if (pos < end && buf[pos] == '(') {
+            pos += 1;
+
+            while (true) {
+                skipWhitespace();
+                int child = parseNode(idx);
+
+                if (lastChild[idx] < 0)
+                    firstChild[idx] = child;
+                else
+                    nextSibling[lastChild[idx]] = child;
+                lastChild[idx] = child;
+                childCount[idx] += 1;
+
+                skipWhitespace();
+                if (pos < end && buf[pos] == ',') {
+                    pos += 1;
+                    continue;
+                }
+
+                expect(')');
+                break;
+            }
+
+            skipWhitespace();
+        }
+
+        parsePost(idx);
+
+        return idx;
+    }
+
+    private void parsePost(int idx) {
+        if (pos < end && (isStringChar(buf[pos]) || isQuote(buf[pos]))) {
+            int start = pos;
+            skipString();
+            label[idx] = new String(buf, start, pos - start);
+            skipWhitespace();
+        }
+
+        if (pos < end && buf[pos] == '#') {
+            StringBuilder sb = new StringBuilder("#");
+            pos += 1;
+            skipWhitespace();
+            while (pos < end && Character.isLetter(buf[pos]))
+                sb.append(buf[pos++]);
+            skipWhitespace();
+            if (pos < end && buf[pos] == '-')
+                sb.append(buf[pos++]);
+            while (pos < end && Character.isDigit(buf[pos]))
+                sb.append(buf[pos++]);
+
+            hybridID[idx] = sb.toString();
+            skipWhitespace();
+        }
+
+        if (pos < end && buf[pos] == '[') {
+            pos += 1;
+            expect('&');
+            parseMeta(idx, hybridID[idx] != null && childCount[idx] == 0);
+            skipWhitespace();
+        }
+
+        if (pos < end && buf[pos] == ':') {
+            pos += 1;
+            skipWhitespace();
+            length[idx] = parseDouble();
+        }
+    }
+
+    /**
+     * Parse attributes following "[&".  Only the region and locus
+     * attributes of hybrid leaf nodes are retained.
+     */
+    private void parseMeta(int idx, boolean isHybridLeaf) {
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos;
+            skipString();
+            int keyEnd = pos;
+
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+
+            if (isHybridLeaf && matches(keyStart, keyEnd, "region")) {
+                expect('{');
+                skipWhitespace();
+                int start = pos;
+                skipValue();
+                regionStart[idx] = parseInt(start, pos);
+                skipWhitespace();
+                expect(',');
+                skipWhitespace();
+                start = pos;
+                skipValue();
+                regionEnd[idx] = parseInt(start, pos);
+                skipWhitespace();
+                while (pos < end && buf[pos] == ',') {
+                    pos += 1;
+                    skipWhitespace();
+                    skipValue();
+                    skipWhitespace();
+                }
+                expect('}');
+                hasRegion[idx] = true;
+
+            } else if (isHybridLeaf && matches(keyStart, keyEnd, "locus")) {
+                int start = pos;
+                skipValue();
+                String locusID = new String(buf, start, pos - start);
+                if (locusID.startsWith("\""))
+                    locusID = locusID.substring(1, locusID.length()-1);
+
+                Locus thisLocus = null;
+                for (Locus candidate : loci) {
+                    if (candidate.getID().equals(locusID))
+                        thisLocus = candidate;
+                }
+
+                if (thisLocus == null)
+                    throw new IllegalArgumentException(
+                            "Locus with ID " + locusID + " not found.");
+
+                locus[idx] = thisLocus;
+
+            } else
+                skipValue();
+
+            skipWhitespace();
+            if (pos < end && buf[pos] == ',') {
+                pos += 1;
+                continue;
+            }
+
+            expect(']');
+            break;
+        }
+    }
+
+    private void skipValue() {
+        if (pos < end && buf[pos] == '{') {
+            pos += 1;
+            while (true) {
+                skipWhitespace();
+                skipValue();
+                skipWhitespace();
+                if (pos < end && buf[pos] == ',') {
+                    pos += 1;
+                    continue;
+                }
+                expect('}');
+                break;
+            }
+        } else
+            skipString();
+    }
+
+    /**
+     * Skip over an unquoted string, number or quoted string.
+     */
+    private void skipString() {
+        if (pos < end && isQuote(buf[pos])) {
+            char quote = buf[pos];
+            int close = pos + 1;
+            while (close < end && buf[close] != quote)
+                close += 1;
+
+            if (close == end)
+                throw error("Unterminated quoted string");
+
+            pos = close + 1;
+            return;
+        }
+
+        int start = pos;
+        while (pos < end && isStringChar(buf[pos]))
+            pos += 1;
+
+        if (pos == start)
+            throw error("Expected string or number");
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            char c = buf[pos];
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+                break;
+            pos += 1;
+        }
+    }
+
+    private void expect(char c) {
+        if (pos >= end || buf[pos] != c)
+            throw error("Expected '" + c + "'");
+        pos += 1;
+    }
+
+    private boolean matches(int start, int stop, String str) {
+        if (stop - start != str.length())
+            return false;
+
+        for (int i=0; i<str.length(); i++)
+            if (buf[start + i] != str.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    private static boolean isQuote(char c) {
+        return c == '"' || c == '\'';
+    }
+
+    /**
+     * @return true if c may appear in an unquoted string (STRINGPRIM).
+     */
+    private static boolean isStringChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '|' || c == '*' || c == '%' || c == '/' || c == '.'
+                || c == '-' || c == '+' || c == '_' || c == '&';
+    }
+
+    private int parseInt(int start, int stop) {
+        int i = start;
+        boolean negative = false;
+        if (i < stop && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i += 1;
+        }
+
+        if (i == stop || stop - i > 9)
+            return Integer.parseInt(new String(buf, start, stop - start));
+
+        int value = 0;
+        for (; i < stop; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9')
+                return Integer.parseInt(new String(buf, start, stop - start));
+            value = 10*value + (c - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+            1e21, 1e22
+    };
+
+    /**
+     * Parse a decimal number.  Numbers having at most 15 significant
+     * digits and a small decimal exponent are converted exactly using a
+     * single floating point multiplication or division (both operands
+     * being exactly representable), which gives the same correctly
+     * rounded result as Double.parseDouble().  Other numbers are passed
+     * to Double.parseDouble().
+     */
+    private double parseDouble() {
+        int start = pos;
+        while (pos < end && (Character.isDigit(buf[pos]) || buf[pos] == '.'
+                || buf[pos] == 'e' || buf[pos] == 'E'
+                || buf[pos] == '-' || buf[pos] == '+'))
+            pos += 1;
+
+        if (pos == start)
+            throw error("Expected number");
+
+        int i = start;
+        boolean negative = false;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = buf[i] == '-';
+            i += 1;
+        }
+
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean seenDigit = false, seenPoint = false;
+        for (; i < pos; i++) {
+            char c = buf[i];
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (mantissa > 0 || c != '0')
+                    digits += 1;
+                mantissa = 10*mantissa + (c - '0');
+                if (seenPoint)
+                    exponent -= 1;
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else
+                break;
+        }
+
+        if (i < pos && seenDigit && (buf[i] == 'e' || buf[i] == 'E')) {
+            i += 1;
+            boolean negativeExp = false;
+            if (i < pos && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExp = buf[i] == '-';
+                i += 1;
+            }
+
+            int expStart = i, exp = 0;
+            while (i < pos && buf[i] >= '0' && buf[i] <= '9' && i - expStart < 4)
+                exp = 10*exp + (buf[i++] - '0');
+
+            if (i > expStart)
+                exponent += negativeExp ? -exp : exp;
+            else
+                seenDigit = false;
+        }
+
+        if (!seenDigit || i < pos || digits > 15 || exponent < -22 || exponent > 22)
+            return Double.parseDouble(new String(buf, start, pos - start));
+
+        double value = exponent < 0
+                ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+
+        return negative ? -value : value;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos
+                + " of extended Newick string.");
+    }
+
+    private int newNode(int parentIdx) {
+        if (nodeCount == parent.length)
+            grow(Math.max(64, 2*parent.length));
+
+        int idx = nodeCount++;
+        parent[idx] = parentIdx;
+        firstChild[idx] = -1;
+        lastChild[idx] = -1;
+        nextSibling[idx] = -1;
+        childCount[idx] = 0;
+        length[idx] = 0.0;
+        label[idx] = null;
+        hybridID[idx] = null;
+        cfNode[idx] = null;
+        hasRegion[idx] = false;
+        locus[idx] = null;
+
+        return idx;
+    }
+
+    private void grow(int capacity) {
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild == null ? new int[0] : firstChild, capacity);
+        lastChild = Arrays.copyOf(lastChild == null ? new int[0] : lastChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling == null ? new int[0] : nextSibling, capacity);
+        childCount = Arrays.copyOf(childCount == null ? new int[0] : childCount, capacity);
+        length = Arrays.copyOf(length == null ? new double[0] : length, capacity);
+        height = Arrays.copyOf(height == null ? new double[0] : height, capacity);
+        label = Arrays.copyOf(label == null ? new String[0] : label, capacity);
+        hybridID = Arrays.copyOf(hybridID == null ? new String[0] : hybridID, capacity);
+        cfNode = Arrays.copyOf(cfNode == null ? new Node[0] : cfNode, capacity);
+        hasRegion = Arrays.copyOf(hasRegion == null ? new boolean[0] : hasRegion, capacity);
+        regionStart = Arrays.copyOf(regionStart == null ? new int[0] : regionStart, capacity);
+        regionEnd = Arrays.copyOf(regionEnd == null ? new int[0] : regionEnd, capacity);
+        locus = Arrays.copyOf(locus == null ? new Locus[0] : locus, capacity);
+    }
+
+    /*
+     * Assembly
+     */
+
+    /**
+     * Convert branch lengths to heights, measured from the youngest node.
+     * Nodes are numbered in pre-order, so parents precede children.
+     */
+    private void computeHeights() {
+        double minHeight = Double.POSITIVE_INFINITY;
+        for (int i=0; i<nodeCount; i++) {
+            height[i] = parent[i] < 0 ? 0.0 : height[parent[i]] - length[i];
+            minHeight = Math.min(minHeight, height[i]);
+        }
+
+        for (int i=0; i<nodeCount; i++)
+            height[i] = height[i] - minHeight;
+    }
+
+    /**
+     * @return ID which the visitor-based parser assigned to node: the
+     * label where present, otherwise the hybrid ID.
+     */
+    private String getID(int idx) {
+        return label[idx] != null ? label[idx] : hybridID[idx];
+    }
+
+    private boolean isHybrid(int idx) {
+        String id = getID(idx);
+        return id != null && convIDMap.containsKey(id);
+    }
+
+    /**
+     * Create conversions in the order in which their hybrid nodes are
+     * first encountered in a pre-order traversal, applying locus and
+     * region metadata.
+     */
+    private void collectConversions() {
+        for (int i=0; i<nodeCount; i++) {
+            if (hybridID[i] == null)
+                continue;
+
+            Conversion conv = convIDMap.get(hybridID[i]);
+            if (conv == null) {
+                conv = new Conversion();
+                convIDMap.put(hybridID[i], conv);
+            }
+
+            if (childCount[i] == 0) {
+                if (hasRegion[i]) {
+                    conv.setStartSite(regionStart[i]);
+                    conv.setEndSite(regionEnd[i]);
+                }
+
+                if (locus[i] != null)
+                    conv.setLocus(locus[i]);
+            }
+        }
+    }
+
+    /**
+     * Use hybrid nodes to set the attachment points of conversions.
+     */
+    private void attachConversions() {
+        for (int i=0; i<nodeCount; i++) {
+            if (!isHybrid(i))
+                continue;
+
+            Conversion conv = convIDMap.get(getID(i));
+            if (childCount[i] == 0) {
+                conv.setHeight1(height[i]);
+                conv.setHeight2(height[parent[i]]);
+                conv.setNode2(getCFNode(getTrueNode(parent[i])));
+            } else
+                conv.setNode1(getCFNode(getTrueNode(i)));
+        }
+    }
+
+    /**
+     * Identify the clonal frame node corresponding to a network node by
+     * descending through hybrid nodes.
+     */
+    private int getTrueNode(int idx) {
+        while (true) {
+            if (childCount[idx] == 0)
+                return idx;
+
+            if (isHybrid(idx)) {
+                idx = firstChild[idx];
+                continue;
+            }
+
+            int hybridIdx = -1, nonHybridIdx = -1;
+            int child = firstChild[idx];
+            for (int i=0; child >= 0; i++, child = nextSibling[child]) {
+                if (childCount[child] == 0 && isHybrid(child))
+                    hybridIdx = i;
+                else
+                    nonHybridIdx = i;
+            }
+
+            if (hybridIdx > 0) {
+                child = firstChild[idx];
+                for (int i=0; i<nonHybridIdx; i++)
+                    child = nextSibling[child];
+                idx = child;
+                continue;
+            }
+
+            return idx;
+        }
+    }
+
+    private Node getCFNode(int idx) {
+        if (cfNode[idx] == null) {
+            Node node;
+            if (reusableNodes != null && nextReusableNode < reusableNodes.length) {
+                node = reusableNodes[nextReusableNode++];
+                node.setID(null);
+                node.metaDataString = null;
+            } else
+                node = new Node();
+
+            if (label[idx] != null) {
+                node.setID(label[idx]);
+                node.setNr(Integer.parseInt(label[idx]) - nodeNumberOffset);
+            }
+            node.setHeight(height[idx]);
+            cfNode[idx] = node;
+        }
+
+        return cfNode[idx];
+    }
+
+    /**
+     * Assemble clonal frame below the given network node, omitting
+     * hybrid nodes.
+     */
+    private Node stripHybridNodes(int idx) {
+        int trueIdx = getTrueNode(idx);
+        Node trueNode = getCFNode(trueIdx);
+
+        trueNode.removeAllChildren(false);
+        for (int child = firstChild[trueIdx]; child >= 0; child = nextSibling[child])
+            trueNode.addChild(stripHybridNodes(child));
+
+        if (trueNode.isLeaf())
+            cfLeafCount += 1;
+
+        return trueNode;
+    }
+
+    private int numberInternalNodes(Node node, int nextNr) {
+        if (node.isLeaf())
+            return nextNr;
+
+        for (Node child : node.getChildren())
+            nextNr = numberInternalNodes(child, nextNr);
+
+        node.setNr(nextNr);
+
+        return nextNr + 1;
+    }
+}
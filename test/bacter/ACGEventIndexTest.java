@@ -0,0 +1,124 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that ACGEventIndex remains sorted and complete under random
+ * conversion and clonal frame edits.
+ */
+public class ACGEventIndexTest {
+
+    private static final int NODE_COUNT = 7;
+
+    private void checkIndex(ACGEventIndex eventIndex, List<Conversion> convs, Node[] nodes) {
+        eventIndex.update();
+
+        assertEquals(NODE_COUNT + 2*convs.size(), eventIndex.getEventCount());
+
+        Set<Conversion> departed = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Conversion> arrived = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Integer> cfNodesSeen = new HashSet<>();
+
+        for (int i=0; i<eventIndex.getEventCount(); i++) {
+            if (i>0)
+                assertTrue(eventIndex.getHeight(i-1) <= eventIndex.getHeight(i));
+
+            Conversion conv = eventIndex.getConversion(i);
+            switch (eventIndex.getType(i)) {
+                case CONV_DEPART:
+                    assertTrue(departed.add(conv));
+                    assertEquals(conv.height1, eventIndex.getHeight(i), 0.0);
+                    assertSame(conv.node1, eventIndex.getNode(i));
+                    break;
+
+                case CONV_ARRIVE:
+                    assertTrue(arrived.add(conv));
+                    assertEquals(conv.height2, eventIndex.getHeight(i), 0.0);
+                    assertSame(conv.node2, eventIndex.getNode(i));
+                    break;
+
+                default:
+                    assertNull(conv);
+                    assertTrue(cfNodesSeen.add(eventIndex.getNodeNr(i)));
+                    assertEquals(nodes[eventIndex.getNodeNr(i)].getHeight(),
+                            eventIndex.getHeight(i), 0.0);
+            }
+        }
+
+        assertEquals(convs.size(), departed.size());
+        assertEquals(convs.size(), arrived.size());
+        for (Conversion conv : convs)
+            assertTrue(departed.contains(conv) && arrived.contains(conv));
+    }
+
+    private Conversion newConv(Random random, Node[] nodes) {
+        double h1 = random.nextDouble();
+        return new Conversion(nodes[random.nextInt(NODE_COUNT)], h1,
+                nodes[random.nextInt(NODE_COUNT)], h1 + random.nextDouble(),
+                0, 1, null, null);
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(3);
+
+        Node[] nodes = new Node[NODE_COUNT];
+        for (int i=0; i<NODE_COUNT; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(random.nextDouble());
+        }
+
+        ConversionGraph acg = new ConversionGraph() {
+            @Override
+            public Node getNode(int nr) {
+                return nodes[nr];
+            }
+
+            @Override
+            public int getNodeCount() {
+                return NODE_COUNT;
+            }
+        };
+
+        ConversionList convList = new ConversionList();
+        for (int i=0; i<20; i++)
+            convList.add(newConv(random, nodes));
+
+        ACGEventIndex eventIndex = new ACGEventIndex(acg);
+        eventIndex.rebuild(Collections.singletonList(convList));
+        checkIndex(eventIndex, convList, nodes);
+
+        for (int step=0; step<2000; step++) {
+            double u = random.nextDouble();
+            if (u < 0.2 || convList.isEmpty()) {
+                Conversion conv = newConv(random, nodes);
+                convList.add(conv);
+                eventIndex.add(conv);
+            } else if (u < 0.4) {
+                Conversion conv = convList.remove(random.nextInt(convList.size()));
+                eventIndex.remove(conv);
+            } else if (u < 0.8) {
+                Conversion conv = convList.get(random.nextInt(convList.size()));
+                eventIndex.markModified(conv);
+                conv.node1 = nodes[random.nextInt(NODE_COUNT)];
+                conv.height1 = random.nextDouble();
+                conv.height2 = conv.height1 + random.nextDouble();
+            } else {
+                Node node = nodes[random.nextInt(NODE_COUNT)];
+                node.setHeight(random.nextDouble());
+                eventIndex.markCFNodesModified(Collections.singletonList(node));
+            }
+
+            if (random.nextInt(4) == 0)
+                checkIndex(eventIndex, convList, nodes);
+        }
+
+        checkIndex(eventIndex, convList, nodes);
+    }
+}
@@ -0,0 +1,112 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the lineage and interval lookups of CFEventList against direct
+ * scans of randomly generated clonal frames.
+ */
+public class CFEventListTest {
+
+    private static final int LEAF_COUNT = 20;
+
+    private Node[] randomClonalFrame(Random random) {
+        Node[] nodes = new Node[2*LEAF_COUNT - 1];
+        List<Node> active = new ArrayList<>();
+        for (int i=0; i<LEAF_COUNT; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(random.nextInt(3) == 0 ? 0.0 : random.nextDouble());
+            active.add(nodes[i]);
+        }
+
+        double t = 1.0;
+        for (int i=LEAF_COUNT; i<nodes.length; i++) {
+            t += random.nextDouble();
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(t);
+            nodes[i].addChild(active.remove(random.nextInt(active.size())));
+            nodes[i].addChild(active.remove(random.nextInt(active.size())));
+            active.add(nodes[i]);
+        }
+
+        return nodes;
+    }
+
+    @Test
+    public void testLineageLookup() {
+        Random random = new Random(5);
+
+        for (int rep=0; rep<20; rep++) {
+            Node[] nodes = randomClonalFrame(random);
+
+            ConversionGraph acg = new ConversionGraph() {
+                @Override
+                public Node[] getNodesAsArray() {
+                    return nodes;
+                }
+
+                @Override
+                public Node getNode(int nr) {
+                    return nodes[nr];
+                }
+
+                @Override
+                public int getNodeCount() {
+                    return nodes.length;
+                }
+
+                @Override
+                public int getLeafNodeCount() {
+                    return LEAF_COUNT;
+                }
+            };
+
+            CFEventList cfEventList = new CFEventList(acg);
+            List<CFEventList.Event> events = cfEventList.getCFEvents();
+
+            double length = 0.0;
+            for (int i=0; i<events.size(); i++) {
+                double t = events.get(i).getHeight();
+                assertEquals(length, cfEventList.getLengthBelow(i), 1e-12);
+
+                Set<Node> expected = new HashSet<>();
+                for (Node node : nodes) {
+                    if (node.getHeight() <= t && (node.isRoot() || node.getParent().getHeight() > t))
+                        expected.add(node);
+                }
+
+                Set<Node> found = new HashSet<>();
+                for (int k=0; k<events.get(i).getLineageCount(); k++)
+                    found.add(cfEventList.getLineage(i, k));
+
+                // Lineages only well defined above the last of tied events
+                if (i == events.size() - 1 || events.get(i+1).getHeight() > t)
+                    assertEquals(expected, found);
+
+                if (i < events.size() - 1)
+                    length += (events.get(i+1).getHeight() - t)*events.get(i).getLineageCount();
+            }
+            assertEquals(length, cfEventList.getClonalFrameLength(), 1e-12);
+
+            for (int j=0; j<100; j++) {
+                double u = random.nextDouble()*cfEventList.getClonalFrameLength();
+                int idx = cfEventList.getIntervalIndexAtLength(u);
+                assertTrue(cfEventList.getLengthBelow(idx) <= u);
+                assertTrue(u < cfEventList.getLengthBelow(idx+1));
+
+                double t = random.nextDouble()*events.get(events.size()-1).getHeight();
+                int startIdx = 0;
+                while (events.get(startIdx+1).getHeight()<t)
+                    startIdx += 1;
+                assertEquals(startIdx, cfEventList.getIntervalIndex(t));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ConversionEdgeIndex against brute-force searches of the
+ * conversion list.
+ */
+public class ConversionEdgeIndexTest {
+
+    private static final int NODE_COUNT = 9;
+
+    private void checkIndex(ConversionEdgeIndex edgeIndex, List<Conversion> convs, Node[] nodes) {
+        edgeIndex.update();
+
+        for (Node node : nodes) {
+            List<Conversion> departures = edgeIndex.getDepartures(node.getNr());
+            List<Conversion> arrivals = edgeIndex.getArrivals(node.getNr());
+
+            int nDepartures = 0, nArrivals = 0;
+            for (Conversion conv : convs) {
+                if (conv.node1 == node) {
+                    assertTrue(departures.contains(conv));
+                    nDepartures += 1;
+                }
+                if (conv.node2 == node) {
+                    assertTrue(arrivals.contains(conv));
+                    nArrivals += 1;
+                }
+            }
+            assertEquals(nDepartures, departures.size());
+            assertEquals(nArrivals, arrivals.size());
+
+            for (int i=1; i<departures.size(); i++)
+                assertTrue(departures.get(i-1).height1 <= departures.get(i).height1);
+            for (int i=1; i<arrivals.size(); i++)
+                assertTrue(arrivals.get(i-1).height2 <= arrivals.get(i).height2);
+        }
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(17);
+
+        Node[] nodes = new Node[NODE_COUNT];
+        for (int i=0; i<NODE_COUNT; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+        }
+
+        ConversionList convList = new ConversionList();
+        for (int i=0; i<30; i++)
+            convList.add(new Conversion(nodes[random.nextInt(NODE_COUNT)], random.nextDouble(),
+                    nodes[random.nextInt(NODE_COUNT)], random.nextDouble(), 0, 1, null, null));
+
+        ConversionEdgeIndex edgeIndex = new ConversionEdgeIndex();
+        edgeIndex.rebuild(NODE_COUNT, Collections.singletonList(convList));
+        checkIndex(edgeIndex, convList, nodes);
+
+        for (int step=0; step<2000; step++) {
+            double u = random.nextDouble();
+            if (u < 0.2 || convList.isEmpty()) {
+                Conversion conv = new Conversion(nodes[random.nextInt(NODE_COUNT)], random.nextDouble(),
+                        nodes[random.nextInt(NODE_COUNT)], random.nextDouble(), 0, 1, null, null);
+                convList.add(conv);
+                edgeIndex.add(conv);
+            } else if (u < 0.4) {
+                Conversion conv = convList.remove(random.nextInt(convList.size()));
+                edgeIndex.remove(conv);
+            } else {
+                Conversion conv = convList.get(random.nextInt(convList.size()));
+                edgeIndex.markModified(conv);
+                if (random.nextBoolean())
+                    conv.node1 = nodes[random.nextInt(NODE_COUNT)];
+                else
+                    conv.node2 = nodes[random.nextInt(NODE_COUNT)];
+                conv.height1 = random.nextDouble();
+                conv.height2 = random.nextDouble();
+            }
+
+            if (random.nextInt(5) == 0)
+                checkIndex(edgeIndex, convList, nodes);
+        }
+
+        checkIndex(edgeIndex, convList, nodes);
+        assertTrue(edgeIndex.isValid(NODE_COUNT, convList.size()));
+    }
+}
@@ -0,0 +1,241 @@
+package bacter;
+
+import beast.base.evolution.tree.Node;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that ConversionJournal correctly undoes sequences of conversion
+ * list edits and field modifications.
+ */
+public class ConversionJournalTest {
+
+    private Conversion newConv(int startSite) {
+        return new Conversion(null, startSite, null, startSite + 1.0,
+                startSite, startSite + 10, null, null);
+    }
+
+    private List<Conversion> snapshot(ConversionList convList) {
+        return new ArrayList<>(convList);
+    }
+
+    private List<double[]> fieldSnapshot(List<Conversion> convs) {
+        List<double[]> res = new ArrayList<>();
+        for (Conversion conv : convs)
+            res.add(new double[]{conv.startSite, conv.endSite, conv.height1, conv.height2});
+        return res;
+    }
+
+    @Test
+    public void testUndo() {
+        Random random = new Random(53);
+
+        Locus locus = null;
+        Map<Locus, ConversionList> convs = new HashMap<>();
+        ConversionList convList = new ConversionList();
+        convs.put(locus, convList);
+
+        for (int i=0; i<50; i++)
+            convList.addSorted(newConv(random.nextInt(100)));
+
+        ConversionJournal journal = new ConversionJournal();
+
+        for (int step=0; step<200; step++) {
+            journal.start();
+
+            List<Conversion> origOrder = snapshot(convList);
+            List<double[]> origFields = fieldSnapshot(origOrder);
+
+            for (int edit=0; edit<5; edit++) {
+                double u = random.nextDouble();
+                if (u < 0.3 || convList.isEmpty()) {
+                    Conversion conv = newConv(random.nextInt(100));
+                    convList.addSorted(conv);
+                    journal.recordAddition(conv, locus);
+                } else if (u < 0.6) {
+                    int index = random.nextInt(convList.size());
+                    Conversion conv = convList.remove(index);
+                    journal.recordDeletion(conv, locus, index);
+                } else {
+                    Conversion conv = convList.get(random.nextInt(convList.size()));
+                    journal.recordModification(conv);
+                    conv.startSite = random.nextInt(100);
+                    conv.height1 = random.nextDouble();
+                }
+            }
+
+            if (random.nextBoolean()) {
+                journal.undo(convs, new ConversionGraph());
+
+                assertEquals(origOrder.size(), convList.size());
+                List<double[]> fields = fieldSnapshot(convList);
+                for (int i=0; i<origOrder.size(); i++) {
+                    assertSame(origOrder.get(i), convList.get(i));
+                    assertArrayEquals(origFields.get(i), fields.get(i), 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBulkUndo() {
+        Locus locus = null;
+        Map<Locus, ConversionList> convs = new HashMap<>();
+        ConversionList convList = new ConversionList();
+        convs.put(locus, convList);
+
+        for (int i=0; i<10; i++)
+            convList.addSorted(newConv(i));
+
+        ConversionJournal journal = new ConversionJournal();
+        journal.start();
+
+        Conversion first = convList.remove(0);
+        journal.recordDeletion(first, locus, 0);
+
+        List<Conversion> origOrder = snapshot(convList);
+        origOrder.add(0, first);
+
+        journal.recordBulkEdit(convs);
+        convList.clear();
+        for (int i=0; i<5; i++)
+            convList.addSorted(newConv(100 + i));
+
+        journal.undo(convs, new ConversionGraph());
+
+        assertEquals(origOrder.size(), convList.size());
+        for (int i=0; i<origOrder.size(); i++)
+            assertSame(origOrder.get(i), convList.get(i));
+    }
+
+    @Test
+    public void testEdgeIndexAfterUndo() {
+        Node[] nodes = new Node[3];
+        for (int i=0; i<nodes.length; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(10.0 + i);
+        }
+
+        ConversionGraph acg = new ConversionGraph() {
+            @Override
+            public Node getNode(int nr) {
+                return nodes[nr];
+            }
+
+            @Override
+            public int getNodeCount() {
+                return nodes.length;
+            }
+        };
+
+        Locus locus = null;
+        Map<Locus, ConversionList> convs = new HashMap<>();
+        ConversionList convList = new ConversionList();
+        convs.put(locus, convList);
+
+        Conversion conv = new Conversion(nodes[0], 1.0, nodes[1], 2.0, 0, 10, null, null);
+        convList.add(conv);
+
+        acg.edgeIndex.rebuild(nodes.length, convs.values());
+
+        ConversionJournal journal = new ConversionJournal();
+        journal.start();
+
+        // Edit conversion and bring the index up to date mid-proposal
+        journal.recordModification(conv);
+        acg.edgeIndex.markModified(conv);
+        conv.node1 = nodes[2];
+        conv.height1 = 3.0;
+        conv.height2 = 4.0;
+
+        acg.edgeIndex.update();
+        assertTrue(acg.edgeIndex.getDepartures(2).contains(conv));
+
+        // Reject proposal
+        journal.undo(convs, acg);
+
+        assertSame(nodes[0], conv.node1);
+
+        acg.edgeIndex.update();
+        assertEquals(Collections.singletonList(conv), acg.edgeIndex.getDepartures(0));
+        assertTrue(acg.edgeIndex.getDepartures(2).isEmpty());
+        assertEquals(Collections.singletonList(conv), acg.edgeIndex.getArrivals(1));
+    }
+
+    @Test
+    public void testEventIndexAfterUndo() {
+        Node[] nodes = new Node[3];
+        for (int i=0; i<nodes.length; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNr(i);
+            nodes[i].setHeight(10.0 + i);
+        }
+
+        ConversionGraph acg = new ConversionGraph() {
+            @Override
+            public Node getNode(int nr) {
+                return nodes[nr];
+            }
+
+            @Override
+            public int getNodeCount() {
+                return nodes.length;
+            }
+        };
+
+        Locus locus = null;
+        Map<Locus, ConversionList> convs = new HashMap<>();
+        ConversionList convList = new ConversionList();
+        convs.put(locus, convList);
+
+        Conversion conv = new Conversion(nodes[0], 1.0, nodes[1], 2.0, 0, 10, null, null);
+        convList.add(conv);
+
+        acg.eventIndex.rebuild(convs.values());
+
+        ConversionJournal journal = new ConversionJournal();
+        journal.start();
+
+        // Edit conversion and bring the index up to date mid-proposal
+        journal.recordModification(conv);
+        acg.eventIndex.markModified(conv);
+        conv.node1 = nodes[2];
+        conv.height1 = 13.0;
+        conv.height2 = 14.0;
+        acg.eventIndex.update();
+
+        // Reject proposal
+        journal.undo(convs, acg);
+
+        acg.eventIndex.update();
+        assertEquals(nodes.length + 2, acg.eventIndex.getEventCount());
+
+        boolean departureSeen = false, arrivalSeen = false;
+        for (int i=0; i<acg.eventIndex.getEventCount(); i++) {
+            if (i>0)
+                assertTrue(acg.eventIndex.getHeight(i-1) <= acg.eventIndex.getHeight(i));
+
+            switch (acg.eventIndex.getType(i)) {
+                case CONV_DEPART:
+                    assertSame(nodes[0], acg.eventIndex.getNode(i));
+                    assertEquals(1.0, acg.eventIndex.getHeight(i), 0.0);
+                    departureSeen = true;
+                    break;
+
+                case CONV_ARRIVE:
+                    assertSame(nodes[1], acg.eventIndex.getNode(i));
+                    assertEquals(2.0, acg.eventIndex.getHeight(i), 0.0);
+                    arrivalSeen = true;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        assertTrue(departureSeen && arrivalSeen);
+    }
+}
@@ -0,0 +1,127 @@
+package bacter;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ConversionList against a plain ArrayList implementation.
+ */
+public class ConversionListTest {
+
+    private Conversion newConv(int startSite) {
+        return new Conversion(null, 0.0, null, 0.0,
+                startSite, startSite + 10, null, null);
+    }
+
+    /**
+     * Sorted insertion as previously performed by ConversionGraph.
+     */
+    private void addSortedReference(List<Conversion> list, Conversion conv) {
+        int i;
+        for (i=0; i<list.size(); i++)
+            if (list.get(i).getStartSite()>conv.getStartSite())
+                break;
+
+        list.add(i, conv);
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(42);
+
+        ConversionList convList = new ConversionList();
+        List<Conversion> refList = new ArrayList<>();
+
+        for (int i=0; i<5000; i++) {
+            if (refList.isEmpty() || random.nextDouble() < 0.6) {
+                Conversion conv = newConv(random.nextInt(100));
+                convList.addSorted(conv);
+                addSortedReference(refList, conv);
+            } else {
+                int idx = random.nextInt(refList.size());
+                assertTrue(convList.remove(refList.get(idx)));
+                refList.remove(idx);
+            }
+
+            assertEquals(refList.size(), convList.size());
+
+            if (i % 100 == 0) {
+                Iterator<Conversion> it = convList.iterator();
+                for (Conversion conv : refList)
+                    assertSame(conv, it.next());
+                assertFalse(it.hasNext());
+
+                for (int j=0; j<refList.size(); j++) {
+                    assertSame(refList.get(j), convList.get(j));
+                    assertEquals(j, convList.indexOf(refList.get(j)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testModifiedStartSites() {
+        Random random = new Random(53);
+
+        ConversionList convList = new ConversionList();
+        List<Conversion> refList = new ArrayList<>();
+
+        for (int i=0; i<5000; i++) {
+            double u = random.nextDouble();
+            if (refList.isEmpty() || u < 0.4) {
+                Conversion conv = newConv(random.nextInt(100));
+                convList.addSorted(conv);
+                addSortedReference(refList, conv);
+            } else if (u < 0.8) {
+                Conversion conv = refList.get(random.nextInt(refList.size()));
+                conv.setStartSite(random.nextInt(100));
+                convList.startSiteModified(conv);
+            } else {
+                int idx = random.nextInt(refList.size());
+                assertTrue(convList.remove(refList.get(idx)));
+                refList.remove(idx);
+            }
+
+            assertEquals(refList.size(), convList.size());
+
+            if (i % 100 == 0) {
+                for (int j=0; j<refList.size(); j++)
+                    assertSame(refList.get(j), convList.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        ConversionList convList = new ConversionList();
+        for (int i=0; i<100; i++)
+            convList.addSorted(newConv(i));
+
+        Iterator<Conversion> it = convList.iterator();
+        while (it.hasNext()) {
+            if (it.next().getStartSite() % 2 == 0)
+                it.remove();
+        }
+
+        assertEquals(50, convList.size());
+        for (int i=0; i<convList.size(); i++)
+            assertEquals(2*i + 1, convList.get(i).getStartSite());
+    }
+
+    @Test
+    public void testIdentityLookup() {
+        ConversionList convList = new ConversionList();
+        Conversion conv1 = newConv(5);
+        Conversion conv2 = newConv(5);
+        convList.addSorted(conv1);
+        convList.addSorted(conv2);
+
+        assertEquals(1, convList.indexOf(conv2));
+        assertTrue(convList.remove(conv2));
+        assertSame(conv1, convList.get(0));
+        assertEquals(-1, convList.indexOf(newConv(7)));
+    }
+}
@@ -21,6 +21,9 @@ import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.ClusterTree;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -243,4 +246,57 @@ public class SerializationDeserializationTest extends TestBase {
         assertEquals(newConv2.getStartSite(), conv2.getStartSite());
         assertEquals(newConv2.getEndSite(), conv2.getEndSite());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBinary() throws Exception {
+        Alignment alignment = getAlignment();
+        alignment.setID("alignment");
+
+        Locus locus = new Locus("locus", alignment.getSiteCount());
+
+        // ConversionGraph
+        ConversionGraph acg = new ConversionGraph();
+        ClusterTree tree = new ClusterTree();
+        tree.initByName(
+                "clusterType", "upgma",
+                "taxa", alignment);
+
+        acg.assignFrom(tree);
+        acg.initByName("locus", locus);
+
+        Node node1 = acg.getExternalNodes().get(0);
+        Node node2 = node1.getParent();
+        double height1 = 0.5*(node1.getHeight() + node1.getParent().getHeight());
+        double height2 = 0.5*(node2.getHeight() + node2.getParent().getHeight());
+        acg.addConversion(new Conversion(node1, height1, node2, height2,
+                100, 200, acg, locus));
+
+        // Write two records, the second omitting the topology
+        ACGSnapshot snapshot = new ACGSnapshot();
+        snapshot.capture(acg);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        snapshot.write(out, 0, true);
+        String firstString = acg.getExtendedNewick();
+
+        acg.getRoot().setHeight(acg.getRoot().getHeight() + 1.0);
+        snapshot.capture(acg);
+        snapshot.write(out, 1000, false);
+        String secondString = acg.getExtendedNewick();
+        out.close();
+
+        // Read records back in
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        ACGSnapshot snapshotNew = new ACGSnapshot();
+        ConversionGraph acgNew = new ConversionGraph();
+
+        assertEquals(0, snapshotNew.read(in, acg.getConvertibleLoci(), acg.getTaxaTranslationOffset()));
+        acgNew.assignFromSnapshot(snapshotNew);
+        assertEquals(firstString, acgNew.getExtendedNewick());
+
+        assertEquals(1000, snapshotNew.read(in, acg.getConvertibleLoci(), acg.getTaxaTranslationOffset()));
+        acgNew.assignFromSnapshot(snapshotNew);
+        assertEquals(secondString, acgNew.getExtendedNewick());
+    }
+}
@@ -0,0 +1,53 @@
+package bacter.acgannotator;
+
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+
+public class ACGAnnotatorTest {
+
+    /**
+     * Summaries produced in a single pass must agree with those of the
+     * default mode.  With only two taxa every ACG shares the same clonal
+     * frame topology, so the two summaries should be identical.
+     */
+    @Test
+    public void testOnePass() throws Exception {
+        Randomizer.setSeed(1);
+
+        XMLParser parser = new XMLParser();
+        beast.base.inference.Runnable runnable = parser.parseFile(
+                new File("examples/ACGsimulations/simulateACGs2taxon.xml"));
+        runnable.run();
+
+        ACGAnnotator.ACGAnnotatorOptions options = new ACGAnnotator.ACGAnnotatorOptions();
+        options.inFile = new File("simulateACGs2taxon.trees");
+        options.burninPercentage = 0.0;
+
+        options.outFile = new File("simulateACGs2taxon.summary.tree");
+        new ACGAnnotator(options);
+
+        options.outFile = new File("simulateACGs2taxon.summaryOnePass.tree");
+        options.onePass = true;
+        new ACGAnnotator(options);
+
+        String summary = new String(Files.readAllBytes(
+                Paths.get("simulateACGs2taxon.summary.tree")));
+        String summaryOnePass = new String(Files.readAllBytes(
+                Paths.get("simulateACGs2taxon.summaryOnePass.tree")));
+
+        assertEquals(summary, summaryOnePass);
+
+        Files.deleteIfExists(Paths.get("simulateACGs2taxon.summary.tree"));
+        Files.deleteIfExists(Paths.get("simulateACGs2taxon.summaryOnePass.tree"));
+        Files.deleteIfExists(Paths.get("simulateACGs2taxon.stats"));
+        Files.deleteIfExists(Paths.get("simulateACGs2taxon.converted"));
+        Files.deleteIfExists(Paths.get("simulateACGs2taxon.trees"));
+    }
+}
@@ -0,0 +1,95 @@
+package bacter.acgannotator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testQuantiles() {
+        Random random = new Random(42);
+        double alpha = 0.001;
+
+        QuantileSketch sketch = new QuantileSketch(alpha);
+        double[] values = new double[100001];
+        for (int i=0; i<values.length; i++) {
+            values[i] = -Math.log(random.nextDouble())*1e-2;
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, sketch.getCount());
+
+        for (double p : new double[] {0.0, 0.025, 0.5, 0.975, 1.0}) {
+            double exact = values[Math.min((int)(p*values.length), values.length-1)];
+            double estimate = sketch.getQuantile(p);
+            assertTrue(Math.abs(estimate - exact) <= alpha*exact);
+        }
+
+        assertEquals(values[values.length/2], sketch.getMedian(),
+                alpha*values[values.length/2]);
+    }
+
+    @Test
+    public void testSites() {
+        QuantileSketch sketch = new QuantileSketch(0.001);
+        for (int site=0; site<1000; site++)
+            sketch.add(site);
+
+        assertEquals(0.0, sketch.getQuantile(0.0), 0.0);
+        assertEquals(500, sketch.getMedian(), 0.5);
+        assertEquals(975, sketch.getQuantile(0.975), 0.975);
+    }
+
+    @Test
+    public void testSignedValues() {
+        Random random = new Random(7);
+        double alpha = 0.001;
+
+        QuantileSketch sketch = new QuantileSketch(alpha);
+        double[] values = new double[10001];
+        for (int i=0; i<values.length; i++) {
+            values[i] = i % 100 == 0 ? 0.0 : 200*random.nextGaussian() - 50;
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (int i=0; i<=100; i++) {
+            double p = i/100.0;
+            double exact = values[Math.min((int)(p*values.length), values.length-1)];
+            double estimate = sketch.getQuantile(p);
+            assertTrue(Math.abs(estimate - exact) <= alpha*Math.abs(exact));
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(1);
+
+        QuantileSketch combined = new QuantileSketch(0.01);
+        QuantileSketch first = new QuantileSketch(0.01);
+        QuantileSketch second = new QuantileSketch(0.01);
+
+        for (int i=0; i<10000; i++) {
+            double value = Math.exp(2*random.nextGaussian());
+            if (i % 5 == 0)
+                value = -value;
+            combined.add(value);
+            if (i % 3 == 0)
+                first.add(value);
+            else
+                second.add(value);
+        }
+
+        first.merge(second);
+
+        assertEquals(combined.getCount(), first.getCount());
+        for (int i=0; i<=100; i++)
+            assertEquals(combined.getQuantile(i/100.0), first.getQuantile(i/100.0), 0.0);
+    }
+}
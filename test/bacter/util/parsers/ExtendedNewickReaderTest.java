@@ -0,0 +1,322 @@
+package bacter.util.parsers;
+
+import bacter.Conversion;
+import bacter.Locus;
+import beast.base.evolution.tree.Node;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that ExtendedNewickReader reads the same ACGs as the
+ * ANTLR-generated parser, using the visitor previously employed by
+ * ConversionGraph.fromExtendedNewick() as the reference.
+ */
+public class ExtendedNewickReaderTest {
+
+    private final Locus locus = new Locus("locus", 10000);
+    private final List<Locus> loci = Collections.singletonList(locus);
+
+    /**
+     * Four-taxon ACG with one conversion between clonal frame edges and
+     * one arriving above the root, as written by getExtendedNewick() with
+     * a taxon label offset of 1.  Node and conversion metadata are
+     * included, as written by ACGAnnotator.
+     */
+    private static final String ACG_STRING =
+            "(((((1:0.5)#0[&bottom=0.1]:0.5,2:1.0)5[&posterior=1.0,height_95%_HPD={0.9,1.1}]:0.5,"
+                    + "#0[&conv=0, region={100,200}, locus=\"locus\", relSize=0.0101, "
+                    + "affectedSites=101, uselessSiteFraction=0.00000]:1.0)[&top=\"x y\"]:0.5,"
+                    + "((3:0.5,4:0.5)6:0.5)#1:1.0)7:0.5,"
+                    + "#1[&conv=1, region={300,400}, locus=\"locus\", relSize=0.0101]:1.5):0.0;";
+
+    /**
+     * Clonal frame without conversions, taken from MarginalTreeTest.
+     */
+    private static final String CF_STRING =
+            "(((0:0.04916909893812008,1:0.04916909893812008)10:0.5465237639426681,"
+                    + "(4:0.3773111326866937,(((8:0.22180790639747835,"
+                    + "(3:0.07561592852503513,6:0.07561592852503513)11:0.14619197787244323)"
+                    + "13:0.010206467073885589,9:0.23201437347136394)14:0.116542689187905,"
+                    + "(7:0.10746702934931932,5:0.10746702934931932)12:0.24109003330994963)"
+                    + "15:0.02875407002742475)16:0.21838173019409446)17:1.1073878800617445,"
+                    + "2:1.7030807429425328)18:0.0;";
+
+    @Test
+    public void testEquivalence() {
+        ExtendedNewickReader reader = new ExtendedNewickReader();
+
+        for (String string : new String[] {ACG_STRING, CF_STRING}) {
+            for (boolean numbered : new boolean[] {true, false}) {
+                int offset = string.equals(ACG_STRING) ? 1 : 0;
+
+                Map<String, Conversion> expectedConvs = new HashMap<>();
+                Node expectedRoot = parseReference(string, numbered, offset, expectedConvs);
+
+                Map<String, Conversion> convs = new HashMap<>();
+                Node root = reader.parse(string, loci, numbered, offset, convs);
+
+                assertSameACG(expectedRoot, expectedConvs, root, convs);
+            }
+        }
+    }
+
+    @Test
+    public void testACG() {
+        ExtendedNewickReader reader = new ExtendedNewickReader();
+
+        Map<String, Conversion> convs = new HashMap<>();
+        Node root = reader.parse(ACG_STRING, loci, true, 1, convs);
+
+        assertEquals(6, root.getNr());
+        assertEquals(2.0, root.getHeight(), 1e-15);
+        assertEquals(7, root.getAllChildNodesAndSelf().size());
+
+        Conversion conv0 = convs.get("#0");
+        assertEquals(0, conv0.getNode1().getNr());
+        assertEquals(4, conv0.getNode2().getNr());
+        assertEquals(0.5, conv0.getHeight1(), 1e-15);
+        assertEquals(1.5, conv0.getHeight2(), 1e-15);
+        assertEquals(100, conv0.getStartSite());
+        assertEquals(200, conv0.getEndSite());
+        assertSame(locus, conv0.getLocus());
+
+        Conversion conv1 = convs.get("#1");
+        assertEquals(5, conv1.getNode1().getNr());
+        assertSame(root, conv1.getNode2());
+        assertEquals(1.0, conv1.getHeight1(), 1e-15);
+        assertEquals(2.5, conv1.getHeight2(), 1e-15);
+        assertEquals(300, conv1.getStartSite());
+        assertEquals(400, conv1.getEndSite());
+    }
+
+    @Test
+    public void testNodeReuse() {
+        ExtendedNewickReader reader = new ExtendedNewickReader();
+
+        Node firstRoot = reader.parse(CF_STRING, loci, true, 0, new HashMap<>());
+        Node[] nodes = firstRoot.getAllChildNodesAndSelf().toArray(new Node[0]);
+
+        Map<String, Conversion> convs = new HashMap<>();
+        Node root = reader.parse(ACG_STRING, loci, true, 1, convs, nodes);
+
+        Set<Node> reused = Collections.newSetFromMap(new IdentityHashMap<>());
+        reused.addAll(Arrays.asList(nodes));
+        for (Node node : root.getAllChildNodesAndSelf())
+            assertTrue(reused.contains(node));
+
+        Map<String, Conversion> expectedConvs = new HashMap<>();
+        Node expectedRoot = parseReference(ACG_STRING, true, 1, expectedConvs);
+        assertSameACG(expectedRoot, expectedConvs, root, convs);
+    }
+
+    private void assertSameACG(Node expectedRoot, Map<String, Conversion> expectedConvs,
+                               Node root, Map<String, Conversion> convs) {
+        assertNull(root.getParent());
+        assertSameClade(expectedRoot, root);
+
+        assertEquals(expectedConvs.keySet(), convs.keySet());
+        for (String convID : expectedConvs.keySet()) {
+            Conversion expected = expectedConvs.get(convID);
+            Conversion conv = convs.get(convID);
+
+            assertEquals(expected.getNode1().getNr(), conv.getNode1().getNr());
+            assertEquals(expected.getNode2().getNr(), conv.getNode2().getNr());
+            assertEquals(expected.getHeight1(), conv.getHeight1(), 0.0);
+            assertEquals(expected.getHeight2(), conv.getHeight2(), 0.0);
+            assertEquals(expected.getStartSite(), conv.getStartSite());
+            assertEquals(expected.getEndSite(), conv.getEndSite());
+            assertSame(expected.getLocus(), conv.getLocus());
+        }
+    }
+
+    private void assertSameClade(Node expected, Node node) {
+        assertEquals(expected.getNr(), node.getNr());
+        assertEquals(expected.getID(), node.getID());
+        assertEquals(expected.getHeight(), node.getHeight(), 0.0);
+        assertEquals(expected.getChildCount(), node.getChildCount());
+
+        for (int i=0; i<expected.getChildCount(); i++) {
+            assertSame(node, node.getChild(i).getParent());
+            assertSameClade(expected.getChild(i), node.getChild(i));
+        }
+    }
+
+    /**
+     * Read an ACG using the ANTLR-generated parser and the visitor
+     * previously used by ConversionGraph.fromExtendedNewick().
+     */
+    private Node parseReference(String string, boolean numbered, int nodeNumberoffset,
+                                Map<String, Conversion> convIDMap) {
+
+        ExtendedNewickLexer lexer = new ExtendedNewickLexer(CharStreams.fromString(string));
+        ExtendedNewickParser parser = new ExtendedNewickParser(new CommonTokenStream(lexer));
+
+        return new ExtendedNewickBaseVisitor<Node>() {
+
+            private double branchLengthsToHeights(Node node) {
+                if (node.isRoot())
+                    node.setHeight(0.0);
+                else
+                    node.setHeight(node.getParent().getHeight() - node.getHeight());
+
+                double minHeight = node.getHeight();
+
+                for (Node child : node.getChildren())
+                    minHeight = Math.min(minHeight, branchLengthsToHeights(child));
+
+                return minHeight;
+            }
+
+            private void removeOffset(Node node, double offset) {
+                node.setHeight(node.getHeight() - offset);
+
+                for (Node child : node.getChildren())
+                    removeOffset(child, offset);
+            }
+
+            private Node getTrueNode(Node node) {
+                if (node.isLeaf())
+                    return node;
+
+                if (convIDMap.containsKey(node.getID()))
+                    return getTrueNode(node.getChild(0));
+
+                int hybridIdx = -1;
+                int nonHybridIdx = -1;
+                for (int i=0; i<node.getChildCount(); i++) {
+                    if (node.getChild(i).isLeaf() && convIDMap.containsKey(node.getChild(i).getID()))
+                        hybridIdx = i;
+                    else
+                        nonHybridIdx = i;
+                }
+
+                if (hybridIdx>0)
+                    return getTrueNode(node.getChild(nonHybridIdx));
+
+                return node;
+            }
+
+            private void findConversionAttachments(Node node) {
+                if (convIDMap.containsKey(node.getID())) {
+                    Conversion conv = convIDMap.get(node.getID());
+                    if (node.isLeaf()) {
+                        conv.setHeight1(node.getHeight());
+                        conv.setHeight2(node.getParent().getHeight());
+                        conv.setNode2(getTrueNode(node.getParent()));
+                    } else
+                        conv.setNode1(getTrueNode(node));
+                }
+
+                for (Node child : node.getChildren())
+                    findConversionAttachments(child);
+            }
+
+            private Node stripHybridNodes(Node node) {
+                Node trueNode = getTrueNode(node);
+                List<Node> trueChildren = new ArrayList<>();
+
+                for (Node child : trueNode.getChildren())
+                    trueChildren.add(stripHybridNodes(child));
+
+                trueNode.removeAllChildren(false);
+                for (Node trueChild : trueChildren)
+                    trueNode.addChild(trueChild);
+
+                return trueNode;
+            }
+
+            private int numberInternalNodes(Node node, int nextNr) {
+                if (node.isLeaf())
+                    return nextNr;
+
+                for (Node child : node.getChildren())
+                    nextNr = numberInternalNodes(child, nextNr);
+
+                node.setNr(nextNr);
+
+                return nextNr + 1;
+            }
+
+            @Override
+            public Node visitTree(ExtendedNewickParser.TreeContext ctx) {
+                Node root =  visitNode(ctx.node());
+
+                double minHeight = branchLengthsToHeights(root);
+                removeOffset(root, minHeight);
+
+                findConversionAttachments(root);
+
+                root = stripHybridNodes(root);
+                root.setParent(null);
+
+                if (!numbered)
+                    numberInternalNodes(root, root.getAllLeafNodes().size());
+
+                return root;
+            }
+
+            @Override
+            public Node visitNode(ExtendedNewickParser.NodeContext ctx) {
+                Node node = new Node();
+
+                if (ctx.post().hybrid() != null) {
+                    String convID = ctx.post().hybrid().getText();
+                    node.setID(convID);
+
+                    Conversion conv;
+                    if (convIDMap.containsKey(convID))
+                        conv = convIDMap.get(convID);
+                    else {
+                        conv = new Conversion();
+                        convIDMap.put(convID, conv);
+                    }
+
+                    if (ctx.node().isEmpty()) {
+                        for (ExtendedNewickParser.AttribContext attribCtx : ctx.post().meta().attrib()) {
+                            switch (attribCtx.attribKey.getText()) {
+                                case "region":
+                                    conv.setStartSite(Integer.parseInt(
+                                            attribCtx.attribValue().vector().attribValue(0).getText()));
+                                    conv.setEndSite(Integer.parseInt(
+                                            attribCtx.attribValue().vector().attribValue(1).getText()));
+                                    break;
+
+                                case "locus":
+                                    String locusID = attribCtx.attribValue().getText();
+                                    if (locusID.startsWith("\""))
+                                        locusID = locusID.substring(1,locusID.length()-1);
+
+                                    for (Locus thisLocus : loci) {
+                                        if (thisLocus.getID().equals(locusID))
+                                            conv.setLocus(thisLocus);
+                                    }
+                                    break;
+
+                                default:
+                                    break;
+                            }
+                        }
+                    }
+                }
+
+                for (ExtendedNewickParser.NodeContext childCtx : ctx.node())
+                    node.addChild(visitNode(childCtx));
+
+                if (ctx.post().label() != null) {
+                    node.setID(ctx.post().label().getText());
+                    node.setNr(Integer.parseInt(ctx.post().label().getText())
+                            - nodeNumberoffset);
+                }
+
+                node.setHeight(Double.parseDouble(ctx.post().length.getText()));
+
+                return node;
+            }
+        }.visit(parser.tree());
+    }
+}